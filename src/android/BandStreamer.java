@@ -0,0 +1,126 @@
+package com.star.printer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+import com.starmicronics.stario.StarIOPort;
+import com.starmicronics.stario.StarIOPortException;
+
+/**
+ * Sends a StarBitmap to the printer band by band while the following bands
+ * are still being encoded. A helper thread encodes 24-row ESC X 4 bands into
+ * a few recycled buffers and the calling thread writes each one to the port
+ * as soon as it is ready, so printing starts after the first band and the
+ * command data held in memory does not grow with the image height.
+ */
+class BandStreamer implements StarPrinter.PortWriter {
+
+	// Bands encoded ahead of the port
+	private static final int BUFFERS = 4;
+
+	private final StarBitmap bitmap;
+	private final boolean compressionEnable;
+	private final boolean pageModeEnable;
+
+	private final ArrayBlockingQueue<CommandWriter> free = new ArrayBlockingQueue<CommandWriter>(BUFFERS);
+	private final ArrayBlockingQueue<CommandWriter> ready = new ArrayBlockingQueue<CommandWriter>(BUFFERS + 1);
+	// Marks the end of the image in the ready queue
+	private final CommandWriter end = new CommandWriter(0);
+	private StarIOPortException encodeFailure;
+	private int written;
+
+	BandStreamer(StarBitmap bitmap, boolean compressionEnable, boolean pageModeEnable) {
+		this.bitmap = bitmap;
+		this.compressionEnable = compressionEnable;
+		this.pageModeEnable = pageModeEnable;
+
+		for (int i = 0; i < BUFFERS; i++) {
+			free.add(new CommandWriter(bitmap.bytesPerRow * 24 + 32));
+		}
+	}
+
+	/**
+	 * Bytes handed to the port so far, counting a write that failed part
+	 * way. Still 0 if writeTo failed before the first band was ready.
+	 */
+	public int length() {
+		return written;
+	}
+
+	/**
+	 * Encodes the image and writes it to the port. Returns once the last band
+	 * has been written.
+	 */
+	public void writeTo(StarIOPort port) throws StarIOPortException {
+		Thread encoder = new Thread(new Runnable() {
+			public void run() {
+				encode();
+			}
+		}, "StarBitmap-stream");
+		encoder.setDaemon(true);
+		encoder.start();
+
+		try {
+			while (true) {
+				CommandWriter band = ready.take();
+				if (band == end) {
+					break;
+				}
+				written += band.length();
+				port.writePort(band.array(), 0, band.length());
+				free.put(band);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StarIOPortException("Interrupted while printing");
+		} finally {
+			// Stops the encoder if the port failed part way through
+			encoder.interrupt();
+		}
+
+		synchronized (this) {
+			if (encodeFailure != null) {
+				throw encodeFailure;
+			}
+		}
+	}
+
+	private void encode() {
+		try {
+			int bands = bitmap.bandCount();
+			int band = 0;
+
+			do {
+				CommandWriter out = free.take();
+				out.reset();
+
+				if (band == 0) {
+					bitmap.writeImageEscPosHeader(out, pageModeEnable);
+				}
+				if (band < bands) {
+					bitmap.writeImageEscPosBand(out, band, compressionEnable);
+				}
+				band++;
+				if (band >= bands) {
+					bitmap.writeImageEscPosFooter(out);
+				}
+
+				ready.put(out);
+			} while (band < bands);
+		} catch (InterruptedException e) {
+			// The writer gave up, nobody is waiting for the rest
+		} catch (StarIOPortException e) {
+			synchronized (this) {
+				encodeFailure = e;
+			}
+		} catch (Throwable e) {
+			// Errors too, such as running out of memory, so the writer is
+			// never left waiting for a band that will not come
+			synchronized (this) {
+				encodeFailure = new StarIOPortException(String.valueOf(e.getMessage()));
+			}
+		} finally {
+			// There is always room for the end marker
+			ready.offer(end);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package com.star.printer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.starmicronics.stario.StarIOPort;
+import com.starmicronics.stario.StarIOPortException;
+
+/**
+ * Scatter-gather list of command fragments. Fragments are kept by reference,
+ * so assembling a receipt never copies the image data; the buffer is written
+ * to the port in fixed-size chunks instead of as one contiguous array.
+ *
+ * Fragments must not be changed after they have been added.
+ */
+public class CommandBuffer implements StarPrinter.PortWriter {
+
+	/** Size of each write to the port. */
+	public static final int CHUNK_SIZE = 4096;
+
+	// Chunk buffers kept for the next job
+	private static final int MAX_POOLED_CHUNKS = 4;
+	private static final ArrayList<byte[]> chunkPool = new ArrayList<byte[]>(MAX_POOLED_CHUNKS);
+
+	private static final class Slice {
+		final byte[] data;
+		final int offset;
+		final int length;
+
+		Slice(byte[] data, int offset, int length) {
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final ArrayList<Slice> slices;
+	private int length;
+
+	public CommandBuffer() {
+		slices = new ArrayList<Slice>();
+	}
+
+	/**
+	 * Wraps a list of commands without copying them.
+	 */
+	public CommandBuffer(List<byte[]> commands) {
+		slices = new ArrayList<Slice>(commands.size());
+		for (byte[] command : commands) {
+			add(command);
+		}
+	}
+
+	public void add(byte[] data) {
+		add(data, 0, data.length);
+	}
+
+	public void add(byte[] data, int offset, int count) {
+		if (count > 0) {
+			slices.add(new Slice(data, offset, count));
+			length += count;
+		}
+	}
+
+	/**
+	 * Total number of bytes in the buffer.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Writes the buffer to the port in chunks of {@link #CHUNK_SIZE} bytes.
+	 * Whole chunks inside a large fragment are written straight from the
+	 * fragment; small fragments are gathered into a pooled chunk buffer.
+	 */
+	public void writeTo(StarIOPort port) throws StarIOPortException {
+		byte[] chunk = null;
+		int filled = 0;
+		try {
+			for (Slice slice : slices) {
+				int offset = slice.offset;
+				int remaining = slice.length;
+
+				while (remaining > 0) {
+					if (filled == 0 && remaining >= CHUNK_SIZE) {
+						port.writePort(slice.data, offset, CHUNK_SIZE);
+						offset += CHUNK_SIZE;
+						remaining -= CHUNK_SIZE;
+						continue;
+					}
+
+					if (chunk == null) {
+						chunk = obtainChunk();
+					}
+					int count = Math.min(remaining, CHUNK_SIZE - filled);
+					System.arraycopy(slice.data, offset, chunk, filled, count);
+					filled += count;
+					offset += count;
+					remaining -= count;
+
+					if (filled == CHUNK_SIZE) {
+						port.writePort(chunk, 0, filled);
+						filled = 0;
+					}
+				}
+			}
+
+			if (filled > 0) {
+				port.writePort(chunk, 0, filled);
+			}
+		} finally {
+			if (chunk != null) {
+				recycleChunk(chunk);
+			}
+		}
+	}
+
+	/**
+	 * Writes every fragment to the stream in order.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		for (Slice slice : slices) {
+			out.write(slice.data, slice.offset, slice.length);
+		}
+	}
+
+	private static byte[] obtainChunk() {
+		synchronized (chunkPool) {
+			if (!chunkPool.isEmpty()) {
+				return chunkPool.remove(chunkPool.size() - 1);
+			}
+		}
+		return new byte[CHUNK_SIZE];
+	}
+
+	private static void recycleChunk(byte[] chunk) {
+		synchronized (chunkPool) {
+			if (chunkPool.size() < MAX_POOLED_CHUNKS) {
+				chunkPool.add(chunk);
+			}
+		}
+	}
+}
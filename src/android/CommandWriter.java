@@ -0,0 +1,93 @@
+package com.star.printer;
+
+/**
+ * Growable byte array used to build printer commands without boxing every
+ * byte. A writer can be reset and reused for the next job, so once it has
+ * grown to the size of a typical image no further allocation happens.
+ */
+public class CommandWriter {
+	private byte[] buffer;
+	private int length;
+
+	public CommandWriter(int initialCapacity) {
+		buffer = new byte[Math.max(16, initialCapacity)];
+	}
+
+	/**
+	 * Wraps a caller-supplied buffer. The buffer is replaced with a larger one
+	 * if the command does not fit.
+	 */
+	public CommandWriter(byte[] reuse) {
+		buffer = reuse;
+	}
+
+	public void reset() {
+		length = 0;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Drops everything after the first newLength bytes.
+	 */
+	public void setLength(int newLength) {
+		length = newLength;
+	}
+
+	/**
+	 * The backing array; the command is in the first {@link #length()} bytes.
+	 */
+	public byte[] array() {
+		return buffer;
+	}
+
+	public void ensureCapacity(int additional) {
+		int required = length + additional;
+		if (required > buffer.length) {
+			byte[] grown = new byte[Math.max(required, buffer.length * 2)];
+			System.arraycopy(buffer, 0, grown, 0, length);
+			buffer = grown;
+		}
+	}
+
+	public void put(int b) {
+		ensureCapacity(1);
+		buffer[length++] = (byte) b;
+	}
+
+	public void put(byte[] data) {
+		put(data, 0, data.length);
+	}
+
+	public void put(byte[] data, int offset, int count) {
+		ensureCapacity(count);
+		System.arraycopy(data, offset, buffer, length, count);
+		length += count;
+	}
+
+	/**
+	 * Reserves count bytes and returns the offset of the first one, for
+	 * encoders that fill the bytes in place.
+	 */
+	public int skip(int count) {
+		ensureCapacity(count);
+		int offset = length;
+		length += count;
+		return offset;
+	}
+
+	/**
+	 * Returns the command as an array of exactly {@link #length()} bytes. The
+	 * backing array is returned as-is when it is already that size.
+	 */
+	public byte[] toByteArray() {
+		if (length == buffer.length) {
+			return buffer;
+		}
+		byte[] result = new byte[length];
+		System.arraycopy(buffer, 0, result, 0, length);
+		return result;
+	}
+}
@@ -0,0 +1,84 @@
+package com.star.printer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Small shared pool that StarBitmap splits large images across. The pool is
+ * bounded so that image conversion never starves the print threads.
+ */
+class EncoderPool {
+
+	static final int WORKERS = Math.max(1,
+			Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	// Below this many rows splitting costs more than it saves
+	static final int MIN_PARALLEL_ROWS = 256;
+
+	private static volatile boolean enabled = true;
+	private static ExecutorService pool;
+
+	/**
+	 * Turns parallel conversion on or off for every StarBitmap.
+	 */
+	static void setEnabled(boolean enable) {
+		enabled = enable;
+	}
+
+	/**
+	 * Whether an image of the given height should be split across workers.
+	 */
+	static boolean shouldSplit(int rows) {
+		return enabled && WORKERS > 1 && rows >= MIN_PARALLEL_ROWS;
+	}
+
+	private static synchronized ExecutorService pool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(WORKERS, new ThreadFactory() {
+				private int count;
+
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "StarBitmap-encoder-" + (++count));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/**
+	 * Runs the tasks on the pool and returns their results in task order.
+	 * The first exception thrown by a task is rethrown.
+	 */
+	static <T> List<T> runAll(List<Callable<T>> tasks) throws Exception {
+		List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+		ExecutorService executor = pool();
+		for (Callable<T> task : tasks) {
+			futures.add(executor.submit(task));
+		}
+
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+		} catch (ExecutionException e) {
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw (Error) cause;
+		}
+		return results;
+	}
+}
@@ -0,0 +1,84 @@
+package com.star.printer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+
+/**
+ * Collects the results of a job sent to every printer of a group and
+ * completes the JavaScript callback once all of them have finished: with
+ * success if every printer printed, otherwise with the errors of the printers
+ * that did not. Every result goes through sendPluginResult, so all of the
+ * success and error variants are collected; results that keep the callback
+ * are progress and are not counted.
+ */
+class FanOutCallback {
+
+	private final CallbackContext callback;
+	private final CordovaWebView webView;
+	private int remaining;
+	private final List<String> errors = new ArrayList<String>();
+
+	FanOutCallback(CallbackContext callback, CordovaWebView webView, int printers) {
+		this.callback = callback;
+		this.webView = webView;
+		this.remaining = printers;
+	}
+
+	/**
+	 * The callback one printer of the group reports its result to.
+	 */
+	CallbackContext forPrinter(final String portName) {
+		return new CallbackContext(callback.getCallbackId(), webView) {
+			private final AtomicBoolean done = new AtomicBoolean();
+
+			@Override
+			public void sendPluginResult(PluginResult result) {
+				if (result.getStatus() == PluginResult.Status.NO_RESULT.ordinal()
+						|| result.getKeepCallback() || !done.compareAndSet(false, true)) {
+					return;
+				}
+				if (result.getStatus() == PluginResult.Status.OK.ordinal()) {
+					finished(null);
+				} else {
+					finished(portName + ": " + message(result));
+				}
+			}
+		};
+	}
+
+	private static String message(PluginResult result) {
+		return (result.getMessageType() == PluginResult.MESSAGE_TYPE_STRING) ? result
+				.getStrMessage() : result.getMessage();
+	}
+
+	private void finished(String error) {
+		boolean last;
+		synchronized (this) {
+			if (error != null) {
+				errors.add(error);
+			}
+			last = --remaining == 0;
+		}
+		if (!last) {
+			return;
+		}
+
+		if (errors.isEmpty()) {
+			callback.success();
+		} else {
+			StringBuilder message = new StringBuilder();
+			for (String e : errors) {
+				if (message.length() > 0) {
+					message.append('\n');
+				}
+				message.append(e);
+			}
+			callback.error(message.toString());
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.star.printer;
+
+import com.starmicronics.stario.StarIOPortException;
+
+/**
+ * Returned by a drain that moved jobs to another printer of their group
+ * because their own printer was not ready. The jobs have not printed yet;
+ * they are queued for the other printer. The reason the printer was not
+ * ready is the cause.
+ */
+public class JobMovedException extends StarIOPortException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String portName;
+
+	public JobMovedException(StarIOPortException cause, String portName) {
+		super(cause.getMessage());
+		initCause(cause);
+		this.portName = portName;
+	}
+
+	/**
+	 * The printer the first of the jobs moved to.
+	 */
+	public String getPortName() {
+		return portName;
+	}
+}
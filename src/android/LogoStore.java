@@ -0,0 +1,179 @@
+package com.star.printer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import com.starmicronics.stario.StarIOPortException;
+
+/**
+ * Logos stored in the printer's NV memory. The logos are defined with FS q
+ * and printed with the 3 byte ESC f n command, so receipts no longer carry
+ * the raster data of their header image.
+ *
+ * FS q replaces every stored logo at once, so a printer's logos are
+ * registered as a set. A record of the version of each logo every printer
+ * holds is kept in app storage, and the set is only sent again when one of
+ * the images changes.
+ */
+public class LogoStore {
+
+	private static final String FILE_NAME = "starprinter-logos.properties";
+
+	private static LogoStore sharedStore;
+
+	private final File file;
+	private final Properties stored = new Properties();
+
+	LogoStore(File file) {
+		this.file = file;
+		load();
+	}
+
+	public static synchronized LogoStore getSharedStore(Context context) {
+		if (sharedStore == null) {
+			sharedStore = new LogoStore(new File(context.getApplicationContext()
+					.getFilesDir(), FILE_NAME));
+		}
+		return sharedStore;
+	}
+
+	/**
+	 * Returns the command that prints logo n, counting from 1 in the order
+	 * the logos were registered.
+	 */
+	public static byte[] reference(int n) {
+		return new byte[] { 0x1b, 0x66, (byte) n };
+	}
+
+	/**
+	 * Version of each logo, a hash of its pixels and the width it is
+	 * printed at.
+	 */
+	public static String[] versions(List<Bitmap> logos, int maxWidth) {
+		String[] versions = new String[logos.size()];
+		for (int i = 0; i < versions.length; i++) {
+			versions[i] = RasterCache.key(logos.get(i), "NvBitImage", maxWidth,
+					StarBitmap.NO_DITHERING, StarDither.DEFAULT_INTENSITY,
+					false, false);
+		}
+		return versions;
+	}
+
+	/**
+	 * Whether the printer is known to hold exactly these logo versions.
+	 */
+	public synchronized boolean holds(String portName, String[] versions) {
+		String count = stored.getProperty(portName + "/count");
+		if (count == null || Integer.parseInt(count) != versions.length) {
+			return false;
+		}
+		for (int i = 0; i < versions.length; i++) {
+			if (!versions[i].equals(stored.getProperty(portName + "/" + (i + 1)))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Builds the FS q command that defines the logos, logo 1 first.
+	 */
+	public static byte[] defineCommand(List<Bitmap> logos, int maxWidth)
+			throws StarIOPortException {
+		if (logos.isEmpty() || logos.size() > 255) {
+			throw new StarIOPortException("Between 1 and 255 logos can be stored");
+		}
+
+		CommandWriter out = new CommandWriter(1024);
+		out.put(0x1c);
+		out.put('q');
+		out.put(logos.size());
+		for (Bitmap logo : logos) {
+			new StarBitmap(logo, false, maxWidth).writeNvBitImageData(out);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Records that the printer now holds these logo versions.
+	 */
+	public synchronized void recordStored(String portName, String[] versions) {
+		forgetEntries(portName);
+		stored.setProperty(portName + "/count", Integer.toString(versions.length));
+		for (int i = 0; i < versions.length; i++) {
+			stored.setProperty(portName + "/" + (i + 1), versions[i]);
+		}
+		save();
+	}
+
+	/**
+	 * Drops the record for a printer, for example after it has been reset,
+	 * so its logos are sent again on the next registration.
+	 */
+	public synchronized void forget(String portName) {
+		forgetEntries(portName);
+		save();
+	}
+
+	private void forgetEntries(String portName) {
+		String prefix = portName + "/";
+		for (Object key : stored.keySet().toArray()) {
+			if (((String) key).startsWith(prefix)) {
+				stored.remove(key);
+			}
+		}
+	}
+
+	private void load() {
+		if (!file.exists()) {
+			return;
+		}
+
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			stored.load(in);
+		} catch (IOException e) {
+			System.err.println("LogoStore: " + e.getMessage());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void save() {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			stored.store(out, null);
+			out.getFD().sync();
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not replace " + file);
+			}
+		} catch (IOException e) {
+			// At worst the logos are sent again
+			System.err.println("LogoStore: " + e.getMessage());
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
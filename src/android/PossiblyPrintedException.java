@@ -0,0 +1,20 @@
+package com.star.printer;
+
+import com.starmicronics.stario.StarIOPortException;
+
+/**
+ * Thrown when a job failed after its commands had started going to the
+ * printer, for example when endCheckedBlock timed out or the printer ran out
+ * of paper while printing. The job may have printed in full or in part, so
+ * it must not be sent again without someone checking. The original failure
+ * is the cause.
+ */
+public class PossiblyPrintedException extends StarIOPortException {
+
+	private static final long serialVersionUID = 1L;
+
+	public PossiblyPrintedException(StarIOPortException cause) {
+		super(cause.getMessage());
+		initCause(cause);
+	}
+}
@@ -0,0 +1,96 @@
+package com.star.printer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs printer work off the WebView thread. Every printer gets its own
+ * single-thread executor, so jobs for one printer run in the order they were
+ * submitted while jobs for different printers run in parallel.
+ */
+public class PrintExecutor {
+
+	private static final PrintExecutor sharedExecutor = new PrintExecutor();
+
+	private final Map<String, ExecutorService> executors = new HashMap<String, ExecutorService>();
+	// Jobs submitted for each printer that have not finished yet
+	private final Map<String, AtomicInteger> queued = new HashMap<String, AtomicInteger>();
+
+	public static PrintExecutor getSharedExecutor() {
+		return sharedExecutor;
+	}
+
+	/**
+	 * Queues a job behind any other job for the same printer.
+	 *
+	 * @param portName
+	 *            Port name of the printer the job talks to
+	 * @param job
+	 *            The work to run on the printer's thread
+	 */
+	public Future<?> submit(String portName, final Runnable job) {
+		final AtomicInteger count = queuedFor(portName);
+		count.incrementAndGet();
+		try {
+			return executorFor(portName).submit(new Runnable() {
+				public void run() {
+					try {
+						job.run();
+					} finally {
+						count.decrementAndGet();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			count.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * Number of jobs submitted for the printer that are waiting or running.
+	 */
+	public int queuedCount(String portName) {
+		return queuedFor(portName).get();
+	}
+
+	private synchronized AtomicInteger queuedFor(String portName) {
+		AtomicInteger count = queued.get(portName);
+		if (count == null) {
+			count = new AtomicInteger();
+			queued.put(portName, count);
+		}
+		return count;
+	}
+
+	private synchronized ExecutorService executorFor(final String portName) {
+		ExecutorService executor = executors.get(portName);
+		if (executor == null) {
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "StarPrinter-" + portName);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executors.put(portName, executor);
+		}
+		return executor;
+	}
+
+	/**
+	 * Stops every printer thread. Jobs that have not started yet are dropped.
+	 */
+	public synchronized void shutdown() {
+		for (ExecutorService executor : executors.values()) {
+			executor.shutdownNow();
+		}
+		executors.clear();
+		queued.clear();
+	}
+}
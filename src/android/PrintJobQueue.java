@@ -0,0 +1,791 @@
+package com.star.printer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+
+import com.starmicronics.stario.StarIOPort;
+import com.starmicronics.stario.StarIOPortException;
+import com.starmicronics.stario.StarPrinterStatus;
+
+/**
+ * Persistent FIFO queue of encoded print jobs. Jobs are appended to a log
+ * file in app storage before they are sent, so a job that fails because the
+ * printer is offline, out of paper or has its cover open is retried once the
+ * printer is ready again, including after the app has been restarted.
+ *
+ * A job that keeps failing for reasons other than the printer not being
+ * ready or not being reachable is given up after {@link #MAX_ATTEMPTS} tries, and a job that has not
+ * printed within {@link #MAX_AGE} is given up as well, so neither blocks the
+ * jobs queued behind it. A job that fails after the printer has received it
+ * may have printed, so it is not sent again but left unconfirmed for the app
+ * to report. Jobs can also be cancelled. Jobs given up, unconfirmed or
+ * cancelled during this run are kept in a short list for the app to show.
+ *
+ * A job sent to the least busy printer of a group remembers the group. If
+ * its printer turns out not to be ready, the job moves to another printer
+ * of the group that is, instead of waiting.
+ *
+ * The log is append-only: a job record holds the command bytes, followed
+ * by a group record if the job may move, and a state record marks a job as
+ * printed, failed or cancelled. A job that moves is written again under the
+ * same id with its new printer. The file is truncated
+ * once nothing is pending and rewritten when it grows past
+ * {@link #COMPACT_THRESHOLD}.
+ */
+public class PrintJobQueue {
+
+	public static final int STATE_PENDING = 0;
+	public static final int STATE_PRINTED = 1;
+	public static final int STATE_FAILED = 2;
+	public static final int STATE_CANCELLED = 3;
+	/** Failed after it was sent, so it may have printed. */
+	public static final int STATE_UNCONFIRMED = 4;
+
+	public static final int MAX_ATTEMPTS = 10;
+	public static final long MAX_AGE = 24 * 60 * 60 * 1000L;
+
+	private static final String FILE_NAME = "starprinter-jobs.log";
+	private static final byte RECORD_JOB = 'J';
+	private static final byte RECORD_STATE = 'S';
+	private static final byte RECORD_GROUP = 'G';
+	private static final long COMPACT_THRESHOLD = 1024 * 1024;
+
+	private static final long MIN_RETRY_DELAY = 1000;
+	private static final long MAX_RETRY_DELAY = 60000;
+	// Failed and cancelled jobs kept for getJobs
+	private static final int MAX_FINISHED = 16;
+
+	private static PrintJobQueue sharedQueue;
+
+	/**
+	 * A queued print job.
+	 */
+	public static class PrintJob {
+		public final long id;
+		public final String portName;
+		public final String portSettings;
+		/** System.currentTimeMillis() when the job was queued. */
+		public final long created;
+		// Group whose printers the job may move to, or null; set once the
+		// job has been read
+		String group;
+		// Dropped once the job has finished
+		CommandBuffer command;
+		volatile int state;
+		volatile int attempts;
+		volatile String failure;
+
+		PrintJob(long id, String portName, String portSettings, CommandBuffer command) {
+			this(id, portName, portSettings, System.currentTimeMillis(), command);
+		}
+
+		PrintJob(long id, String portName, String portSettings, long created,
+				CommandBuffer command) {
+			this.id = id;
+			this.portName = portName;
+			this.portSettings = portSettings;
+			this.created = created;
+			this.command = command;
+			this.state = STATE_PENDING;
+		}
+
+		public int getState() {
+			return state;
+		}
+
+		/**
+		 * The group the job may move to another printer of, or null.
+		 */
+		public String getGroup() {
+			return group;
+		}
+
+		/**
+		 * Times the job was sent during this run.
+		 */
+		public int getAttempts() {
+			return attempts;
+		}
+
+		/**
+		 * Why the job failed, or null.
+		 */
+		public String getFailure() {
+			return failure;
+		}
+	}
+
+	/**
+	 * Sends the command bytes of a job to the printer.
+	 */
+	public interface JobSender {
+		void send(Context context, PrintJob job) throws StarIOPortException;
+
+		/**
+		 * Returns another printer of the job's group that can take it while
+		 * its own printer is not ready, or null if there is none.
+		 */
+		PrinterRegistry.Printer reroute(Context context, PrintJob job);
+	}
+
+	private final File file;
+	private final Context context;
+	private final JobSender sender;
+	private final LinkedHashMap<Long, PrintJob> pending = new LinkedHashMap<Long, PrintJob>();
+	private final LinkedList<PrintJob> finished = new LinkedList<PrintJob>();
+	private final Map<String, Long> retryDelays = new HashMap<String, Long>();
+	private final Set<String> retryScheduled = new HashSet<String>();
+	private final ScheduledExecutorService retryTimer;
+	private final CountDownLatch loaded = new CountDownLatch(1);
+	private long nextId = 1;
+	private DataOutputStream log;
+	private FileOutputStream logFile;
+
+	PrintJobQueue(Context context, File file, JobSender sender) {
+		this.context = context;
+		this.file = file;
+		this.sender = sender;
+		this.retryTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "PrintJobQueue-retry");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// The log can hold megabytes of raster data, keep reading it off the
+		// thread that asked for the queue
+		retryTimer.execute(new Runnable() {
+			public void run() {
+				try {
+					load();
+				} finally {
+					loaded.countDown();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the queue stored in the app's files directory. Jobs left
+	 * pending by a previous run are loaded in the background; methods that
+	 * need them wait until they are.
+	 */
+	public static synchronized PrintJobQueue getSharedQueue(Context context,
+			JobSender sender) {
+		if (sharedQueue == null) {
+			Context appContext = context.getApplicationContext();
+			sharedQueue = new PrintJobQueue(appContext, new File(
+					appContext.getFilesDir(), FILE_NAME), sender);
+		}
+		return sharedQueue;
+	}
+
+	/**
+	 * Stores a job in the log. It is sent the next time the queue for its
+	 * printer is drained.
+	 */
+	public PrintJob enqueue(String portName, String portSettings,
+			CommandBuffer command) throws IOException {
+		return enqueue(portName, portSettings, command, null);
+	}
+
+	/**
+	 * Stores a job that may move to another printer of group while its own
+	 * printer is not ready.
+	 *
+	 * @param group
+	 *            Group of the printers the job may print on, or null to keep
+	 *            it on its printer
+	 */
+	public PrintJob enqueue(String portName, String portSettings,
+			CommandBuffer command, String group) throws IOException {
+		awaitLoaded();
+		synchronized (this) {
+			PrintJob job = new PrintJob(nextId++, portName, portSettings,
+					command);
+			job.group = group;
+			return append(job);
+		}
+	}
+
+	private PrintJob append(PrintJob job) throws IOException {
+		DataOutputStream out = openLog();
+		long length = logFile.getChannel().size();
+		try {
+			writeJob(out, job);
+			out.flush();
+			logFile.getFD().sync();
+		} catch (IOException e) {
+			discardTail(length);
+			throw e;
+		}
+
+		pending.put(job.id, job);
+		return job;
+	}
+
+	/**
+	 * Sends the pending jobs of a printer in the order they were queued. This
+	 * must run on the printer's print executor thread. Sending stops at the
+	 * first job that fails; a retry is scheduled with backoff and the failed
+	 * job keeps its place at the head of the queue, unless it has used up
+	 * its attempts or may have printed. Jobs older than MAX_AGE are given up without sending.
+	 * A job with a group whose printer is not ready moves to another printer
+	 * of the group if one can take it, and the drain goes on with the next
+	 * job.
+	 *
+	 * @return the exception that stopped the drain, a JobMovedException if
+	 *         jobs moved to other printers, or null if every pending job for
+	 *         the printer was printed
+	 */
+	public StarIOPortException drain(String portName) {
+		JobMovedException moved = null;
+		PrintJob job;
+		while ((job = nextPending(portName)) != null) {
+			if (isExpired(job)) {
+				continue;
+			}
+
+			StarIOPortException failure;
+			try {
+				job.attempts++;
+				sender.send(context, job);
+				finish(job, STATE_PRINTED, null);
+				continue;
+			} catch (PossiblyPrintedException e) {
+				finish(job, STATE_UNCONFIRMED, e.getMessage());
+				failure = e;
+			} catch (StarIOPortException e) {
+				failure = e;
+				if (e instanceof PrinterNotReadyException
+						|| e instanceof PrinterUnreachableException) {
+					// Not the job's fault, it waits for the printer
+					job.attempts--;
+					PrintJob other = reroute(job);
+					if (other != null) {
+						if (moved == null) {
+							moved = new JobMovedException(e, other.portName);
+						}
+						continue;
+					}
+				}
+			} catch (RuntimeException e) {
+				// A job that cannot be sent fails the same way every time
+				failure = new StarIOPortException(String.valueOf(e.getMessage()));
+				job.attempts = MAX_ATTEMPTS;
+			}
+
+			if (job.state == STATE_PENDING && job.attempts >= MAX_ATTEMPTS) {
+				finish(job, STATE_FAILED, failure.getMessage());
+			}
+			if (nextPending(portName) != null) {
+				scheduleRetry(portName);
+			}
+			return failure;
+		}
+		synchronized (this) {
+			retryDelays.remove(portName);
+		}
+		return moved;
+	}
+
+	/**
+	 * Moves a job with a group to another printer of the group, if one can
+	 * take it, and has that printer's queue drained.
+	 *
+	 * @return the job as queued for its new printer, or null if it stays
+	 */
+	private PrintJob reroute(PrintJob job) {
+		if (job.group == null) {
+			return null;
+		}
+		PrinterRegistry.Printer printer = sender.reroute(context, job);
+		if (printer == null || printer.getPortName().equals(job.portName)) {
+			return null;
+		}
+
+		PrintJob moved;
+		synchronized (this) {
+			if (pending.get(job.id) != job) {
+				return null;
+			}
+			moved = new PrintJob(job.id, printer.getPortName(),
+					printer.getPortSettings(), job.created, job.command);
+			moved.group = job.group;
+			moved.attempts = job.attempts;
+			try {
+				// The job record under the same id replaces the old one
+				append(moved);
+			} catch (IOException e) {
+				System.err.println("PrintJobQueue: " + e.getMessage());
+				return null;
+			}
+		}
+		submitDrain(moved.portName);
+		return moved;
+	}
+
+	/**
+	 * Moves the waiting jobs of a printer that is not ready to other
+	 * printers of their groups where that is possible.
+	 *
+	 * @return true if jobs are still waiting for the printer
+	 */
+	private boolean rerouteWaiting(String portName) {
+		List<PrintJob> waiting = new ArrayList<PrintJob>();
+		synchronized (this) {
+			for (PrintJob job : pending.values()) {
+				if (job.portName.equals(portName)) {
+					waiting.add(job);
+				}
+			}
+		}
+		boolean left = false;
+		for (PrintJob job : waiting) {
+			if (reroute(job) == null) {
+				left = true;
+			}
+		}
+		return left;
+	}
+
+	/**
+	 * Gives up a job that has waited longer than MAX_AGE.
+	 */
+	private boolean isExpired(PrintJob job) {
+		if (System.currentTimeMillis() - job.created < MAX_AGE) {
+			return false;
+		}
+		finish(job, STATE_FAILED, "Not printed within "
+				+ (MAX_AGE / (60 * 60 * 1000)) + " hours");
+		return true;
+	}
+
+	/**
+	 * Removes a pending job from the queue. A job that is being sent at the
+	 * time still prints.
+	 *
+	 * @return true if the job was pending
+	 */
+	public boolean cancel(long id) {
+		awaitLoaded();
+		PrintJob job;
+		synchronized (this) {
+			job = pending.get(id);
+		}
+		return job != null && finish(job, STATE_CANCELLED, null);
+	}
+
+	/**
+	 * Cancels every pending job for the printer, or for every printer if
+	 * portName is null.
+	 *
+	 * @return the number of jobs cancelled
+	 */
+	public int clear(String portName) {
+		awaitLoaded();
+		int count = 0;
+		synchronized (this) {
+			for (PrintJob job : new ArrayList<PrintJob>(pending.values())) {
+				if ((portName == null || job.portName.equals(portName))
+						&& finish(job, STATE_CANCELLED, null)) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the pending jobs, followed by the jobs failed, unconfirmed or
+	 * cancelled during this run.
+	 */
+	public List<PrintJob> getJobs() {
+		awaitLoaded();
+		synchronized (this) {
+			List<PrintJob> jobs = new ArrayList<PrintJob>(pending.values());
+			jobs.addAll(finished);
+			return jobs;
+		}
+	}
+
+	/**
+	 * Schedules a drain for every printer that has jobs left over from a
+	 * previous run, once they have been loaded. Returns straight away.
+	 */
+	public void resume() {
+		// Runs after the load, on the same thread
+		retryTimer.execute(new Runnable() {
+			public void run() {
+				resumeLoaded();
+			}
+		});
+	}
+
+	private void resumeLoaded() {
+		List<String> ports = new ArrayList<String>();
+		synchronized (this) {
+			for (PrintJob job : pending.values()) {
+				if (!ports.contains(job.portName)) {
+					ports.add(job.portName);
+				}
+			}
+		}
+		for (String portName : ports) {
+			submitDrain(portName);
+		}
+	}
+
+	/**
+	 * Number of jobs waiting for the printer. Jobs of a previous run that are
+	 * still being loaded are not counted yet.
+	 */
+	public synchronized int pendingCount(String portName) {
+		int count = 0;
+		for (PrintJob job : pending.values()) {
+			if (job.portName.equals(portName)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private PrintJob nextPending(String portName) {
+		awaitLoaded();
+		return firstPending(portName);
+	}
+
+	private synchronized PrintJob firstPending(String portName) {
+		for (PrintJob job : pending.values()) {
+			if (job.portName.equals(portName)) {
+				return job;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Waits for the jobs of a previous run to be loaded. Must not be called
+	 * while holding the queue's lock, which the load takes to publish them.
+	 */
+	private void awaitLoaded() {
+		try {
+			loaded.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Takes a job out of the queue and records its final state.
+	 *
+	 * @return false if the job had already left the queue
+	 */
+	private synchronized boolean finish(PrintJob job, int state, String failure) {
+		if (pending.remove(job.id) == null) {
+			return false;
+		}
+		job.state = state;
+		job.failure = failure;
+		job.command = null;
+		if (state != STATE_PRINTED) {
+			finished.add(job);
+			if (finished.size() > MAX_FINISHED) {
+				finished.removeFirst();
+			}
+		}
+
+		try {
+			if (pending.isEmpty()) {
+				// Nothing left to recover, start the log over
+				closeLog();
+				if (file.exists() && !file.delete()) {
+					throw new IOException("Could not delete " + file);
+				}
+			} else {
+				ByteArrayOutputStream record = new ByteArrayOutputStream(16);
+				DataOutputStream out = new DataOutputStream(record);
+				out.writeByte(RECORD_STATE);
+				out.writeLong(job.id);
+				out.writeByte(state);
+				append(record.toByteArray());
+
+				if (file.length() > COMPACT_THRESHOLD) {
+					compact();
+				}
+			}
+		} catch (IOException e) {
+			// At worst the job is sent again after a crash
+			System.err.println("PrintJobQueue: " + e.getMessage());
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the queue is waiting to try the printer again after a job
+	 * failed.
+	 */
+	public synchronized boolean isRetryScheduled(String portName) {
+		return retryScheduled.contains(portName);
+	}
+
+	/**
+	 * Drains the printer's queue later, with backoff, unless that is already
+	 * scheduled.
+	 */
+	void scheduleRetry(final String portName) {
+		long delay;
+		synchronized (this) {
+			if (!retryScheduled.add(portName)) {
+				return;
+			}
+			Long last = retryDelays.get(portName);
+			delay = (last == null) ? MIN_RETRY_DELAY : Math.min(last * 2, MAX_RETRY_DELAY);
+			retryDelays.put(portName, delay);
+		}
+		retryTimer.schedule(new Runnable() {
+			public void run() {
+				synchronized (PrintJobQueue.this) {
+					retryScheduled.remove(portName);
+				}
+				submitDrain(portName);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void submitDrain(final String portName) {
+		PrintExecutor.getSharedExecutor().submit(portName, new Runnable() {
+			public void run() {
+				PrintJob head = nextPending(portName);
+				while (head != null && isExpired(head)) {
+					head = nextPending(portName);
+				}
+				if (head == null) {
+					return;
+				}
+				if (!isReady(head)) {
+					if (rerouteWaiting(portName)) {
+						scheduleRetry(portName);
+					}
+					return;
+				}
+				drain(portName);
+			}
+		});
+	}
+
+	/**
+	 * Checks that the printer has cleared the condition that failed the last
+	 * attempt before the queue is sent again.
+	 */
+	private boolean isReady(PrintJob job) {
+		StarPortPool pool = StarPortPool.getSharedPool();
+		StarIOPort port = null;
+		try {
+			// No probe, the status is read here anyway
+			port = pool.acquire(context, job.portName, job.portSettings,
+					StarPortPool.DEFAULT_OPEN_TIMEOUT, false);
+			StarPrinterStatus status = port.retreiveStatus();
+			StatusMonitor.getSharedMonitor().record(job.portName, status);
+			return !status.offline && !status.coverOpen
+					&& !status.receiptPaperEmpty;
+		} catch (StarIOPortException e) {
+			pool.release(port, e);
+			port = null;
+			StatusMonitor.getSharedMonitor().recordUnreachable(job.portName);
+			return false;
+		} finally {
+			pool.release(port);
+		}
+	}
+
+	private DataOutputStream openLog() throws IOException {
+		if (log == null) {
+			logFile = new FileOutputStream(file, true);
+			log = new DataOutputStream(new BufferedOutputStream(logFile));
+		}
+		return log;
+	}
+
+	private void append(byte[] record) throws IOException {
+		openLog().write(record);
+		log.flush();
+		logFile.getFD().sync();
+	}
+
+	/**
+	 * Writes a job record. The command fragments are written one by one
+	 * rather than being joined first.
+	 */
+	private static void writeJob(DataOutputStream out, PrintJob job)
+			throws IOException {
+		out.writeByte(RECORD_JOB);
+		out.writeLong(job.id);
+		out.writeLong(job.created);
+		out.writeUTF(job.portName);
+		out.writeUTF(job.portSettings);
+		out.writeInt(job.command.length());
+		job.command.writeTo(out);
+		if (job.group != null) {
+			out.writeByte(RECORD_GROUP);
+			out.writeLong(job.id);
+			out.writeUTF(job.group);
+		}
+	}
+
+	private void closeLog() {
+		if (log != null) {
+			try {
+				log.close();
+			} catch (IOException e) {
+			}
+			log = null;
+			logFile = null;
+		}
+	}
+
+	/**
+	 * Cuts off a record that could not be written completely, so records
+	 * appended later are not read as part of it. If the log cannot be
+	 * truncated it is rewritten from the pending jobs instead.
+	 */
+	private void discardTail(long length) {
+		// Drop the buffered rest of the record rather than flushing it
+		FileOutputStream torn = logFile;
+		log = null;
+		logFile = null;
+		try {
+			torn.getChannel().truncate(length);
+			torn.getFD().sync();
+		} catch (IOException e) {
+			try {
+				compact();
+			} catch (IOException ex) {
+				System.err.println("PrintJobQueue: " + ex.getMessage());
+			}
+		} finally {
+			try {
+				torn.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Rewrites the log with only the pending jobs.
+	 */
+	private void compact() throws IOException {
+		closeLog();
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream tmpFile = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tmpFile));
+		try {
+			for (PrintJob job : pending.values()) {
+				writeJob(out, job);
+			}
+			out.flush();
+			tmpFile.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Could not replace " + file);
+		}
+	}
+
+	/**
+	 * Replays the log. A record cut short by a crash ends the replay, and
+	 * only then is the log rewritten, so later records are not appended
+	 * after the torn one.
+	 */
+	private void load() {
+		if (!file.exists()) {
+			return;
+		}
+
+		LinkedHashMap<Long, PrintJob> jobs = new LinkedHashMap<Long, PrintJob>();
+		long lastId = 0;
+		boolean torn = false;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			int type;
+			while ((type = in.read()) != -1) {
+				long id = in.readLong();
+				if (type == RECORD_JOB) {
+					long created = in.readLong();
+					String portName = in.readUTF();
+					String portSettings = in.readUTF();
+					byte[] command = new byte[in.readInt()];
+					in.readFully(command);
+					CommandBuffer buffer = new CommandBuffer();
+					buffer.add(command);
+					jobs.put(id, new PrintJob(id, portName, portSettings,
+							created, buffer));
+				} else if (type == RECORD_GROUP) {
+					String group = in.readUTF();
+					PrintJob job = jobs.get(id);
+					if (job != null) {
+						job.group = group;
+					}
+				} else if (type == RECORD_STATE) {
+					if (in.readByte() != STATE_PENDING) {
+						jobs.remove(id);
+					}
+				} else {
+					throw new IOException("Corrupt print job log");
+				}
+				lastId = Math.max(lastId, id);
+			}
+		} catch (EOFException e) {
+			// A torn record from a crash mid-write
+			torn = true;
+		} catch (IOException e) {
+			System.err.println("PrintJobQueue: " + e.getMessage());
+			torn = true;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		synchronized (this) {
+			pending.putAll(jobs);
+			nextId = Math.max(nextId, lastId + 1);
+			if (torn) {
+				try {
+					compact();
+				} catch (IOException e) {
+					System.err.println("PrintJobQueue: " + e.getMessage());
+				}
+			}
+		}
+	}
+}
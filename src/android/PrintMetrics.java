@@ -0,0 +1,376 @@
+package com.star.printer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Timings of print jobs. A job is timed on the printer's thread from the
+ * moment its action starts: drawing and template rendering, image encoding,
+ * getting the port, writing to it and waiting for endCheckedBlock are
+ * measured separately, along with the bytes written. Finished jobs are added
+ * to per-printer counters built from atomics, so recording never blocks a
+ * printer thread on another, and can optionally be appended to a rolling
+ * log file. Log lines are written by a single background thread; a printer
+ * thread only formats its line and hands it over, and lines are dropped if
+ * the writer falls too far behind.
+ */
+public class PrintMetrics {
+
+	public static final int STAGE_RENDER = 0;
+	public static final int STAGE_ENCODE = 1;
+	public static final int STAGE_CONNECT = 2;
+	public static final int STAGE_WRITE = 3;
+	public static final int STAGE_CONFIRM = 4;
+	public static final String[] STAGE_NAMES = { "render", "encode",
+			"connect", "write", "confirm" };
+
+	public static final int REASON_COVER_OPEN = 0;
+	public static final int REASON_PAPER_EMPTY = 1;
+	public static final int REASON_OFFLINE = 2;
+	public static final int REASON_UNREACHABLE = 3;
+	public static final int REASON_OTHER = 4;
+	public static final String[] FAILURE_REASONS = { "coverOpen",
+			"paperEmpty", "offline", "unreachable", "other" };
+
+	// Latency histogram buckets: bucket i holds latencies below 2^(i/4) ms,
+	// the last one everything longer
+	private static final int BUCKETS = 80;
+	// Jobs finished in each of the last minutes, for jobs per minute
+	private static final int MINUTES = 16;
+	private static final int RECENT_JOBS = 16;
+	// Log lines waiting for the writer thread
+	private static final int MAX_LOG_BACKLOG = 256;
+
+	private static final ConcurrentHashMap<String, Aggregate> aggregates = new ConcurrentHashMap<String, Aggregate>();
+	private static final ThreadLocal<Job> current = new ThreadLocal<Job>();
+
+	private static volatile File logFile;
+	private static volatile long maxLogBytes;
+	private static final ExecutorService logWriter = new ThreadPoolExecutor(1,
+			1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+					MAX_LOG_BACKLOG), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "PrintMetrics log");
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, new ThreadPoolExecutor.DiscardPolicy());
+
+	/**
+	 * The timings of one job.
+	 */
+	public static class Job {
+		public final String portName;
+		/** System.currentTimeMillis() when the job started. */
+		public final long started;
+		final long startNanos;
+		/** Nanoseconds spent in each stage. */
+		public final long[] stageNanos = new long[STAGE_NAMES.length];
+		public long totalNanos;
+		public long bytes;
+		/** Times the printer was written to, including retries. */
+		public int attempts;
+		public boolean succeeded;
+		/** One of the REASON_ constants, or -1. */
+		public int failureReason = -1;
+
+		Job(String portName) {
+			this.portName = portName;
+			this.started = System.currentTimeMillis();
+			this.startNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * The counters of one printer.
+	 */
+	public static class Aggregate {
+		public final AtomicLong jobs = new AtomicLong();
+		public final AtomicLong failures = new AtomicLong();
+		public final AtomicLong retries = new AtomicLong();
+		public final AtomicLong bytes = new AtomicLong();
+		final AtomicLongArray stageNanos = new AtomicLongArray(STAGE_NAMES.length);
+		final AtomicLongArray failureReasons = new AtomicLongArray(FAILURE_REASONS.length);
+		final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+		// Job count of each minute slot and the minute it counts
+		final AtomicLongArray minuteJobs = new AtomicLongArray(MINUTES);
+		final AtomicLongArray minuteStamps = new AtomicLongArray(MINUTES);
+		final AtomicReferenceArray<Job> recent = new AtomicReferenceArray<Job>(RECENT_JOBS);
+		final AtomicLong recentCount = new AtomicLong();
+
+		void add(Job job) {
+			jobs.incrementAndGet();
+			bytes.addAndGet(job.bytes);
+			if (job.attempts > 1) {
+				retries.addAndGet(job.attempts - 1);
+			}
+			if (!job.succeeded) {
+				failures.incrementAndGet();
+				if (job.failureReason >= 0) {
+					failureReasons.incrementAndGet(job.failureReason);
+				}
+			}
+			for (int i = 0; i < STAGE_NAMES.length; i++) {
+				stageNanos.addAndGet(i, job.stageNanos[i]);
+			}
+			latency.incrementAndGet(bucket(job.totalNanos / 1000000));
+
+			long minute = System.currentTimeMillis() / 60000;
+			int slot = (int) (minute % MINUTES);
+			long stamp = minuteStamps.get(slot);
+			if (stamp != minute && minuteStamps.compareAndSet(slot, stamp, minute)) {
+				// A job counted by another thread between the two calls may
+				// be lost; the rate is an estimate
+				minuteJobs.set(slot, 0);
+			}
+			minuteJobs.incrementAndGet(slot);
+
+			recent.set((int) (recentCount.getAndIncrement() % RECENT_JOBS), job);
+		}
+
+		/**
+		 * Latency in milliseconds below which the fraction of jobs lies,
+		 * to the resolution of the histogram buckets.
+		 */
+		public long percentile(double fraction) {
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				total += latency.get(i);
+			}
+			if (total == 0) {
+				return 0;
+			}
+
+			long rank = (long) Math.ceil(total * fraction);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += latency.get(i);
+				if (seen >= rank) {
+					return bucketLimit(i);
+				}
+			}
+			return bucketLimit(BUCKETS - 1);
+		}
+
+		/**
+		 * Average jobs per minute over the last minutes, not counting the
+		 * current one.
+		 */
+		public double jobsPerMinute(int minutes) {
+			minutes = Math.min(minutes, MINUTES - 1);
+			long now = System.currentTimeMillis() / 60000;
+			long count = 0;
+			for (int i = 1; i <= minutes; i++) {
+				int slot = (int) ((now - i) % MINUTES);
+				if (minuteStamps.get(slot) == now - i) {
+					count += minuteJobs.get(slot);
+				}
+			}
+			return (double) count / minutes;
+		}
+
+		public long stageNanos(int stage) {
+			return stageNanos.get(stage);
+		}
+
+		public long failures(int reason) {
+			return failureReasons.get(reason);
+		}
+
+		/**
+		 * The last jobs, oldest first.
+		 */
+		public List<Job> recentJobs() {
+			List<Job> jobs = new ArrayList<Job>(RECENT_JOBS);
+			long end = recentCount.get();
+			for (long i = Math.max(0, end - RECENT_JOBS); i < end; i++) {
+				Job job = recent.get((int) (i % RECENT_JOBS));
+				if (job != null) {
+					jobs.add(job);
+				}
+			}
+			return jobs;
+		}
+	}
+
+	private static int bucket(long millis) {
+		int bucket = 0;
+		while (bucket < BUCKETS - 1 && millis >= bucketLimit(bucket)) {
+			bucket++;
+		}
+		return bucket;
+	}
+
+	private static long bucketLimit(int bucket) {
+		return (long) Math.ceil(Math.pow(2, bucket / 4.0));
+	}
+
+	/**
+	 * Starts timing a job for the printer on this thread, unless one is
+	 * already being timed.
+	 *
+	 * @return true if a job was started, and must be ended with
+	 *         {@link #end()}
+	 */
+	public static boolean begin(String portName) {
+		if (current.get() != null) {
+			return false;
+		}
+		current.set(new Job(portName));
+		return true;
+	}
+
+	/**
+	 * Adds the time since startNanos, a System.nanoTime(), to a stage of the
+	 * job timed on this thread.
+	 */
+	public static void stage(int stage, long startNanos) {
+		Job job = current.get();
+		if (job != null) {
+			job.stageNanos[stage] += System.nanoTime() - startNanos;
+		}
+	}
+
+	/**
+	 * Records that the job timed on this thread wrote to the printer.
+	 *
+	 * @param failureReason
+	 *            One of the REASON_ constants, or -1 if the write succeeded
+	 */
+	public static void attempt(long bytes, int failureReason) {
+		Job job = current.get();
+		if (job != null) {
+			job.attempts++;
+			job.bytes += bytes;
+			job.succeeded = failureReason < 0;
+			job.failureReason = failureReason;
+		}
+	}
+
+	/**
+	 * Works out why a write to the printer failed from its last status.
+	 */
+	public static int failureReason(StatusMonitor.Snapshot status) {
+		if (status == null) {
+			return REASON_OTHER;
+		} else if (!status.reachable) {
+			return REASON_UNREACHABLE;
+		} else if (status.coverOpen) {
+			return REASON_COVER_OPEN;
+		} else if (status.paperEmpty) {
+			return REASON_PAPER_EMPTY;
+		} else if (status.offline) {
+			return REASON_OFFLINE;
+		}
+		return REASON_OTHER;
+	}
+
+	/**
+	 * Ends the job timed on this thread. Jobs that never wrote to the
+	 * printer, such as status checks, are not counted.
+	 */
+	public static void end() {
+		Job job = current.get();
+		current.remove();
+		if (job == null || job.attempts == 0) {
+			return;
+		}
+		job.totalNanos = System.nanoTime() - job.startNanos;
+		aggregateFor(job.portName).add(job);
+		log(job);
+	}
+
+	public static Aggregate aggregateFor(String portName) {
+		Aggregate aggregate = aggregates.get(portName);
+		if (aggregate == null) {
+			aggregate = new Aggregate();
+			Aggregate existing = aggregates.putIfAbsent(portName, aggregate);
+			if (existing != null) {
+				aggregate = existing;
+			}
+		}
+		return aggregate;
+	}
+
+	public static Map<String, Aggregate> getAggregates() {
+		return aggregates;
+	}
+
+	public static void reset() {
+		aggregates.clear();
+	}
+
+	/**
+	 * Appends a line for every finished job to file, moving it to file.1
+	 * once it grows past maxBytes. A null file stops logging.
+	 */
+	public static void setLog(File file, long maxBytes) {
+		maxLogBytes = maxBytes;
+		logFile = file;
+	}
+
+	private static void log(Job job) {
+		final File file = logFile;
+		if (file == null) {
+			return;
+		}
+		final long maxBytes = maxLogBytes;
+
+		StringBuilder line = new StringBuilder(128);
+		line.append(job.started).append('\t').append(job.portName);
+		line.append('\t').append(job.succeeded ? "ok" : FAILURE_REASONS[Math.max(0, job.failureReason)]);
+		line.append('\t').append(job.totalNanos / 1000000);
+		for (int i = 0; i < STAGE_NAMES.length; i++) {
+			line.append('\t').append(job.stageNanos[i] / 1000000);
+		}
+		line.append('\t').append(job.bytes).append('\t').append(job.attempts);
+		line.append('\n');
+
+		final String text = line.toString();
+		logWriter.execute(new Runnable() {
+			public void run() {
+				write(file, maxBytes, text);
+			}
+		});
+	}
+
+	/**
+	 * Appends a line to the log. Runs on the log writer thread only.
+	 */
+	private static void write(File file, long maxBytes, String line) {
+		if (file.length() + line.length() > maxBytes) {
+			File previous = new File(file.getPath() + ".1");
+			previous.delete();
+			file.renameTo(previous);
+		}
+
+		Writer out = null;
+		try {
+			out = new FileWriter(file, true);
+			out.write(line);
+		} catch (IOException e) {
+			System.err.println("PrintMetrics: " + e.getMessage());
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
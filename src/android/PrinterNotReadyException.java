@@ -0,0 +1,18 @@
+package com.star.printer;
+
+import com.starmicronics.stario.StarIOPortException;
+
+/**
+ * Thrown when the printer answered but reported that it cannot print, because
+ * it is offline, out of paper or has its cover open. Unlike other
+ * StarIOPortExceptions it says nothing is wrong with the connection, so the
+ * port can be kept open.
+ */
+public class PrinterNotReadyException extends StarIOPortException {
+
+	private static final long serialVersionUID = 1L;
+
+	public PrinterNotReadyException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,301 @@
+package com.star.printer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What the plugin needs to know about a printer model: the printable width,
+ * the character columns of font A and the raster commands it understands.
+ * Profiles are registered by name ("3inch (80mm)", "TSP650", ...) and each
+ * port is resolved to a profile once, so encoders look the model up instead
+ * of matching paper size strings.
+ */
+public class PrinterProfile {
+
+	/** ESC X 4 bands of 24 rows, the mode of the portable printers. */
+	public static final int RASTER_ESC_X4 = 1;
+	/** Star raster mode, ESC * r, of the Star Line desktop printers. */
+	public static final int RASTER_STAR = 2;
+	/** A single ESC/POS GS 8 L raster graphics command. */
+	public static final int RASTER_ESCPOS = 4;
+	/** ESC K bit image lines of the impact printers. */
+	public static final int RASTER_IMPACT = 8;
+
+	/** Wait before asking a printer that did not answer for its model again. */
+	public static final long IDENTIFY_BACKOFF = 60 * 1000L;
+	public static final long MAX_IDENTIFY_BACKOFF = 30 * 60 * 1000L;
+
+	private static final Map<String, PrinterProfile> profiles = new LinkedHashMap<String, PrinterProfile>();
+	private static final Map<String, PrinterProfile> models = new LinkedHashMap<String, PrinterProfile>();
+	private static final ConcurrentHashMap<String, PrinterProfile> ports = new ConcurrentHashMap<String, PrinterProfile>();
+	// Ports whose profile was assigned or read from the printer itself
+	private static final ConcurrentHashMap<String, Boolean> identified = new ConcurrentHashMap<String, Boolean>();
+	// Ports the printer could not be identified on: {retry at, backoff}
+	private static final ConcurrentHashMap<String, long[]> unidentified = new ConcurrentHashMap<String, long[]>();
+	// Ports that encode images twice and send the shorter command
+	private static final ConcurrentHashMap<String, Boolean> smallest = new ConcurrentHashMap<String, Boolean>();
+
+	public static final PrinterProfile PORTABLE_2INCH = register(new PrinterProfile(
+			"2inch (58mm)", 384, 203, 32, RASTER_ESC_X4 | RASTER_ESCPOS, true, 4096));
+	public static final PrinterProfile PORTABLE_3INCH = register(new PrinterProfile(
+			"3inch (80mm)", 576, 203, 48, RASTER_ESC_X4 | RASTER_ESCPOS, true, 4096));
+	public static final PrinterProfile PORTABLE_4INCH = register(new PrinterProfile(
+			"4inch (112mm)", 832, 203, 69, RASTER_ESC_X4 | RASTER_ESCPOS, true, 4096));
+	public static final PrinterProfile TSP100 = register(new PrinterProfile(
+			"TSP100", 576, 203, 48, RASTER_STAR, true, 0));
+	public static final PrinterProfile TSP650 = register(new PrinterProfile(
+			"TSP650", 576, 203, 48, RASTER_STAR, true, 0));
+	public static final PrinterProfile SP700 = register(new PrinterProfile(
+			"SP700", 199, 85, 33, RASTER_IMPACT, false, 0));
+
+	static {
+		registerModel("SM-S2", PORTABLE_2INCH);
+		registerModel("SM-L2", PORTABLE_2INCH);
+		registerModel("SM-S3", PORTABLE_3INCH);
+		registerModel("SM-T3", PORTABLE_3INCH);
+		registerModel("SM-T4", PORTABLE_4INCH);
+		registerModel("TSP1", TSP100);
+		registerModel("TSP6", TSP650);
+		registerModel("TSP7", TSP650);
+		registerModel("TSP8", TSP650);
+		registerModel("SP7", SP700);
+	}
+
+	private final String name;
+	private final int dotWidth;
+	private final int dpi;
+	private final int columns;
+	private final int rasterFormats;
+	private final boolean compression;
+	private final int maxBandBytes;
+
+	/**
+	 * @param name
+	 *            Name the profile is registered under
+	 * @param dotWidth
+	 *            Printable width in dots
+	 * @param dpi
+	 *            Dots per inch
+	 * @param columns
+	 *            Characters per line in font A
+	 * @param rasterFormats
+	 *            The RASTER_ constants of the commands the printer supports
+	 * @param compression
+	 *            Whether raster data may be compressed
+	 * @param maxBandBytes
+	 *            Largest raster command the printer accepts, 0 for no limit
+	 */
+	public PrinterProfile(String name, int dotWidth, int dpi, int columns,
+			int rasterFormats, boolean compression, int maxBandBytes) {
+		if (dotWidth <= 0 || rasterFormats == 0) {
+			throw new IllegalArgumentException("Invalid printer profile " + name);
+		}
+		this.name = name;
+		this.dotWidth = dotWidth;
+		this.dpi = dpi;
+		this.columns = columns;
+		this.rasterFormats = rasterFormats;
+		this.compression = compression;
+		this.maxBandBytes = maxBandBytes;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getDotWidth() {
+		return dotWidth;
+	}
+
+	public int getDpi() {
+		return dpi;
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public boolean supports(int rasterFormat) {
+		return (rasterFormats & rasterFormat) != 0;
+	}
+
+	public boolean supportsCompression() {
+		return compression;
+	}
+
+	public int getMaxBandBytes() {
+		return maxBandBytes;
+	}
+
+	/**
+	 * Whether a single raster command of this many bytes fits the printer.
+	 */
+	public boolean fitsBand(int bytes) {
+		return maxBandBytes == 0 || bytes <= maxBandBytes;
+	}
+
+	/**
+	 * Adds or replaces a profile. Encoded images are cached by profile name,
+	 * so a changed profile should be registered under a new name.
+	 */
+	public static PrinterProfile register(PrinterProfile profile) {
+		synchronized (profiles) {
+			profiles.put(profile.name, profile);
+		}
+		return profile;
+	}
+
+	/**
+	 * Returns the profile registered under name.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if there is none
+	 */
+	public static PrinterProfile forName(String name) {
+		PrinterProfile profile;
+		synchronized (profiles) {
+			profile = profiles.get(name);
+		}
+		if (profile == null) {
+			throw new IllegalArgumentException("Unknown printer profile " + name);
+		}
+		return profile;
+	}
+
+	/**
+	 * Uses the profile for printers whose model name, as reported by
+	 * StarIOPort.getFirmwareInformation, starts with prefix. The longest
+	 * matching prefix wins.
+	 */
+	public static void registerModel(String prefix, PrinterProfile profile) {
+		synchronized (models) {
+			models.put(prefix, profile);
+		}
+	}
+
+	/**
+	 * Returns the profile registered for a model name, or null.
+	 */
+	public static PrinterProfile forModel(String modelName) {
+		if (modelName == null) {
+			return null;
+		}
+		String name = modelName.trim().toUpperCase();
+
+		PrinterProfile match = null;
+		int matchLength = -1;
+		synchronized (models) {
+			for (Map.Entry<String, PrinterProfile> model : models.entrySet()) {
+				String prefix = model.getKey();
+				if (prefix.length() > matchLength && name.startsWith(prefix)) {
+					match = model.getValue();
+					matchLength = prefix.length();
+				}
+			}
+		}
+		return match;
+	}
+
+	/**
+	 * Uses the profile for every job sent to the port from now on.
+	 */
+	public static void assign(String portName, PrinterProfile profile) {
+		ports.put(portName, profile);
+		identified.put(portName, Boolean.TRUE);
+		unidentified.remove(portName);
+	}
+
+	/**
+	 * Assigns the port the profile of the model named in the firmware
+	 * information the printer reported. A model without a profile keeps the
+	 * one derived from the port settings.
+	 *
+	 * @param firmware
+	 *            The map returned by StarIOPort.getFirmwareInformation
+	 */
+	public static void identify(String portName, Map<String, String> firmware) {
+		PrinterProfile profile = forModel(firmware.get("ModelName"));
+		if (profile != null) {
+			ports.put(portName, profile);
+		}
+		identified.put(portName, Boolean.TRUE);
+		unidentified.remove(portName);
+	}
+
+	/**
+	 * Whether the port's profile was assigned or identified from the
+	 * printer, rather than guessed from the port settings.
+	 */
+	public static boolean isIdentified(String portName) {
+		return identified.containsKey(portName);
+	}
+
+	/**
+	 * Whether the printer on the port should be asked for its model: it has
+	 * not been identified and the backoff after the last failed attempt has
+	 * passed.
+	 */
+	public static boolean shouldIdentify(String portName) {
+		if (identified.containsKey(portName)) {
+			return false;
+		}
+		long[] failure = unidentified.get(portName);
+		return failure == null || System.currentTimeMillis() >= failure[0];
+	}
+
+	/**
+	 * Records that the printer on the port could not be identified. The
+	 * next attempt waits IDENTIFY_BACKOFF, doubling with every failure up to
+	 * MAX_IDENTIFY_BACKOFF, so an unreachable printer does not hold up every
+	 * job with another connection attempt.
+	 */
+	public static void identifyFailed(String portName) {
+		long[] previous = unidentified.get(portName);
+		long backoff = (previous == null) ? IDENTIFY_BACKOFF : Math.min(
+				previous[1] * 2, MAX_IDENTIFY_BACKOFF);
+		unidentified.put(portName, new long[] {
+				System.currentTimeMillis() + backoff, backoff });
+	}
+
+	/**
+	 * Makes images sent to the port be encoded in the two fastest formats of
+	 * its profile, keeping the shorter command. Worth it on slow links such
+	 * as Bluetooth, where sending takes far longer than encoding.
+	 */
+	public static void setSmallestEncoding(String portName, boolean enabled) {
+		if (enabled) {
+			smallest.put(portName, Boolean.TRUE);
+		} else {
+			smallest.remove(portName);
+		}
+	}
+
+	public static boolean isSmallestEncoding(String portName) {
+		return smallest.containsKey(portName);
+	}
+
+	/**
+	 * Returns the profile of the printer on the port. A port that has not
+	 * been assigned one is resolved from its port settings on first use: the
+	 * portable "mini" and ESC/POS settings get the 3 inch portable profile,
+	 * other settings the Star Line TSP650 profile.
+	 */
+	public static PrinterProfile forPort(String portName, String portSettings) {
+		PrinterProfile profile = ports.get(portName);
+		if (profile == null) {
+			String settings = portSettings.toLowerCase();
+			if (settings.contains("mini") || settings.contains("portable")
+					|| settings.contains("escpos")) {
+				profile = PORTABLE_3INCH;
+			} else {
+				profile = TSP650;
+			}
+			PrinterProfile assigned = ports.putIfAbsent(portName, profile);
+			if (assigned != null) {
+				profile = assigned;
+			}
+		}
+		return profile;
+	}
+}
@@ -0,0 +1,380 @@
+package com.star.printer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import android.content.Context;
+
+import com.starmicronics.stario.PortInfo;
+import com.starmicronics.stario.StarIOPort;
+import com.starmicronics.stario.StarIOPortException;
+
+/**
+ * The printers the app knows about, found with StarIOPort.searchPrinter or
+ * added by hand, and the groups they belong to. The registry is kept in app
+ * storage so printers do not have to be searched for again after a restart.
+ *
+ * Jobs address printers with a port name, "group:name" to print on every
+ * printer of a group, or "leastBusy:name" to print on the printer of a group
+ * with the fewest jobs waiting that is not known to be out of order.
+ */
+public class PrinterRegistry {
+
+	public static final String GROUP_PREFIX = "group:";
+	public static final String LEAST_BUSY_PREFIX = "leastBusy:";
+
+	private static final String FILE_NAME = "starprinter-printers.properties";
+
+	private static PrinterRegistry sharedRegistry;
+
+	public static class Printer {
+		private final String portName;
+		private String portSettings;
+		private String modelName;
+		private String macAddress;
+		private final TreeSet<String> groups = new TreeSet<String>();
+		// When a job was last sent here by leastBusy, to spread ties
+		private long lastChosen;
+
+		Printer(String portName, String portSettings) {
+			this.portName = portName;
+			this.portSettings = portSettings;
+		}
+
+		public String getPortName() {
+			return portName;
+		}
+
+		public String getPortSettings() {
+			return portSettings;
+		}
+
+		public String getModelName() {
+			return modelName;
+		}
+
+		public String getMacAddress() {
+			return macAddress;
+		}
+
+		public synchronized List<String> getGroups() {
+			return new ArrayList<String>(groups);
+		}
+	}
+
+	private final File file;
+	private final Map<String, Printer> printers = new LinkedHashMap<String, Printer>();
+
+	PrinterRegistry(File file) {
+		this.file = file;
+		load();
+	}
+
+	public static synchronized PrinterRegistry getSharedRegistry(Context context) {
+		if (sharedRegistry == null) {
+			sharedRegistry = new PrinterRegistry(new File(context
+					.getApplicationContext().getFilesDir(), FILE_NAME));
+		}
+		return sharedRegistry;
+	}
+
+	/**
+	 * Searches for printers and adds the ones found to the registry. Known
+	 * models are assigned their printer profile.
+	 *
+	 * @param target
+	 *            "BT:" for paired Bluetooth printers, "TCP:" for LAN printers
+	 *            or "USB:", as passed to StarIOPort.searchPrinter
+	 * @return the printers found
+	 */
+	public List<Printer> discover(String target) throws StarIOPortException {
+		List<PortInfo> found = StarIOPort.searchPrinter(target);
+
+		List<Printer> result = new ArrayList<Printer>();
+		synchronized (this) {
+			for (PortInfo info : found) {
+				PrinterProfile profile = PrinterProfile.forModel(info.getModelName());
+				Printer printer = printers.get(info.getPortName());
+				if (printer == null) {
+					printer = new Printer(info.getPortName(), defaultSettings(
+							info.getPortName(), profile));
+					printers.put(printer.portName, printer);
+				}
+				printer.modelName = info.getModelName();
+				printer.macAddress = info.getMacAddress();
+				if (profile != null) {
+					PrinterProfile.assign(printer.portName, profile);
+				}
+				result.add(printer);
+			}
+			save();
+		}
+		return result;
+	}
+
+	/**
+	 * Port settings for a newly found printer: "mini" for portable printers
+	 * and Bluetooth printers of unknown models, none for the others.
+	 */
+	private static String defaultSettings(String portName, PrinterProfile profile) {
+		if (profile != null) {
+			return profile.supports(PrinterProfile.RASTER_ESC_X4) ? "mini" : "";
+		}
+		return portName.startsWith("BT:") ? "mini" : "";
+	}
+
+	/**
+	 * Adds a printer by hand, or changes its port settings.
+	 */
+	public synchronized Printer add(String portName, String portSettings) {
+		Printer printer = printers.get(portName);
+		if (printer == null) {
+			printer = new Printer(portName, portSettings);
+			printers.put(portName, printer);
+		} else {
+			printer.portSettings = portSettings;
+		}
+		save();
+		return printer;
+	}
+
+	public synchronized void remove(String portName) {
+		if (printers.remove(portName) != null) {
+			save();
+		}
+	}
+
+	/**
+	 * Replaces the groups a registered printer belongs to.
+	 */
+	public synchronized void setGroups(String portName, Collection<String> groups) {
+		Printer printer = printers.get(portName);
+		if (printer == null) {
+			throw new IllegalArgumentException("Unknown printer " + portName);
+		}
+		synchronized (printer) {
+			printer.groups.clear();
+			printer.groups.addAll(groups);
+		}
+		save();
+	}
+
+	public synchronized List<Printer> getPrinters() {
+		return new ArrayList<Printer>(printers.values());
+	}
+
+	public synchronized Printer getPrinter(String portName) {
+		return printers.get(portName);
+	}
+
+	public synchronized List<Printer> members(String group) {
+		List<Printer> members = new ArrayList<Printer>();
+		for (Printer printer : printers.values()) {
+			synchronized (printer) {
+				if (printer.groups.contains(group)) {
+					members.add(printer);
+				}
+			}
+		}
+		return members;
+	}
+
+	/**
+	 * Returns the printers a job addressed to address goes to.
+	 *
+	 * @param address
+	 *            A port name, "group:name" or "leastBusy:name"
+	 * @param portSettings
+	 *            Port settings of a port name that is not registered
+	 * @param queue
+	 *            The job queue, whose waiting jobs count towards how busy a
+	 *            printer is
+	 */
+	public List<Printer> resolve(String address, String portSettings,
+			PrintJobQueue queue) {
+		List<Printer> result = new ArrayList<Printer>();
+
+		if (address.startsWith(GROUP_PREFIX)) {
+			result = members(address.substring(GROUP_PREFIX.length()));
+		} else if (address.startsWith(LEAST_BUSY_PREFIX)) {
+			List<Printer> members = members(address.substring(LEAST_BUSY_PREFIX.length()));
+			if (!members.isEmpty()) {
+				result.add(leastBusy(members, queue));
+			}
+		} else {
+			Printer printer = getPrinter(address);
+			result.add((printer != null) ? printer : new Printer(address,
+					portSettings));
+			return result;
+		}
+
+		if (result.isEmpty()) {
+			throw new IllegalArgumentException("No printers in " + address);
+		}
+		return result;
+	}
+
+	/**
+	 * Picks the printer with the fewest jobs submitted or waiting in the job
+	 * queue. Printers whose last status shows them unreachable, offline, with
+	 * the cover open or out of paper are only picked if every printer is.
+	 * Ties go to the printer that was picked longest ago.
+	 */
+	private Printer leastBusy(List<Printer> members, PrintJobQueue queue) {
+		PrintExecutor executor = PrintExecutor.getSharedExecutor();
+		StatusMonitor monitor = StatusMonitor.getSharedMonitor();
+
+		Printer best = null;
+		boolean bestAvailable = false;
+		int bestLoad = 0;
+		synchronized (this) {
+			for (Printer printer : members) {
+				boolean available = isAvailable(monitor.getStatus(printer.portName));
+				int load = executor.queuedCount(printer.portName)
+						+ queue.pendingCount(printer.portName);
+
+				if (best == null
+						|| (available && !bestAvailable)
+						|| (available == bestAvailable && (load < bestLoad
+								|| (load == bestLoad && printer.lastChosen < best.lastChosen)))) {
+					best = printer;
+					bestAvailable = available;
+					bestLoad = load;
+				}
+			}
+			best.lastChosen = System.currentTimeMillis();
+		}
+		return best;
+	}
+
+	/**
+	 * The least busy printer of a group, other than the given one, whose
+	 * last known status says it can print; used to move a job off a printer
+	 * that is not ready.
+	 *
+	 * @return the printer, or null if no other member of the group is known
+	 *         to be ready
+	 */
+	public Printer alternative(String group, String portName, PrintJobQueue queue) {
+		StatusMonitor monitor = StatusMonitor.getSharedMonitor();
+		List<Printer> others = new ArrayList<Printer>();
+		for (Printer printer : members(group)) {
+			StatusMonitor.Snapshot status = monitor.getStatus(printer.portName);
+			// Unlike leastBusy, a printer never checked is not trusted here
+			if (!printer.portName.equals(portName) && status != null
+					&& isAvailable(status)) {
+				others.add(printer);
+			}
+		}
+		return others.isEmpty() ? null : leastBusy(others, queue);
+	}
+
+	private static boolean isAvailable(StatusMonitor.Snapshot status) {
+		return status == null
+				|| (status.reachable && !status.offline && !status.coverOpen
+						&& !status.paperEmpty);
+	}
+
+	private void load() {
+		if (!file.exists()) {
+			return;
+		}
+
+		Properties stored = new Properties();
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			stored.load(in);
+		} catch (IOException e) {
+			System.err.println("PrinterRegistry: " + e.getMessage());
+			return;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		int count = Integer.parseInt(stored.getProperty("count", "0"));
+		for (int i = 0; i < count; i++) {
+			String prefix = i + "/";
+			String portName = stored.getProperty(prefix + "portName");
+			if (portName == null) {
+				continue;
+			}
+			Printer printer = new Printer(portName, stored.getProperty(prefix
+					+ "portSettings", ""));
+			printer.modelName = stored.getProperty(prefix + "modelName");
+			printer.macAddress = stored.getProperty(prefix + "macAddress");
+			String groups = stored.getProperty(prefix + "groups", "");
+			for (String group : groups.split("\n")) {
+				if (group.length() > 0) {
+					printer.groups.add(group);
+				}
+			}
+			printers.put(portName, printer);
+
+			PrinterProfile profile = PrinterProfile.forModel(printer.modelName);
+			if (profile != null) {
+				PrinterProfile.assign(portName, profile);
+			}
+		}
+	}
+
+	private void save() {
+		Properties stored = new Properties();
+		int i = 0;
+		for (Printer printer : printers.values()) {
+			String prefix = i + "/";
+			stored.setProperty(prefix + "portName", printer.portName);
+			stored.setProperty(prefix + "portSettings", printer.portSettings);
+			if (printer.modelName != null) {
+				stored.setProperty(prefix + "modelName", printer.modelName);
+			}
+			if (printer.macAddress != null) {
+				stored.setProperty(prefix + "macAddress", printer.macAddress);
+			}
+			StringBuilder groups = new StringBuilder();
+			for (String group : printer.getGroups()) {
+				groups.append(group).append('\n');
+			}
+			stored.setProperty(prefix + "groups", groups.toString());
+			i++;
+		}
+		stored.setProperty("count", Integer.toString(i));
+
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			stored.store(out, null);
+			out.getFD().sync();
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not replace " + file);
+			}
+		} catch (IOException e) {
+			// At worst the printers are searched for again
+			System.err.println("PrinterRegistry: " + e.getMessage());
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
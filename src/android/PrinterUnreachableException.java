@@ -0,0 +1,20 @@
+package com.star.printer;
+
+import com.starmicronics.stario.StarIOPortException;
+
+/**
+ * Thrown when a job could not be sent because the port could not be opened
+ * or did not answer before any of the job was written. Nothing has printed
+ * and nothing is wrong with the job itself, so it waits in the queue for
+ * the printer instead of using up its attempts. The original failure is the
+ * cause.
+ */
+public class PrinterUnreachableException extends StarIOPortException {
+
+	private static final long serialVersionUID = 1L;
+
+	public PrinterUnreachableException(StarIOPortException cause) {
+		super(cause.getMessage());
+		initCause(cause);
+	}
+}
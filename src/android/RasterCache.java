@@ -0,0 +1,331 @@
+package com.star.printer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.graphics.Bitmap;
+
+/**
+ * Process-wide cache of encoded image commands, so a logo printed on every
+ * receipt is scaled, dithered and encoded only once. Entries are keyed by a
+ * hash of the source pixels and the encoding parameters, kept in memory in
+ * least recently used order up to {@link #DEFAULT_MAX_BYTES}, and optionally
+ * mirrored to files so they survive a restart of the app. Only the memory
+ * cache is used under the lock: files are read and written by the thread
+ * that asked, and the directory is set up and trimmed on a background
+ * thread, so encoding on one printer thread never waits for another's disk.
+ */
+public class RasterCache {
+
+	public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+	public static final long DEFAULT_MAX_DISK_BYTES = 16 * 1024 * 1024;
+
+	private static final String FILE_SUFFIX = ".bin";
+
+	// Rows hashed per getPixels call
+	private static final int STRIP_ROWS = 16;
+
+	private static RasterCache sharedCache;
+
+	private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	private long maxBytes;
+	private long size;
+	private volatile File directory;
+	private volatile long maxDiskBytes;
+	private final AtomicBoolean trimPending = new AtomicBoolean();
+	private final ExecutorService diskTasks = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "RasterCache-disk");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	public RasterCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public static synchronized RasterCache getSharedCache() {
+		if (sharedCache == null) {
+			sharedCache = new RasterCache(DEFAULT_MAX_BYTES);
+		}
+		return sharedCache;
+	}
+
+	/**
+	 * Keeps a copy of every entry in the directory, up to maxDiskBytes in
+	 * total, and looks there before encoding an image again. Returns
+	 * straight away; the directory is created and trimmed in the
+	 * background and used once it is ready.
+	 */
+	public void enableDiskCache(final File directory, final long maxDiskBytes) {
+		diskTasks.execute(new Runnable() {
+			public void run() {
+				if (!directory.isDirectory() && !directory.mkdirs()) {
+					System.err.println("RasterCache: could not create "
+							+ directory);
+					return;
+				}
+				RasterCache.this.maxDiskBytes = maxDiskBytes;
+				RasterCache.this.directory = directory;
+				trimDisk(directory);
+			}
+		});
+	}
+
+	/**
+	 * Builds the cache key for a source image and the parameters it is
+	 * encoded with.
+	 *
+	 * @param format
+	 *            Name of the command format the image is encoded to
+	 */
+	public static String key(Bitmap source, String format, int maxWidth,
+			int ditherKernel, int ditherIntensity, boolean compressionEnable,
+			boolean pageModeEnable) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		int width = source.getWidth();
+		int height = source.getHeight();
+
+		ByteBuffer header = ByteBuffer.allocate(32);
+		header.putInt(width).putInt(height).putInt(maxWidth)
+				.putInt(ditherKernel).putInt(ditherIntensity)
+				.put((byte) (compressionEnable ? 1 : 0))
+				.put((byte) (pageModeEnable ? 1 : 0));
+		digest.update(header.array(), 0, header.position());
+		digest.update(format.getBytes());
+
+		int[] strip = new int[width * Math.min(STRIP_ROWS, height)];
+		ByteBuffer bytes = ByteBuffer.allocate(strip.length * 4);
+		IntBuffer ints = bytes.asIntBuffer();
+		for (int y = 0; y < height; y += STRIP_ROWS) {
+			int rows = Math.min(STRIP_ROWS, height - y);
+			source.getPixels(strip, 0, width, 0, y, width, rows);
+			ints.clear();
+			ints.put(strip, 0, width * rows);
+			digest.update(bytes.array(), 0, width * rows * 4);
+		}
+
+		StringBuilder key = new StringBuilder(40);
+		for (byte b : digest.digest()) {
+			key.append(Character.forDigit((b >> 4) & 0xf, 16));
+			key.append(Character.forDigit(b & 0xf, 16));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Returns the encoded commands stored under the key, or null. The
+	 * returned array is shared and must not be changed.
+	 */
+	public byte[] get(String key) {
+		synchronized (this) {
+			byte[] data = entries.get(key);
+			if (data != null) {
+				return data;
+			}
+		}
+
+		File directory = this.directory;
+		if (directory == null) {
+			return null;
+		}
+		byte[] data = readFile(directory, key);
+		if (data != null) {
+			synchronized (this) {
+				putInMemory(key, data);
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Stores encoded commands. The array must not be changed afterwards.
+	 */
+	public void put(String key, byte[] data) {
+		synchronized (this) {
+			putInMemory(key, data);
+		}
+		File directory = this.directory;
+		if (directory != null && writeFile(directory, key, data)) {
+			scheduleTrim(directory);
+		}
+	}
+
+	public void clear() {
+		synchronized (this) {
+			entries.clear();
+			size = 0;
+		}
+		File directory = this.directory;
+		if (directory != null) {
+			File[] files = directory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	private void putInMemory(String key, byte[] data) {
+		if (data.length > maxBytes) {
+			return;
+		}
+		byte[] old = entries.put(key, data);
+		if (old != null) {
+			size -= old.length;
+		}
+		size += data.length;
+
+		Iterator<byte[]> eldest = entries.values().iterator();
+		while (size > maxBytes) {
+			size -= eldest.next().length;
+			eldest.remove();
+		}
+	}
+
+	private static byte[] readFile(File directory, String key) {
+		File file = new File(directory, key + FILE_SUFFIX);
+		if (!file.exists()) {
+			return null;
+		}
+
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			byte[] data = new byte[(int) file.length()];
+			int read = 0;
+			while (read < data.length) {
+				int count = in.read(data, read, data.length - read);
+				if (count < 0) {
+					throw new IOException("Short read of " + file);
+				}
+				read += count;
+			}
+			// Keep recently used files when the directory is trimmed
+			file.setLastModified(System.currentTimeMillis());
+			return data;
+		} catch (IOException e) {
+			System.err.println("RasterCache: " + e.getMessage());
+			file.delete();
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes an entry's file. Each write goes to its own temporary file, so
+	 * threads storing the same key do not write into each other's.
+	 *
+	 * @return true if the file was written
+	 */
+	private static boolean writeFile(File directory, String key, byte[] data) {
+		File file = new File(directory, key + FILE_SUFFIX);
+		File tmp = null;
+
+		FileOutputStream out = null;
+		try {
+			tmp = File.createTempFile(key, ".tmp", directory);
+			out = new FileOutputStream(tmp);
+			out.write(data);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not replace " + file);
+			}
+		} catch (IOException e) {
+			System.err.println("RasterCache: " + e.getMessage());
+			if (tmp != null) {
+				tmp.delete();
+			}
+			return false;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Trims the directory on the background thread, unless a trim is
+	 * already waiting to run.
+	 */
+	private void scheduleTrim(final File directory) {
+		if (!trimPending.compareAndSet(false, true)) {
+			return;
+		}
+		diskTasks.execute(new Runnable() {
+			public void run() {
+				trimPending.set(false);
+				trimDisk(directory);
+			}
+		});
+	}
+
+	/**
+	 * Deletes the least recently used files until the directory fits. The
+	 * newest file is the last to go, so an entry just written is kept unless
+	 * it is larger than the whole allowance.
+	 */
+	private void trimDisk(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		long total = 0;
+		for (File file : files) {
+			total += file.length();
+		}
+		if (total <= maxDiskBytes) {
+			return;
+		}
+
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		for (File file : files) {
+			if (total <= maxDiskBytes) {
+				break;
+			}
+			long length = file.length();
+			if (file.delete()) {
+				total -= length;
+			}
+		}
+	}
+}
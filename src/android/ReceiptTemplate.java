@@ -0,0 +1,469 @@
+package com.star.printer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receipt layout compiled once into a small instruction program and rendered
+ * for each sale straight into a reusable CommandWriter. Text and printer
+ * commands that never change are encoded when the template is compiled, so
+ * rendering only copies byte runs and writes the variables.
+ *
+ * Template syntax:
+ * <ul>
+ * <li>Plain text is printed as is, including newlines and tab characters.</li>
+ * <li>{name} prints a variable. {name:12} pads it with spaces on the right
+ * to 12 columns and {name:>12} on the left; like padRight and padLeft a
+ * longer value is cut to 11 characters and padded to 12.</li>
+ * <li>[left] [center] [right] set the justification (ESC a n).</li>
+ * <li>[b]...[/b] emphasized (ESC E n), [u]...[/u] underlined (ESC - n),
+ * [inv]...[/inv] white-black inverted (GS B n).</li>
+ * <li>[x w h]...[/x] character expansion (GS ! n), w and h from 1 to 8.</li>
+ * <li>[tabs n1 n2 ...] sets horizontal tab positions (ESC D), [tab] moves to
+ * the next one.</li>
+ * <li>[code39 data] Code39 barcode, [qr data] QR code, where data is text or
+ * a {variable}. Code39 data is limited to 255 bytes and QR data to 1663.</li>
+ * <li>[logo n] prints NV logo n (ESC f n), see LogoStore.</li>
+ * <li>[image name] writes the variable's byte[] of encoded image commands,
+ * for example from StarBitmap.</li>
+ * <li>[raw 1d 57 40 02] writes bytes given in hex.</li>
+ * <li>[each items]...[/each] repeats the block for every map in the list
+ * variable items; names are looked up in the map first.</li>
+ * <li>[[ and {{ print a literal [ and {.</li>
+ * </ul>
+ */
+public class ReceiptTemplate {
+
+	private static final int OP_LITERAL = 0;
+	private static final int OP_TEXT = 1;
+	private static final int OP_CODE39 = 2;
+	private static final int OP_QR = 3;
+	private static final int OP_IMAGE = 4;
+	private static final int OP_EACH = 5;
+	private static final int OP_END_EACH = 6;
+
+	// GS k m n d1...dn takes the length in one byte
+	private static final int MAX_CODE39_LENGTH = 255;
+	// Bytes a version 40 QR code holds at error correction level Q, the
+	// level ESC Z is sent with
+	private static final int MAX_QR_LENGTH = 1663;
+
+	// Rendering buffer of each thread, reused from receipt to receipt
+	private static final ThreadLocal<CommandWriter> writers = new ThreadLocal<CommandWriter>() {
+		protected CommandWriter initialValue() {
+			return new CommandWriter(4096);
+		}
+	};
+
+	private final int[] ops;
+	// byte[] for OP_LITERAL, the variable name for the others
+	private final Object[] operands;
+	// Column width for OP_TEXT, the index of the matching op for OP_EACH and
+	// OP_END_EACH
+	private final int[] params;
+
+	private ReceiptTemplate(int[] ops, Object[] operands, int[] params) {
+		this.ops = ops;
+		this.operands = operands;
+		this.params = params;
+	}
+
+	/**
+	 * Compiles a template.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the template is malformed
+	 */
+	public static ReceiptTemplate compile(String template) {
+		return new Compiler(template).compile();
+	}
+
+	/**
+	 * Renders the template and returns the commands as a new array. The
+	 * rendering buffer itself is reused.
+	 */
+	public byte[] render(Map<String, ?> variables) {
+		CommandWriter out = writers.get();
+		out.reset();
+		render(variables, out);
+
+		byte[] result = new byte[out.length()];
+		System.arraycopy(out.array(), 0, result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * Appends the rendered template to out.
+	 */
+	public void render(Map<String, ?> variables, CommandWriter out) {
+		List<Map<String, ?>> scopes = new ArrayList<Map<String, ?>>(2);
+		scopes.add(variables);
+		run(0, ops.length, scopes, out);
+	}
+
+	private void run(int pc, int end, List<Map<String, ?>> scopes, CommandWriter out) {
+		while (pc < end) {
+			switch (ops[pc]) {
+			case OP_LITERAL:
+				out.put((byte[]) operands[pc]);
+				break;
+			case OP_TEXT:
+				putText(out, toText(lookup(scopes, pc)), params[pc]);
+				break;
+			case OP_CODE39:
+				putCode39(out, toText(lookup(scopes, pc)).getBytes());
+				break;
+			case OP_QR:
+				putQrCode(out, toText(lookup(scopes, pc)).getBytes());
+				break;
+			case OP_IMAGE: {
+				Object image = lookup(scopes, pc);
+				if (image instanceof byte[]) {
+					out.put((byte[]) image);
+				} else if (image != null) {
+					throw new IllegalArgumentException("[image " + operands[pc]
+							+ "] needs encoded image commands, not " + describe(image));
+				}
+				break;
+			}
+			case OP_EACH: {
+				Object items = lookup(scopes, pc);
+				int endEach = params[pc];
+				if (items != null && !(items instanceof List)) {
+					throw new IllegalArgumentException("[each " + operands[pc]
+							+ "] needs a list, not " + describe(items));
+				}
+				if (items != null) {
+					for (Object item : (List<?>) items) {
+						if (item != null && !(item instanceof Map)) {
+							throw new IllegalArgumentException("[each " + operands[pc]
+									+ "] needs a list of objects, not of " + describe(item));
+						}
+						@SuppressWarnings("unchecked")
+						Map<String, ?> scope = (Map<String, ?>) item;
+						scopes.add(scope);
+						run(pc + 1, endEach, scopes, out);
+						scopes.remove(scopes.size() - 1);
+					}
+				}
+				pc = endEach;
+				break;
+			}
+			default:
+				break;
+			}
+			pc++;
+		}
+	}
+
+	private Object lookup(List<Map<String, ?>> scopes, int pc) {
+		String name = (String) operands[pc];
+		for (int i = scopes.size() - 1; i >= 0; i--) {
+			Map<String, ?> scope = scopes.get(i);
+			if (scope != null && scope.containsKey(name)) {
+				return scope.get(name);
+			}
+		}
+		return null;
+	}
+
+	private static String toText(Object value) {
+		return (value == null) ? "" : value.toString();
+	}
+
+	private static String describe(Object value) {
+		return value.getClass().getSimpleName();
+	}
+
+	/**
+	 * Writes text padded to width columns: on the right when width is
+	 * positive, on the left when it is negative.
+	 */
+	private static void putText(CommandWriter out, String text, int width) {
+		int length = text.length();
+		int columns = Math.abs(width);
+		int pad = 0;
+		if (width != 0) {
+			if (length > columns) {
+				length = columns - 1;
+			}
+			pad = columns - length;
+		}
+
+		out.ensureCapacity(length + pad);
+		if (width < 0) {
+			putSpaces(out, pad);
+		}
+
+		int start = out.length();
+		byte[] buffer = out.array();
+		int i = 0;
+		while (i < length && text.charAt(i) < 0x80) {
+			buffer[start + i] = (byte) text.charAt(i);
+			i++;
+		}
+		out.setLength(start + i);
+		if (i < length) {
+			// Not plain ASCII, let the platform encode it
+			out.put(text.substring(i, length).getBytes());
+		}
+
+		if (width > 0) {
+			putSpaces(out, pad);
+		}
+	}
+
+	private static void putSpaces(CommandWriter out, int count) {
+		for (int i = 0; i < count; i++) {
+			out.put(' ');
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if data is longer than the one byte length of GS k allows
+	 */
+	private static void putCode39(CommandWriter out, byte[] data) {
+		if (data.length > MAX_CODE39_LENGTH) {
+			throw new IllegalArgumentException("[code39] data is "
+					+ data.length + " bytes, at most " + MAX_CODE39_LENGTH
+					+ " fit");
+		}
+		out.put(new byte[] { 0x1d, 0x77, 0x02 }); // Module width
+		out.put(new byte[] { 0x1d, 0x68, 0x64 }); // Height
+		out.put(new byte[] { 0x1d, 0x48, 0x01 }); // HRI below the barcode
+		out.put(0x1d);
+		out.put(0x6b);
+		out.put(0x41);
+		out.put(data.length);
+		out.put(data);
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if data is longer than a QR code holds
+	 */
+	private static void putQrCode(CommandWriter out, byte[] data) {
+		if (data.length > MAX_QR_LENGTH) {
+			throw new IllegalArgumentException("[qr] data is " + data.length
+					+ " bytes, at most " + MAX_QR_LENGTH + " fit");
+		}
+		out.put(new byte[] { 0x1d, 0x5a, 0x02 }); // Select QR code
+		out.put(new byte[] { 0x1b, 0x5a, 0x00, 0x51, 0x04 });
+		out.put(data.length % 256);
+		out.put(data.length / 256);
+		out.put(data);
+	}
+
+	private static final class Compiler {
+		private final String template;
+		private final List<Integer> ops = new ArrayList<Integer>();
+		private final List<Object> operands = new ArrayList<Object>();
+		private final List<Integer> params = new ArrayList<Integer>();
+		private final List<Integer> openEach = new ArrayList<Integer>();
+		private final CommandWriter literal = new CommandWriter(256);
+		private final StringBuilder text = new StringBuilder();
+		private int pos;
+
+		Compiler(String template) {
+			this.template = template;
+		}
+
+		ReceiptTemplate compile() {
+			while (pos < template.length()) {
+				char c = template.charAt(pos);
+				if ((c == '[' || c == '{') && pos + 1 < template.length()
+						&& template.charAt(pos + 1) == c) {
+					text.append(c);
+					pos += 2;
+				} else if (c == '[') {
+					tag(until(']'));
+				} else if (c == '{') {
+					variable(until('}'));
+				} else {
+					text.append(c);
+					pos++;
+				}
+			}
+			if (!openEach.isEmpty()) {
+				throw new IllegalArgumentException("[each] without [/each]");
+			}
+			flushLiteral();
+
+			int size = ops.size();
+			int[] opArray = new int[size];
+			int[] paramArray = new int[size];
+			for (int i = 0; i < size; i++) {
+				opArray[i] = ops.get(i);
+				paramArray[i] = params.get(i);
+			}
+			return new ReceiptTemplate(opArray, operands.toArray(), paramArray);
+		}
+
+		/**
+		 * Returns the text between the current bracket and the closing one
+		 * and moves past it.
+		 */
+		private String until(char close) {
+			int end = template.indexOf(close, pos + 1);
+			if (end < 0) {
+				throw new IllegalArgumentException("Missing " + close
+						+ " for the bracket at " + pos);
+			}
+			String body = template.substring(pos + 1, end).trim();
+			pos = end + 1;
+			return body;
+		}
+
+		private void variable(String spec) {
+			String name = spec;
+			int width = 0;
+			int colon = spec.indexOf(':');
+			if (colon >= 0) {
+				name = spec.substring(0, colon).trim();
+				String format = spec.substring(colon + 1).trim();
+				boolean padLeft = format.startsWith(">");
+				width = parseNumber(padLeft ? format.substring(1) : format);
+				if (padLeft) {
+					width = -width;
+				}
+			}
+			emit(OP_TEXT, name, width);
+		}
+
+		private void tag(String body) {
+			int space = body.indexOf(' ');
+			String name = (space < 0) ? body : body.substring(0, space);
+			String argument = (space < 0) ? "" : body.substring(space + 1).trim();
+			String[] numbers = (argument.length() == 0) ? new String[0] : argument.split("\\s+");
+
+			if (name.equals("left")) {
+				command(0x1b, 0x61, 0x00);
+			} else if (name.equals("center")) {
+				command(0x1b, 0x61, 0x01);
+			} else if (name.equals("right")) {
+				command(0x1b, 0x61, 0x02);
+			} else if (name.equals("b")) {
+				command(0x1b, 0x45, 0x01);
+			} else if (name.equals("/b")) {
+				command(0x1b, 0x45, 0x00);
+			} else if (name.equals("u")) {
+				command(0x1b, 0x2d, 0x01);
+			} else if (name.equals("/u")) {
+				command(0x1b, 0x2d, 0x00);
+			} else if (name.equals("inv")) {
+				command(0x1d, 0x42, 0x01);
+			} else if (name.equals("/inv")) {
+				command(0x1d, 0x42, 0x00);
+			} else if (name.equals("x")) {
+				if (numbers.length != 2) {
+					throw new IllegalArgumentException("[x] needs a width and a height");
+				}
+				int w = parseNumber(numbers[0]);
+				int h = parseNumber(numbers[1]);
+				if (w < 1 || w > 8 || h < 1 || h > 8) {
+					throw new IllegalArgumentException("[x] expansion must be 1 to 8");
+				}
+				command(0x1d, 0x21, ((w - 1) << 4) | (h - 1));
+			} else if (name.equals("/x")) {
+				command(0x1d, 0x21, 0x00);
+			} else if (name.equals("tabs")) {
+				flushText();
+				literal.put(0x1b);
+				literal.put(0x44);
+				for (String n : numbers) {
+					literal.put(parseNumber(n));
+				}
+				literal.put(0x00);
+			} else if (name.equals("tab")) {
+				text.append('\t');
+			} else if (name.equals("logo")) {
+				flushText();
+				literal.put(LogoStore.reference(parseNumber(argument)));
+			} else if (name.equals("raw")) {
+				flushText();
+				for (String hex : numbers) {
+					literal.put(Integer.parseInt(hex, 16));
+				}
+			} else if (name.equals("code39") || name.equals("qr")) {
+				boolean qr = name.equals("qr");
+				String variable = variableName(argument);
+				if (variable != null) {
+					emit(qr ? OP_QR : OP_CODE39, variable, 0);
+				} else {
+					flushText();
+					if (qr) {
+						putQrCode(literal, argument.getBytes());
+					} else {
+						putCode39(literal, argument.getBytes());
+					}
+				}
+			} else if (name.equals("image")) {
+				String variable = variableName(argument);
+				emit(OP_IMAGE, (variable != null) ? variable : argument, 0);
+			} else if (name.equals("each")) {
+				openEach.add(emit(OP_EACH, argument, 0));
+			} else if (name.equals("/each")) {
+				if (openEach.isEmpty()) {
+					throw new IllegalArgumentException("[/each] without [each]");
+				}
+				int each = openEach.remove(openEach.size() - 1);
+				int end = emit(OP_END_EACH, null, each);
+				params.set(each, end);
+			} else {
+				throw new IllegalArgumentException("Unknown tag [" + body + "]");
+			}
+		}
+
+		/**
+		 * The name in a {variable} argument, or null for literal text.
+		 */
+		private static String variableName(String argument) {
+			if (argument.startsWith("{") && argument.endsWith("}")) {
+				return argument.substring(1, argument.length() - 1).trim();
+			}
+			return null;
+		}
+
+		private static int parseNumber(String number) {
+			try {
+				return Integer.parseInt(number.trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Expected a number: " + number);
+			}
+		}
+
+		private void command(int b1, int b2, int b3) {
+			flushText();
+			literal.put(b1);
+			literal.put(b2);
+			literal.put(b3);
+		}
+
+		private void flushText() {
+			if (text.length() > 0) {
+				literal.put(text.toString().getBytes());
+				text.setLength(0);
+			}
+		}
+
+		private void flushLiteral() {
+			flushText();
+			if (literal.length() > 0) {
+				ops.add(OP_LITERAL);
+				operands.add(literal.toByteArray().clone());
+				params.add(0);
+				literal.reset();
+			}
+		}
+
+		private int emit(int op, Object operand, int param) {
+			flushLiteral();
+			ops.add(op);
+			operands.add(operand);
+			params.add(param);
+			return ops.size() - 1;
+		}
+	}
+}
@@ -0,0 +1,402 @@
+package com.star.printer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The strokes of a signature held in primitive arrays. Points are stored as
+ * x, y pairs in one float array and each stroke is a range of points, so a
+ * signature of thousands of points is a handful of objects. The bounding box
+ * is worked out while the points are read.
+ */
+public class Signature {
+
+	/** Packed little-endian float32 x, y pairs; a NaN pair ends a stroke. */
+	public static final int POINTS_FLOAT32 = 0;
+	/**
+	 * Little-endian int16 pairs. The first pair of a stroke is absolute, the
+	 * rest are deltas from the previous point; a (-32768, -32768) pair ends
+	 * a stroke.
+	 */
+	public static final int POINTS_INT16_DELTA = 1;
+
+	// x, y of each point
+	float[] coords;
+	// Index of the first point of each stroke, followed by pointCount
+	int[] strokeStarts;
+	int pointCount;
+	int strokeCount;
+
+	public float minX = Float.POSITIVE_INFINITY;
+	public float minY = Float.POSITIVE_INFINITY;
+	public float maxX = Float.NEGATIVE_INFINITY;
+	public float maxY = Float.NEGATIVE_INFINITY;
+
+	private boolean inStroke;
+
+	Signature(int expectedPoints) {
+		coords = new float[Math.max(16, expectedPoints * 2)];
+		strokeStarts = new int[9];
+	}
+
+	public int getPointCount() {
+		return pointCount;
+	}
+
+	public int getStrokeCount() {
+		return strokeCount;
+	}
+
+	public int getStrokeStart(int stroke) {
+		return strokeStarts[stroke];
+	}
+
+	public int getStrokeEnd(int stroke) {
+		return strokeStarts[stroke + 1];
+	}
+
+	public float getX(int point) {
+		return coords[point * 2];
+	}
+
+	public float getY(int point) {
+		return coords[point * 2 + 1];
+	}
+
+	public boolean isEmpty() {
+		return pointCount == 0;
+	}
+
+	private void beginStroke() {
+		if (strokeCount + 2 > strokeStarts.length) {
+			int[] grown = new int[strokeStarts.length * 2];
+			System.arraycopy(strokeStarts, 0, grown, 0, strokeCount + 1);
+			strokeStarts = grown;
+		}
+		strokeStarts[strokeCount] = pointCount;
+		inStroke = true;
+	}
+
+	private void addPoint(float x, float y) {
+		if (pointCount * 2 + 2 > coords.length) {
+			float[] grown = new float[coords.length * 2];
+			System.arraycopy(coords, 0, grown, 0, pointCount * 2);
+			coords = grown;
+		}
+		coords[pointCount * 2] = x;
+		coords[pointCount * 2 + 1] = y;
+		pointCount++;
+
+		if (x < minX) {
+			minX = x;
+		}
+		if (x > maxX) {
+			maxX = x;
+		}
+		if (y < minY) {
+			minY = y;
+		}
+		if (y > maxY) {
+			maxY = y;
+		}
+	}
+
+	private void endStroke() {
+		if (inStroke) {
+			// A stroke without points is dropped
+			if (strokeStarts[strokeCount] != pointCount) {
+				strokeCount++;
+			}
+			strokeStarts[strokeCount] = pointCount;
+			inStroke = false;
+		}
+	}
+
+	/**
+	 * Returns a copy with each stroke simplified by the Ramer-Douglas-Peucker
+	 * algorithm: points closer than tolerance to the line through their
+	 * neighbours are dropped, and the first and last point of every stroke
+	 * are kept.
+	 *
+	 * @param tolerance
+	 *            Largest distance a dropped point may lie from the simplified
+	 *            stroke, in the units of the points
+	 */
+	public Signature simplify(float tolerance) {
+		Signature simplified = new Signature(pointCount);
+		simplified.strokeStarts[0] = 0;
+
+		double limit = (double) tolerance * tolerance;
+		boolean[] keep = new boolean[pointCount];
+		// Pairs of point indexes still to be examined
+		int[] ranges = new int[64];
+
+		for (int stroke = 0; stroke < strokeCount; stroke++) {
+			int first = strokeStarts[stroke];
+			int last = strokeStarts[stroke + 1] - 1;
+			keep[first] = true;
+			keep[last] = true;
+
+			int top = 0;
+			ranges[top++] = first;
+			ranges[top++] = last;
+			while (top > 0) {
+				int end = ranges[--top];
+				int start = ranges[--top];
+
+				int farthest = -1;
+				double farthestDistance = limit;
+				for (int i = start + 1; i < end; i++) {
+					double distance = squaredDistance(i, start, end);
+					if (distance > farthestDistance) {
+						farthest = i;
+						farthestDistance = distance;
+					}
+				}
+				if (farthest < 0) {
+					continue;
+				}
+
+				keep[farthest] = true;
+				if (top + 4 > ranges.length) {
+					int[] grown = new int[ranges.length * 2];
+					System.arraycopy(ranges, 0, grown, 0, top);
+					ranges = grown;
+				}
+				ranges[top++] = start;
+				ranges[top++] = farthest;
+				ranges[top++] = farthest;
+				ranges[top++] = end;
+			}
+
+			simplified.beginStroke();
+			for (int i = first; i <= last; i++) {
+				if (keep[i]) {
+					simplified.addPoint(coords[i * 2], coords[i * 2 + 1]);
+				}
+			}
+			simplified.endStroke();
+		}
+		return simplified;
+	}
+
+	/**
+	 * Squared distance from a point to the line through two others, or to
+	 * the first of them if they coincide.
+	 */
+	private double squaredDistance(int point, int start, int end) {
+		double x = coords[point * 2] - coords[start * 2];
+		double y = coords[point * 2 + 1] - coords[start * 2 + 1];
+		double dx = coords[end * 2] - coords[start * 2];
+		double dy = coords[end * 2 + 1] - coords[start * 2 + 1];
+		double length = dx * dx + dy * dy;
+		if (length == 0) {
+			return x * x + y * y;
+		}
+		double cross = x * dy - y * dx;
+		return cross * cross / length;
+	}
+
+	/**
+	 * Reads the JSON encoding of a signature, {"lines":[[[x,y],[x,y]],...]},
+	 * in a single pass. Like the regular expressions it replaces, every
+	 * bracketed list of [x,y] pairs anywhere in the text is read as a stroke,
+	 * so the signature may also be wrapped in other JSON.
+	 */
+	public static Signature parse(String json) {
+		Parser parser = new Parser(json);
+		Signature signature = new Signature(json.length() / 8);
+		signature.strokeStarts[0] = 0;
+
+		int length = json.length();
+		int pos = 0;
+		while (pos < length) {
+			if (json.charAt(pos) == '[') {
+				int end = parser.stroke(pos, signature);
+				if (end > 0) {
+					pos = end;
+					continue;
+				}
+			}
+			pos++;
+		}
+		return signature;
+	}
+
+	/**
+	 * Decodes a binary point stream sent from JavaScript as an ArrayBuffer.
+	 *
+	 * @param format
+	 *            POINTS_FLOAT32 or POINTS_INT16_DELTA
+	 */
+	public static Signature decode(byte[] data, int format) {
+		ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		Signature signature = new Signature(data.length / 4);
+		signature.strokeStarts[0] = 0;
+
+		if (format == POINTS_FLOAT32) {
+			while (buffer.remaining() >= 8) {
+				float x = buffer.getFloat();
+				float y = buffer.getFloat();
+				if (Float.isNaN(x) || Float.isNaN(y)) {
+					signature.endStroke();
+					continue;
+				}
+				if (!signature.inStroke) {
+					signature.beginStroke();
+				}
+				signature.addPoint(x, y);
+			}
+		} else if (format == POINTS_INT16_DELTA) {
+			int x = 0;
+			int y = 0;
+			while (buffer.remaining() >= 4) {
+				short dx = buffer.getShort();
+				short dy = buffer.getShort();
+				if (dx == Short.MIN_VALUE && dy == Short.MIN_VALUE) {
+					signature.endStroke();
+					continue;
+				}
+				if (!signature.inStroke) {
+					signature.beginStroke();
+					x = dx;
+					y = dy;
+				} else {
+					x += dx;
+					y += dy;
+				}
+				signature.addPoint(x, y);
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown point format " + format);
+		}
+		signature.endStroke();
+		return signature;
+	}
+
+	/**
+	 * Hand-written scanner for the stroke syntax the old regular expressions
+	 * matched: a stroke is [ followed by one or more [number,number] pairs,
+	 * optionally separated by commas, followed by ], where a number is an
+	 * optional minus sign followed by digits and dots.
+	 */
+	private static final class Parser {
+		private final String text;
+		private float number;
+
+		Parser(String text) {
+			this.text = text;
+		}
+
+		/**
+		 * Reads the stroke starting at the [ at pos into the signature.
+		 *
+		 * @return the position after the stroke, or -1 if there is no stroke
+		 *         at pos, in which case the signature is left unchanged
+		 */
+		int stroke(int pos, Signature signature) {
+			int start = signature.pointCount;
+			float minX = signature.minX;
+			float minY = signature.minY;
+			float maxX = signature.maxX;
+			float maxY = signature.maxY;
+			signature.beginStroke();
+
+			int i = pos + 1;
+			while (true) {
+				int next = i;
+				if (at(next, ',')) {
+					next++;
+				}
+				next = point(next, signature);
+				if (next < 0) {
+					break;
+				}
+				i = next;
+			}
+
+			if (signature.pointCount == start || !at(i, ']')) {
+				signature.pointCount = start;
+				signature.inStroke = false;
+				signature.minX = minX;
+				signature.minY = minY;
+				signature.maxX = maxX;
+				signature.maxY = maxY;
+				return -1;
+			}
+			signature.endStroke();
+			return i + 1;
+		}
+
+		private int point(int pos, Signature signature) {
+			if (!at(pos, '[')) {
+				return -1;
+			}
+			int i = number(pos + 1);
+			if (i < 0 || !at(i, ',')) {
+				return -1;
+			}
+			float x = number;
+			i = number(i + 1);
+			if (i < 0 || !at(i, ']')) {
+				return -1;
+			}
+			signature.addPoint(x, number);
+			return i + 1;
+		}
+
+		/**
+		 * Reads a number at pos into number.
+		 *
+		 * @return the position after the number, or -1
+		 */
+		private int number(int pos) {
+			int length = text.length();
+			int start = pos;
+			int i = pos;
+			if (i < length && text.charAt(i) == '-') {
+				i++;
+			}
+
+			long mantissa = 0;
+			int digits = 0;
+			int dots = 0;
+			int decimals = 0;
+			int first = i;
+			while (i < length) {
+				char c = text.charAt(i);
+				if (c >= '0' && c <= '9') {
+					mantissa = mantissa * 10 + (c - '0');
+					digits++;
+					if (dots > 0) {
+						decimals++;
+					}
+				} else if (c == '.') {
+					dots++;
+				} else {
+					break;
+				}
+				i++;
+			}
+			if (i == first) {
+				return -1;
+			}
+
+			if (dots <= 1 && digits > 0 && digits <= 15) {
+				double value = mantissa / POWERS_OF_TEN[decimals];
+				number = (float) (text.charAt(start) == '-' ? -value : value);
+			} else {
+				// Rare forms, parsed (or rejected) exactly as before
+				number = Float.parseFloat(text.substring(start, i));
+			}
+			return i;
+		}
+
+		private boolean at(int pos, char c) {
+			return pos < text.length() && text.charAt(pos) == c;
+		}
+	}
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+			1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15 };
+}
@@ -0,0 +1,261 @@
+package com.star.printer;
+
+/**
+ * Draws signature strokes straight into the packed monochrome plane that
+ * StarBitmap encodes, without an ARGB Bitmap or a Canvas. Lines are traced
+ * with integer Bresenham steps and a round brush of the stroke width is
+ * stamped at every step as horizontal spans, so a 576x300 signature costs
+ * about 21 KB instead of 690 KB and runs on a plain JVM.
+ */
+public class SignatureRasterizer {
+
+	/** Size of the signature area of a framed signature. */
+	public static final int WIDTH = 576;
+	public static final int HEIGHT = 300;
+	/** Width of the pen and of the frame around the signature, in dots. */
+	public static final float STROKE_WIDTH = 3;
+	/** Blank dots around the ink of a fitted signature. */
+	public static final int MARGIN = 2;
+	/** Default simplification tolerance of a fitted signature, in dots. */
+	public static final float DEFAULT_TOLERANCE = 0.5f;
+
+	private final int width;
+	private final int height;
+	private final int bytesPerRow;
+	private final byte[] plane;
+	// Half width of the brush on each of its rows, from the top row down
+	private final int[] brush;
+
+	/**
+	 * @param width
+	 *            Width of the plane in dots
+	 * @param height
+	 *            Height of the plane in dots
+	 * @param strokeWidth
+	 *            Diameter of the pen in dots
+	 */
+	public SignatureRasterizer(int width, int height, float strokeWidth) {
+		this.width = width;
+		this.height = height;
+		bytesPerRow = (width + 7) / 8;
+		plane = new byte[bytesPerRow * height];
+
+		// Dots whose centers lie within the pen radius of the center dot
+		float radius = strokeWidth / 2;
+		int reach = (int) radius;
+		brush = new int[reach * 2 + 1];
+		for (int dy = -reach; dy <= reach; dy++) {
+			int half = 0;
+			while ((half + 1) * (half + 1) + dy * dy <= radius * radius) {
+				half++;
+			}
+			brush[dy + reach] = half;
+		}
+	}
+
+	/**
+	 * The plane: rows of (width + 7) / 8 bytes, most significant bit
+	 * leftmost, 1 = black.
+	 */
+	public byte[] getPlane() {
+		return plane;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Draws a line between two dots with the pen.
+	 */
+	public void drawLine(int x0, int y0, int x1, int y1) {
+		int dx = Math.abs(x1 - x0);
+		int dy = -Math.abs(y1 - y0);
+		int sx = (x0 < x1) ? 1 : -1;
+		int sy = (y0 < y1) ? 1 : -1;
+		int error = dx + dy;
+
+		while (true) {
+			stamp(x0, y0);
+			if (x0 == x1 && y0 == y1) {
+				break;
+			}
+			int e2 = 2 * error;
+			if (e2 >= dy) {
+				error += dy;
+				x0 += sx;
+			}
+			if (e2 <= dx) {
+				error += dx;
+				y0 += sy;
+			}
+		}
+	}
+
+	/**
+	 * Sets every dot of the rectangle, clipped to the plane.
+	 */
+	public void fillRect(int left, int top, int right, int bottom) {
+		for (int y = Math.max(0, top); y <= Math.min(height - 1, bottom); y++) {
+			fillSpan(y, left, right);
+		}
+	}
+
+	private void stamp(int x, int y) {
+		int reach = brush.length / 2;
+		for (int i = 0; i < brush.length; i++) {
+			int row = y + i - reach;
+			if (row >= 0 && row < height) {
+				fillSpan(row, x - brush[i], x + brush[i]);
+			}
+		}
+	}
+
+	/**
+	 * Sets dots x0..x1 of a row, clipped to the plane.
+	 */
+	private void fillSpan(int y, int x0, int x1) {
+		if (x0 < 0) {
+			x0 = 0;
+		}
+		if (x1 >= width) {
+			x1 = width - 1;
+		}
+		if (x0 > x1) {
+			return;
+		}
+
+		int row = y * bytesPerRow;
+		int first = x0 >> 3;
+		int last = x1 >> 3;
+		int firstMask = 0xff >>> (x0 & 7);
+		int lastMask = 0xff << (7 - (x1 & 7));
+
+		if (first == last) {
+			plane[row + first] |= (byte) (firstMask & lastMask);
+			return;
+		}
+		plane[row + first] |= (byte) firstMask;
+		for (int i = first + 1; i < last; i++) {
+			plane[row + i] = (byte) 0xff;
+		}
+		plane[row + last] |= (byte) lastMask;
+	}
+
+	/**
+	 * Draws a signature centered horizontally on a WIDTH x HEIGHT area with
+	 * a frame around the edges, the layout signatures have always been
+	 * printed with, scaled down when maxWidth is narrower than the area.
+	 */
+	public static SignatureRasterizer draw(Signature signature, int maxWidth) {
+		int width = Math.min(WIDTH, maxWidth);
+		int height = width * HEIGHT / WIDTH;
+		float scale = (float) width / WIDTH;
+		SignatureRasterizer raster = new SignatureRasterizer(width, height,
+				Math.max(1, STROKE_WIDTH * scale));
+
+		// The frame lines are centered on the edges, so half the pen is
+		// inside the area
+		int frame = Math.max(1, Math.round(STROKE_WIDTH * scale / 2));
+		raster.fillRect(0, 0, width - 1, frame - 1);
+		raster.fillRect(0, height - frame, width - 1, height - 1);
+		raster.fillRect(0, 0, frame - 1, height - 1);
+		raster.fillRect(width - frame, 0, width - 1, height - 1);
+
+		float offset = (WIDTH - Math.max(0, signature.maxX)) / 2;
+		for (int stroke = 0; stroke < signature.getStrokeCount(); stroke++) {
+			int end = signature.getStrokeEnd(stroke);
+			int i = signature.getStrokeStart(stroke);
+			int lastX = Math.round((Math.round(signature.getX(i)) + offset) * scale);
+			int lastY = Math.round(Math.round(signature.getY(i)) * scale);
+			for (i++; i < end; i++) {
+				int x = Math.round((Math.round(signature.getX(i)) + offset) * scale);
+				int y = Math.round(Math.round(signature.getY(i)) * scale);
+				raster.drawLine(lastX, lastY, x, y);
+				lastX = x;
+				lastY = y;
+			}
+		}
+		return raster;
+	}
+
+	/**
+	 * Draws a signature cropped to its ink and scaled so the ink fills
+	 * height, or the narrower maxWidth if it is too wide for that. The plane
+	 * is only as wide as the scaled ink plus a margin, and no frame is drawn.
+	 * 
+	 * @param height
+	 *            Height of the plane in dots
+	 * @param tolerance
+	 *            How far in dots the printed strokes may stray from the
+	 *            captured points when they are simplified, 0 to keep every
+	 *            point
+	 */
+	public static SignatureRasterizer drawFitted(Signature signature,
+			int maxWidth, int height, float tolerance) {
+		int ink = MARGIN * 2 + 1;
+		if (signature.isEmpty()) {
+			return new SignatureRasterizer(ink, Math.max(ink, height),
+					STROKE_WIDTH);
+		}
+
+		float inkWidth = signature.maxX - signature.minX;
+		float inkHeight = signature.maxY - signature.minY;
+		float scale = 1;
+		if (inkHeight > 0) {
+			scale = Math.max(0, height - ink) / inkHeight;
+		}
+		// A stroke without width fits at any scale, and 0 / 0 would make
+		// the scale NaN
+		if (inkWidth > 0 && inkWidth * scale > maxWidth - ink) {
+			scale = Math.max(0, maxWidth - ink) / inkWidth;
+		}
+		if (tolerance > 0 && scale > 0) {
+			signature = signature.simplify(tolerance / scale);
+		}
+
+		SignatureRasterizer raster = new SignatureRasterizer(
+				Math.round(inkWidth * scale) + ink,
+				Math.round(inkHeight * scale) + ink, STROKE_WIDTH);
+		float left = signature.minX;
+		float top = signature.minY;
+		for (int stroke = 0; stroke < signature.getStrokeCount(); stroke++) {
+			int end = signature.getStrokeEnd(stroke);
+			int i = signature.getStrokeStart(stroke);
+			int lastX = MARGIN + Math.round((signature.getX(i) - left) * scale);
+			int lastY = MARGIN + Math.round((signature.getY(i) - top) * scale);
+			for (i++; i < end; i++) {
+				int x = MARGIN + Math.round((signature.getX(i) - left) * scale);
+				int y = MARGIN + Math.round((signature.getY(i) - top) * scale);
+				raster.drawLine(lastX, lastY, x, y);
+				lastX = x;
+				lastY = y;
+			}
+		}
+		return raster;
+	}
+
+	/**
+	 * Draws a signature into a StarBitmap ready for the raster encoders.
+	 */
+	static StarBitmap toStarBitmap(Signature signature, int maxWidth) {
+		return toStarBitmap(draw(signature, maxWidth));
+	}
+
+	/**
+	 * Draws a signature with {@link #drawFitted} into a StarBitmap ready for
+	 * the raster encoders.
+	 */
+	static StarBitmap toStarBitmap(Signature signature, int maxWidth,
+			int height, float tolerance) {
+		return toStarBitmap(drawFitted(signature, maxWidth, height, tolerance));
+	}
+
+	private static StarBitmap toStarBitmap(SignatureRasterizer raster) {
+		return new StarBitmap(raster.plane, raster.width, raster.height);
+	}
+}
@@ -1,38 +1,65 @@
 package com.star.printer;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import android.graphics.Bitmap;
-import android.graphics.Color;
 
 import com.starmicronics.stario.StarIOPort;
 import com.starmicronics.stario.StarIOPortException;
 
 public class StarBitmap {
-	int[] pixels;
+	// Number of rows copied out of the Bitmap per getPixels call
+	private static final int STRIP_ROWS = 16;
+
+	// Brightness below which a pixel is printed black
+	private static final int THRESHOLD = 127;
+
+	public static final int NO_DITHERING = -1;
+
+	// Packed 1-bit-per-pixel image, row-major, most significant bit is the
+	// leftmost pixel, 1 = black. Padding bits at the end of a row are 0.
+	byte[] mono;
+	int bytesPerRow;
 	int height;
 	int width;
 	boolean dithering;
+	int ditherKernel;
+	int ditherIntensity;
 	byte[] imageData;
+	// Reused by writeImageEscPosBand for compressed bands
+	private byte[] bandData;
 
 	StarBitmap(Bitmap picture, boolean supportDithering, int maxWidth) {
+		this(picture, supportDithering ? StarDither.FLOYD_STEINBERG : NO_DITHERING,
+				StarDither.DEFAULT_INTENSITY, maxWidth);
+	}
+
+	/**
+	 * @param picture
+	 *            The image to print
+	 * @param ditherKernel
+	 *            One of the StarDither kernels, or NO_DITHERING to threshold
+	 * @param ditherIntensity
+	 *            Brightness multiplier in percent applied before dithering
+	 * @param maxWidth
+	 *            Images wider than this are scaled down to it
+	 */
+	StarBitmap(Bitmap picture, int ditherKernel, int ditherIntensity, int maxWidth) {
 		try {
+			dithering = ditherKernel != NO_DITHERING;
+			this.ditherKernel = ditherKernel;
+			this.ditherIntensity = ditherIntensity;
+
 			if (picture.getWidth() > maxWidth) {
 				ScallImage(picture, maxWidth);
 			} else {
 				height = picture.getHeight();
 				width = picture.getWidth();
-				pixels = new int[height * width];
-
-				for (int y = 0; y < height; y++) {
-					for (int x = 0; x < width; x++) {
-						pixels[PixelIndex(x, y)] = picture.getPixel(x, y);
-					}
-				}
-				// picture.getPixels(pixels, 0, width, 0, 0, width, height);
+				convertToMonochrome(picture);
 			}
 
-			dithering = supportDithering;
 			imageData = null;
 		} catch (OutOfMemoryError e) {
 			throw e;
@@ -40,13 +67,29 @@ public class StarBitmap {
 
 	}
 
-	private int pixelBrightness(int red, int green, int blue) {
-		int level = (red + green + blue) / 3;
-		return level;
-	}
-
-	private int PixelIndex(int x, int y) {
-		return (y * width) + x;
+	/**
+	 * Wraps an image that is already one bit per pixel: rows padded to whole
+	 * bytes, most significant bit leftmost, 1 = black. The padding bits of
+	 * mono are cleared in place.
+	 */
+	StarBitmap(byte[] mono, int width, int height) {
+		bytesPerRow = (width + 7) / 8;
+		if (width <= 0 || height <= 0 || mono.length < bytesPerRow * height) {
+			throw new IllegalArgumentException("Image data does not match its size");
+		}
+		this.mono = mono;
+		this.width = width;
+		this.height = height;
+		ditherKernel = NO_DITHERING;
+		ditherIntensity = StarDither.DEFAULT_INTENSITY;
+
+		int padding = bytesPerRow * 8 - width;
+		if (padding > 0) {
+			byte mask = (byte) (0xff << padding);
+			for (int y = 0; y < height; y++) {
+				mono[y * bytesPerRow + bytesPerRow - 1] &= mask;
+			}
+		}
 	}
 
 	public void ScallImage(Bitmap picture, int newWidth) {
@@ -57,194 +100,337 @@ public class StarBitmap {
 		Bitmap bm = Bitmap.createScaledBitmap(picture, newWidth, newHeight, false);
 		height = bm.getHeight();
 		width = bm.getWidth();
-		pixels = new int[height * width];
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				pixels[PixelIndex(x, y)] = bm.getPixel(x, y);
-			}
+		convertToMonochrome(bm);
+		if (bm != picture) {
+			bm.recycle();
 		}
 	}
 
-	private int GetGreyLevel(int pixel, float intensity) {
-		/*
-		 * if(Color.alpha(pixel) == 0) { return 255; }
-		 */
+	/**
+	 * Thresholds or dithers the bitmap once into the packed monochrome plane
+	 * that every encoder reads. Large images are split into row ranges
+	 * across the encoder pool, unless error diffusion makes each row depend
+	 * on the one above.
+	 */
+	private void convertToMonochrome(final Bitmap picture) {
+		bytesPerRow = (width + 7) / 8;
+		mono = new byte[bytesPerRow * height];
+
+		boolean sequential = dithering == true && ditherKernel != StarDither.BAYER;
+		if (sequential || !EncoderPool.shouldSplit(height)) {
+			convertRows(picture, 0, height);
+			return;
+		}
+
+		// Row ranges start on a strip boundary so the getPixels calls match
+		int chunk = (height + EncoderPool.WORKERS - 1) / EncoderPool.WORKERS;
+		chunk = (chunk + STRIP_ROWS - 1) / STRIP_ROWS * STRIP_ROWS;
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int first = 0; first < height; first += chunk) {
+			final int start = first;
+			final int end = Math.min(height, first + chunk);
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					convertRows(picture, start, end);
+					return null;
+				}
+			});
+		}
 
-		float red = Color.red(pixel);
-		float green = Color.green(pixel);
-		float blue = Color.blue(pixel);
-		float parcial = red + green + blue;
-		parcial = (float) (parcial / 3.0);
-		int gray = (int) (parcial * intensity);
-		if (gray > 255) {
-			gray = 255;
+		try {
+			EncoderPool.runAll(tasks);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			// Interrupted while waiting for the workers
+			convertRows(picture, 0, height);
 		}
-		return gray;
 	}
 
-	private void ConvertToMonochromeSteinbertDithering(float intensity) {
-		int[][] levelmap = new int[width][height];
-		for (int y = 0; y < height; y++) {
-			if ((y & 1) == 0) {
-				for (int x = 0; x < width; x++) {
-					int pixel = pixels[PixelIndex(x, y)];
-					levelmap[x][y] += 255 - GetGreyLevel(pixel, intensity);
-					if (levelmap[x][y] >= 255) {
-						levelmap[x][y] -= 255;
-						pixels[PixelIndex(x, y)] = Color.BLACK;
-					} else {
-						pixels[PixelIndex(x, y)] = Color.WHITE;
-					}
+	/**
+	 * Converts rows [first, end) of the bitmap into the monochrome plane.
+	 */
+	private void convertRows(Bitmap picture, int first, int end) {
+		StarDither dither = null;
+		if (dithering == true) {
+			dither = new StarDither(ditherKernel, ditherIntensity, width);
+		}
 
-					int sixteenthOfQuantError = levelmap[x][y] / 16;
+		int[] strip = new int[width * Math.min(STRIP_ROWS, end - first)];
 
-					if (x < width - 1)
-						levelmap[x + 1][y] += sixteenthOfQuantError * 7;
+		for (int y = first; y < end; y += STRIP_ROWS) {
+			int rows = Math.min(STRIP_ROWS, end - y);
+			picture.getPixels(strip, 0, width, 0, y, width, rows);
 
-					if (y < height - 1) {
-						levelmap[x][y + 1] += sixteenthOfQuantError * 5;
+			for (int row = 0; row < rows; row++) {
+				int src = row * width;
+				int dst = (y + row) * bytesPerRow;
 
-						if (x > 0)
-							levelmap[x - 1][y + 1] += sixteenthOfQuantError * 3;
-						if (x < width - 1)
-							levelmap[x + 1][y + 1] += sixteenthOfQuantError;
+				if (dither != null) {
+					for (int x = 0; x < width; x++) {
+						strip[src + x] = channelSum(strip[src + x]);
 					}
+					dither.ditherRow(strip, src, mono, dst, y + row);
+					continue;
 				}
-			} else {
-				for (int x = width - 1; x >= 0; x--) {
-					int pixel = pixels[PixelIndex(x, y)];
-
-					levelmap[x][y] += 255 - GetGreyLevel(pixel, intensity);
 
-					if (levelmap[x][y] >= 255) {
-						levelmap[x][y] -= 255;
-						pixels[PixelIndex(x, y)] = Color.BLACK;
-					} else {
-						pixels[PixelIndex(x, y)] = Color.WHITE;
-					}
-
-					int sixteenthOfQuantError = levelmap[x][y] / 16;
-
-					if (x > 0)
-						levelmap[x - 1][y] += sixteenthOfQuantError * 7;
-
-					if (y < height - 1) {
-						levelmap[x][y + 1] += sixteenthOfQuantError * 5;
-
-						if (x < width - 1)
-							levelmap[x + 1][y + 1] += sixteenthOfQuantError * 3;
+				thresholdRow(strip, src, width, mono, dst);
+			}
+		}
+	}
 
-						if (x > 0)
-							levelmap[x - 1][y + 1] += sixteenthOfQuantError;
-					}
+	/**
+	 * Packs one row of ARGB pixels into the monochrome plane, printing
+	 * pixels darker than THRESHOLD black. The channel sum is compared with
+	 * three times the threshold, which saves a division per pixel.
+	 */
+	static void thresholdRow(int[] argb, int src, int width, byte[] mono, int dst) {
+		int limit = THRESHOLD * 3;
+		for (int x = 0; x < width; x += 8) {
+			int end = Math.min(x + 8, width);
+			int packed = 0;
+
+			for (int i = src + x; i < src + end; i++) {
+				int pixel = argb[i];
+				packed <<= 1;
+				if (((pixel >> 16) & 0xff) + ((pixel >> 8) & 0xff) + (pixel & 0xff) < limit) {
+					packed |= 1;
 				}
 			}
+
+			mono[dst + (x >> 3)] = (byte) (packed << (8 - (end - x)));
 		}
 	}
 
-	public byte[] getImageRasterDataForPrinting(boolean compressionEnable) {
-		if (imageData != null) {
-			return imageData;
-		}
+	/**
+	 * Red, green and blue added up: three times the brightness, without
+	 * losing the remainder to the division.
+	 */
+	private static int channelSum(int pixel) {
+		return ((pixel >> 16) & 0xff) + ((pixel >> 8) & 0xff) + (pixel & 0xff);
+	}
 
-		// Converts the image to a Monochrome image using a Steinbert Dithering algorithm. This call can be removed but it that will also remove any dithering.
-		if (dithering == true) {
-			ConvertToMonochromeSteinbertDithering((float) 1.5);
+	/**
+	 * Transposes an 8x8 bit block held in a long, one row per byte with the
+	 * first row in the most significant byte. Afterwards byte k holds column
+	 * k, with the first row in its most significant bit.
+	 */
+	private static long transpose8x8(long x) {
+		long t;
+		t = (x ^ (x >>> 7)) & 0x00AA00AA00AA00AAL;
+		x = x ^ t ^ (t << 7);
+		t = (x ^ (x >>> 14)) & 0x0000CCCC0000CCCCL;
+		x = x ^ t ^ (t << 14);
+		t = (x ^ (x >>> 28)) & 0x00000000F0F0F0F0L;
+		x = x ^ t ^ (t << 28);
+		return x;
+	}
+
+	/**
+	 * Returns the raster formats of the profile that can carry this image,
+	 * fastest first: compressed ESC X 4 bands, then Star raster rows, then a
+	 * single GS 8 L command if it fits the printer, then uncompressed ESC X 4
+	 * bands and finally impact bit image lines.
+	 */
+	public int[] rasterFormatsFor(PrinterProfile profile) {
+		int[] formats = new int[4];
+		int count = 0;
+
+		boolean bands = profile.supports(PrinterProfile.RASTER_ESC_X4)
+				&& bytesPerRow <= 255 && profile.fitsBand(bytesPerRow * 24 + 9);
+		if (bands && profile.supportsCompression()) {
+			formats[count++] = PrinterProfile.RASTER_ESC_X4;
+		}
+		if (profile.supports(PrinterProfile.RASTER_STAR)) {
+			formats[count++] = PrinterProfile.RASTER_STAR;
+		}
+		if (profile.supports(PrinterProfile.RASTER_ESCPOS)
+				&& profile.fitsBand(17 + bytesPerRow * height)) {
+			formats[count++] = PrinterProfile.RASTER_ESCPOS;
+		}
+		if (bands && !profile.supportsCompression()) {
+			formats[count++] = PrinterProfile.RASTER_ESC_X4;
+		}
+		if (profile.supports(PrinterProfile.RASTER_IMPACT)) {
+			formats[count++] = PrinterProfile.RASTER_IMPACT;
 		}
 
-		int mWidth = width / 8;
-		if ((width % 8) != 0) {
-			mWidth++;
+		if (count == 0) {
+			throw new IllegalArgumentException("The image is too large for "
+					+ profile.getName());
 		}
+		int[] result = new int[count];
+		System.arraycopy(formats, 0, result, 0, count);
+		return result;
+	}
 
-		ArrayList<byte[]> list = new ArrayList<byte[]>();
-		int dataLength = 0;
-		byte[] constructedBytes = new byte[3 + mWidth];
+	/**
+	 * Returns the fastest raster format of the profile that can carry this
+	 * image.
+	 */
+	public int rasterFormatFor(PrinterProfile profile) {
+		return rasterFormatsFor(profile)[0];
+	}
 
-		constructedBytes[0] = 'b';
+	public byte[] getImageDataForPrinting(PrinterProfile profile) throws StarIOPortException {
+		return getImageDataForPrinting(profile, rasterFormatFor(profile));
+	}
 
-		int blank = 0;
+	private byte[] getImageDataForPrinting(PrinterProfile profile, int rasterFormat) throws StarIOPortException {
+		CommandWriter out = new CommandWriter(bytesPerRow * height + 64);
+		writeImageData(out, profile, rasterFormat);
+		return out.toByteArray();
+	}
 
-		for (int y = 0; y < height; y++) {
-			int pos = 0;
+	/**
+	 * Encodes the image in the two fastest raster formats of the profile and
+	 * returns the shorter command, for links where the bytes on the wire
+	 * cost more than encoding twice. Compressed bands usually win, but
+	 * images that compress badly, such as dithered photos, can be shorter
+	 * as plain raster rows.
+	 */
+	public byte[] getSmallestImageDataForPrinting(PrinterProfile profile) throws StarIOPortException {
+		int[] formats = rasterFormatsFor(profile);
+		byte[] smallest = getImageDataForPrinting(profile, formats[0]);
+		if (formats.length > 1) {
+			byte[] other = getImageDataForPrinting(profile, formats[1]);
+			if (other.length < smallest.length) {
+				smallest = other;
+			}
+		}
+		return smallest;
+	}
 
-			for (int x = 0; x < mWidth; x++) {
-				byte constructedByte = 0x00;
+	/**
+	 * Appends the image to out as a complete command in the raster format
+	 * chosen by {@link #rasterFormatFor}.
+	 */
+	public void writeImageData(CommandWriter out, PrinterProfile profile) throws StarIOPortException {
+		writeImageData(out, profile, rasterFormatFor(profile));
+	}
 
-				for (int j = 0; j < 8; j++) {
-					int pixel;
-					constructedByte = (byte) (constructedByte << 1);
+	/**
+	 * Appends the image to out as a complete command in one of the raster
+	 * formats of {@link #rasterFormatsFor}.
+	 */
+	public void writeImageData(CommandWriter out, PrinterProfile profile, int rasterFormat) throws StarIOPortException {
+		boolean compressionEnable = profile.supportsCompression();
+
+		switch (rasterFormat) {
+		case PrinterProfile.RASTER_ESC_X4:
+			writeImageEscPosData(out, compressionEnable, false);
+			break;
+		case PrinterProfile.RASTER_STAR:
+			// ESC * r R, ESC * r A: initialize and enter raster mode
+			out.put(new byte[] { 0x1b, 0x2a, 0x72, 0x52, 0x1b, 0x2a, 0x72, 0x41 });
+			writeImageRasterData(out, compressionEnable);
+			// ESC * r B: quit raster mode
+			out.put(new byte[] { 0x1b, 0x2a, 0x72, 0x42 });
+			break;
+		case PrinterProfile.RASTER_ESCPOS:
+			writeImageESCPOSRasterData(out);
+			// GS ( L fn 50: print the graphics data
+			out.put(new byte[] { 0x1d, 0x28, 0x4c, 0x02, 0x00, 0x30, 0x32 });
+			break;
+		case PrinterProfile.RASTER_IMPACT:
+			writeImageImpactPrinterData(out);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown raster format " + rasterFormat);
+		}
+	}
 
-					if (pos < width) {
-						pixel = pixels[PixelIndex(pos, y)];
+	public byte[] getImageRasterDataForPrinting(boolean compressionEnable) {
+		if (imageData != null) {
+			return imageData;
+		}
 
-						if (pixelBrightness(Color.red(pixel), Color.green(pixel), Color.blue(pixel)) < 127) {
-							constructedByte |= 0x01;
-						}
-					}
+		CommandWriter out = new CommandWriter(rasterDataBound());
+		writeImageRasterData(out, compressionEnable);
+		imageData = out.toByteArray();
+		return imageData;
+	}
 
-					pos++;
-				}
+	/**
+	 * Upper bound of the size of the Star raster data, used to size the
+	 * output buffer up front.
+	 */
+	private int rasterDataBound() {
+		return height * (3 + bytesPerRow) + 9 * (height / 1000) + 8;
+	}
 
-				constructedBytes[3 + x] = constructedByte;
-			}
+	/**
+	 * Appends the image as Star raster rows (b n1 n2 d1...dk) to out. Blank
+	 * rows are sent as ESC * r Y feeds when compression is enabled.
+	 */
+	public void writeImageRasterData(CommandWriter out, boolean compressionEnable) {
+		int mWidth = bytesPerRow;
+		out.ensureCapacity(rasterDataBound());
 
+		int blank = 0;
+
+		for (int y = 0; y < height; y++) {
+			int rowOffset = y * mWidth;
 			int work = mWidth;
 
 			if (compressionEnable) {
-				while (work != 0) {
+				// Trailing white bytes are not sent
+				while (work != 0 && mono[rowOffset + work - 1] == 0x00) {
 					work--;
-
-					if (constructedBytes[3 + work] != 0x00) {
-						work++;
-						break;
-					}
 				}
 			}
 
 			if (work != 0) {
-				while (blank >= 1000) {
-					list.add(new byte[]{0x1b, '*', 'r', 'Y', '1', '0', '0', '0', 0x00});
-					dataLength += 9;
-					blank -= 1000;
-				}
-
 				if (blank != 0) {
-					list.add(new byte[]{ 0x1b, '*', 'r', 'Y', (byte)('0' + blank / 100), (byte)('0' + (blank % 100) / 10), (byte)('0' + blank % 10), 0x00 });
-					dataLength += 8;
+					int start = out.skip(blankFeedLength(blank));
+					writeBlankFeed(out.array(), start, blank);
+					blank = 0;
 				}
 
-				blank = 0;
-
-				constructedBytes[1] = (byte) (work % 256);
-				constructedBytes[2] = (byte) (work / 256);
-
-				list.add(constructedBytes.clone());
-				dataLength += 3 + mWidth;
+				out.put('b');
+				out.put(work % 256);
+				out.put(work / 256);
+				out.put(mono, rowOffset, work);
 			} else {
 				blank++;
 			}
 		}
 
+		if (blank != 0) {
+			int start = out.skip(blankFeedLength(blank));
+			writeBlankFeed(out.array(), start, blank);
+		}
+	}
+
+	private static int blankFeedLength(int blank) {
+		return (blank / 1000) * 9 + ((blank % 1000) != 0 ? 8 : 0);
+	}
+
+	private static void writeBlankFeed(byte[] buffer, int offset, int blank) {
 		while (blank >= 1000) {
-			list.add(new byte[]{0x1b, '*', 'r', 'Y', '1', '0', '0', '0', 0x00});
-			dataLength += 9;
+			buffer[offset++] = 0x1b;
+			buffer[offset++] = '*';
+			buffer[offset++] = 'r';
+			buffer[offset++] = 'Y';
+			buffer[offset++] = '1';
+			buffer[offset++] = '0';
+			buffer[offset++] = '0';
+			buffer[offset++] = '0';
+			buffer[offset++] = 0x00;
 			blank -= 1000;
 		}
 
 		if (blank != 0) {
-			list.add(new byte[]{ 0x1b, '*', 'r', 'Y', (byte)('0' + blank / 100), (byte)('0' + (blank % 100) / 10), (byte)('0' + blank % 10), 0x00 });
-			dataLength += 8;
+			buffer[offset++] = 0x1b;
+			buffer[offset++] = '*';
+			buffer[offset++] = 'r';
+			buffer[offset++] = 'Y';
+			buffer[offset++] = (byte) ('0' + blank / 100);
+			buffer[offset++] = (byte) ('0' + (blank % 100) / 10);
+			buffer[offset++] = (byte) ('0' + blank % 10);
+			buffer[offset++] = 0x00;
 		}
-
-		int distPosition = 0;
-		imageData = new byte[dataLength];
-		for (int i = 0; i < list.size(); i++) {
-			System.arraycopy(list.get(i), 0, imageData, distPosition, list.get(i).length);
-			distPosition += list.get(i).length;
-		}
-
-		return imageData;
 	}
 
 	public byte[] getImageESCPOSRasterDataForPrinting() {
@@ -252,17 +438,18 @@ public class StarBitmap {
 			return imageData;
 		}
 
-		// Converts the image to a Monochrome image using a Steinbert Dithering algorithm. This call can be removed but it that will also remove any dithering.
-		if (dithering == true) {
-			ConvertToMonochromeSteinbertDithering((float) 1.5);
-		}
-
-		int mWidth = width / 8;
-		if ((width % 8) != 0) {
-			mWidth++;
-		}
+		CommandWriter out = new CommandWriter(17 + bytesPerRow * height);
+		writeImageESCPOSRasterData(out);
+		imageData = out.toByteArray();
+		return imageData;
+	}
 
-		ArrayList<Byte> data = new ArrayList<Byte>();
+	/**
+	 * Appends the image as a single ESC/POS GS 8 L raster graphics command to
+	 * out. The monochrome plane already has the layout the command expects.
+	 */
+	public void writeImageESCPOSRasterData(CommandWriter out) {
+		int mWidth = bytesPerRow;
 
 		// The real algorithm for converting an image to escpos data is below
 		int commandSize = mWidth * height;
@@ -282,41 +469,9 @@ public class StarBitmap {
 		byte yL = (byte) (height % 256);
 		byte yH = (byte) (height / 256);
 
-		byte[] rasterCommand = new byte[] { 0x1d, 0x38, 0x4c, p1, p2, p3, p4, m, fn, a, bx, by, c, xL, xH, yL, yH };
-
-		for (int count = 0; count < rasterCommand.length; count++) {
-			data.add(rasterCommand[count]);
-		}
-
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < mWidth; x++) {
-				byte constructedByte = 0;
-
-				for (int j = 0; j < 8; j++) {
-					constructedByte = (byte) (constructedByte << 1);
-
-					int pixel;
-					int widthPixel = (x * 8) + j;
-					if (widthPixel < width) {
-						pixel = pixels[PixelIndex(widthPixel, y)];
-					} else {
-						pixel = Color.WHITE;
-					}
-
-					if (pixelBrightness(Color.red(pixel), Color.green(pixel), Color.blue(pixel)) < 127) {
-						constructedByte = (byte) (constructedByte | 1);
-					}
-				}
-				data.add(constructedByte);
-			}
-		}
-
-		imageData = new byte[data.size()];
-		for (int count = 0; count < data.size(); count++) {
-			imageData[count] = data.get(count);
-		}
-
-		return imageData;
+		out.ensureCapacity(17 + commandSize);
+		out.put(new byte[] { 0x1d, 0x38, 0x4c, p1, p2, p3, p4, m, fn, a, bx, by, c, xL, xH, yL, yH });
+		out.put(mono, 0, commandSize);
 	}
 
 	public byte[] getImageEscPosDataForPrinting(boolean compressionEnable, boolean pageModeEnable) throws StarIOPortException {
@@ -324,122 +479,186 @@ public class StarBitmap {
 			return imageData;
 		}
 
-		if (dithering == true) {
-			ConvertToMonochromeSteinbertDithering((float) 1.5);
+		int bands = (height + 23) / 24;
+		CommandWriter out = new CommandWriter(18 + bands * (9 + bytesPerRow * 24) + 4);
+		writeImageEscPosData(out, compressionEnable, pageModeEnable);
+		imageData = out.toByteArray();
+		return imageData;
+	}
+
+	/**
+	 * Appends the image to out as ESC X 4 bands of 24 rows each, compressed
+	 * with StarIOPort.compressRasterData when compression is enabled.
+	 */
+	public void writeImageEscPosData(CommandWriter out, boolean compressionEnable, boolean pageModeEnable) throws StarIOPortException {
+		writeImageEscPosHeader(out, pageModeEnable);
+
+		if (compressionEnable && EncoderPool.shouldSplit(height)) {
+			writeCompressedBandsInParallel(out);
+		} else {
+			for (int band = 0; band < bandCount(); band++) {
+				writeImageEscPosBand(out, band, compressionEnable);
+			}
 		}
 
-		int w = width / 8;
-		if ((width % 8) != 0)
-			w++;
-		int mWidth = w * 8;
+		writeImageEscPosFooter(out);
+	}
 
-		// int pixelSize = 3;
-		int byteWidth = mWidth / 8;
-		// u_int8_t n1 = (u_int8_t)(byteWidth % 256);
-		// u_int8_t n2 = (u_int8_t)(byteWidth / 256);
+	/**
+	 * Number of 24-row ESC X 4 bands in the image.
+	 */
+	public int bandCount() {
+		return (height + 23) / 24;
+	}
 
-		byte[] data;
-		ArrayList<Byte> someData = new ArrayList<Byte>();
+	/**
+	 * Appends the commands that go before the first ESC X 4 band: a reset
+	 * and, in page mode, the printable area of the image.
+	 */
+	public void writeImageEscPosHeader(CommandWriter out, boolean pageModeEnable) {
+		int mWidth = bytesPerRow * 8;
 
-		Byte[] beginingBytes;
 		if (true == pageModeEnable) {
-			beginingBytes = new Byte[] { 0x1b, 0x40, // ESC @
+			out.put(new byte[] { 0x1b, 0x40, // ESC @
 					0x1b, 0x4c, // ESC L (Start Page mode) /* for smooth printing by Portable printer */
 					0x1b, 0x57, // ESC W xL xH yL yH dxL dxH dyL dyH (Setting of page mode printable area)
-					0x00, 0x00, 0x00, 0x00, (byte) (mWidth % 256), (byte) (mWidth / 256), (byte) ((height + 40) % 256), (byte) ((height + 40) / 256), 0x1b, 0x58, 0x32, 0x18 }; // ESC X 2 n
+					0x00, 0x00, 0x00, 0x00, (byte) (mWidth % 256), (byte) (mWidth / 256), (byte) ((height + 40) % 256), (byte) ((height + 40) / 256), 0x1b, 0x58, 0x32, 0x18 }); // ESC X 2 n
 		} else {
-			beginingBytes = new Byte[] { 0x1b, 0x40 };
+			out.put(new byte[] { 0x1b, 0x40 });
 		}
+	}
 
-		for (int count = 0; count < beginingBytes.length; count++) {
-			someData.add(beginingBytes[count]);
+	/**
+	 * Appends one 24-row band as an ESC X 4 command, compressed with
+	 * StarIOPort.compressRasterData when compression is enabled.
+	 * 
+	 * @param band
+	 *            Index of the band, 0 is the top 24 rows
+	 */
+	public void writeImageEscPosBand(CommandWriter out, int band, boolean compressionEnable) throws StarIOPortException {
+		int byteWidth = bytesPerRow;
+
+		if (compressionEnable) {
+			// Only the compressed path needs the band in a separate array
+			if (bandData == null) {
+				bandData = new byte[byteWidth * 24];
+			}
+			copyBand(bandData, 0, band * 24);
+			out.put(compressBand(bandData));
+		} else {
+			out.put(new byte[] { 0x1b, 0x58, 0x34, (byte) byteWidth, 24 });
+			int pos = out.skip(byteWidth * 24);
+			copyBand(out.array(), pos, band * 24);
+			out.put(new byte[] { 0x1b, 0x58, 0x32, 0x18 });
 		}
+	}
 
-		int totalRowCount = 0;
-
-		while (totalRowCount < height) {
-			data = new byte[byteWidth * 24];
-
-			int pos = 0;
-
-			for (int y = 0; y < 24; y++) {
-				if (totalRowCount < height) {
-					for (int x = 0; x < byteWidth; x++) {
-						int bits = 8;
-
-						if (((byteWidth - 1) == x) && (width < mWidth)) {
-							bits = 8 - (mWidth - width);
-						}
+	/**
+	 * Appends the commands that go after the last ESC X 4 band.
+	 */
+	public void writeImageEscPosFooter(CommandWriter out) {
+		out.put(new byte[] { 0x0c, // FF (printing of page mode and return printing of standard mode) /* for smooth printing by Portable printer */
+				0x1b, 0x4A, 0x28 });
+	}
 
-						byte work = 0x00;
+	/**
+	 * Compresses one 24-row band with StarIOPort.compressRasterData, or wraps
+	 * it in an uncompressed ESC X 4 command if the library returns nothing.
+	 */
+	private byte[] compressBand(byte[] data) throws StarIOPortException {
+		int byteWidth = bytesPerRow;
+		byte[] command = null;
+		String portSettings = "mini";
 
-						for (int xbit = 0; xbit < bits; xbit++) {
-							work <<= 1;
+		try {
+			command = StarIOPort.compressRasterData(byteWidth, 24, data, portSettings);
+			// command = StarIOPort.generateBitImageCommand(byteWidth, 24, data, portSettings); // Deprecated API
+		} catch (StarIOPortException e) {
+			throw new StarIOPortException(e.getMessage());
+		}
 
-							int pixel = pixels[PixelIndex(x * 8 + xbit, totalRowCount)];
+		if (null != command) {
+			return command;
+		}
 
-							if (pixelBrightness(Color.red(pixel), Color.green(pixel), Color.blue(pixel)) < 127) {
-								work |= 0x01;
-							}
-						}
+		command = new byte[5 + data.length + 4];
+		command[0] = 0x1b;
+		command[1] = 0x58;
+		command[2] = 0x34;
+		command[3] = (byte) byteWidth;
+		command[4] = 24;
+		System.arraycopy(data, 0, command, 5, data.length);
+		command[5 + data.length] = 0x1b;
+		command[6 + data.length] = 0x58;
+		command[7 + data.length] = 0x32;
+		command[8 + data.length] = 0x18;
+		return command;
+	}
 
-						data[pos++] = work;
+	/**
+	 * Compresses the bands of the image on the encoder pool, each worker
+	 * taking a contiguous range of bands, and appends them in order.
+	 */
+	private void writeCompressedBandsInParallel(CommandWriter out) throws StarIOPortException {
+		int bands = (height + 23) / 24;
+		int perTask = (bands + EncoderPool.WORKERS - 1) / EncoderPool.WORKERS;
+
+		List<Callable<List<byte[]>>> tasks = new ArrayList<Callable<List<byte[]>>>();
+		for (int firstBand = 0; firstBand < bands; firstBand += perTask) {
+			final int start = firstBand;
+			final int end = Math.min(bands, firstBand + perTask);
+			tasks.add(new Callable<List<byte[]>>() {
+				public List<byte[]> call() throws StarIOPortException {
+					byte[] data = new byte[bytesPerRow * 24];
+					List<byte[]> commands = new ArrayList<byte[]>(end - start);
+					for (int band = start; band < end; band++) {
+						copyBand(data, 0, band * 24);
+						commands.add(compressBand(data));
 					}
+					return commands;
 				}
-				totalRowCount++;
-			}
-
-			byte[] command = null;
-
-			if (true == compressionEnable) {
-				String portSettings = "mini";
-
-				try {
-					command = StarIOPort.compressRasterData(byteWidth, 24, data, portSettings);
-					// command = StarIOPort.generateBitImageCommand(byteWidth, 24, data, portSettings); // Deprecated API
-				} catch (StarIOPortException e) {
-					throw new StarIOPortException(e.getMessage());
-				}
-			}
-
-			if (null != command) {
-				for (int count = 0; count < command.length; count++) {
-					someData.add(command[count]);
-				}
-			} else {
-				Byte[] imagestarting = new Byte[] { 0x1b, 0x58, 0x34, 0, 24 };
-				imagestarting[3] = (byte) byteWidth;
-
-				for (int count = 0; count < imagestarting.length; count++) {
-					someData.add(imagestarting[count]);
-				}
-
-				for (int count = 0; count < data.length; count++) {
-					someData.add(data[count]);
-				}
+			});
+		}
 
-				byte[] imageData4 = { 0x1b, 0x58, 0x32, 0x18 };
+		List<List<byte[]>> results;
+		try {
+			results = EncoderPool.runAll(tasks);
+		} catch (StarIOPortException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StarIOPortException(e.getMessage());
+		}
 
-				for (int count = 0; count < imageData4.length; count++) {
-					someData.add(imageData4[count]);
-				}
+		for (List<byte[]> commands : results) {
+			for (byte[] command : commands) {
+				out.put(command);
 			}
-
 		}
+	}
 
-		byte imageData5[] = { 0x0c, // FF (printing of page mode and return printing of standard mode) /* for smooth printing by Portable printer */
-				0x1b, 0x4A, 0x28 };
-
-		for (int count = 0; count < imageData5.length; count++) {
-			someData.add(imageData5[count]);
+	/**
+	 * Copies the 24 rows starting at top into band. Rows past the bottom of
+	 * the image are white.
+	 */
+	private void copyBand(byte[] band, int offset, int top) {
+		int rows = Math.min(24, height - top);
+		int length = rows * bytesPerRow;
+		System.arraycopy(mono, top * bytesPerRow, band, offset, length);
+
+		int pad = bytesPerRow * 8 - width;
+		if (pad != 0) {
+			// The partial last byte of a row is sent right-aligned in ESC X 4
+			for (int i = offset + bytesPerRow - 1; i < offset + length; i += bytesPerRow) {
+				band[i] = (byte) ((band[i] & 0xff) >>> pad);
+			}
 		}
 
-		imageData = new byte[someData.size()];
-		for (int count = 0; count < someData.size(); count++) {
-			imageData[count] = someData.get(count);
+		int end = offset + 24 * bytesPerRow;
+		for (int i = offset + length; i < end; i++) {
+			band[i] = 0;
 		}
-
-		return imageData;
 	}
 
 	public byte[] getImageImpactPrinterForPrinting() {
@@ -447,68 +666,103 @@ public class StarBitmap {
 			return imageData;
 		}
 
-		if (dithering == true) {
-			ConvertToMonochromeSteinbertDithering((float) 1.5);
-		}
-
-		int mHeight = height / 8;
-		if ((height % 8) != 0) {
-			mHeight++;
-		}
-
-		ArrayList<Byte> data = new ArrayList<Byte>();
-		int heightLocation = 0;
-		int bitLocation = 0;
-		byte nextByte = 0;
+		CommandWriter out = new CommandWriter(impactDataLength());
+		writeImageImpactPrinterData(out);
+		imageData = out.toByteArray();
+		return imageData;
+	}
 
+	private int impactColumns() {
 		int cwidth = width;
 		if (cwidth > 199) {
 			cwidth = 199;
 		}
+		return cwidth;
+	}
 
-		byte[] cancelColor = new byte[] { 0x1b, 0x1e, 'C', 48 };
-		for (int count = 0; count < cancelColor.length; count++) {
-			data.add(cancelColor[count]);
-		}
-
-		for (int x = 0; x < mHeight; x++) {
-			byte[] imageCommand = new byte[] { 0x1b, 'K', (byte) cwidth, 0 };
-			for (int count = 0; count < imageCommand.length; count++) {
-				data.add(imageCommand[count]);
-			}
+	private int impactDataLength() {
+		return 4 + ((height + 7) / 8) * (4 + impactColumns() + 3);
+	}
 
-			for (int w = 0; w < cwidth; w++) {
-				for (int j = 0; j < 8; j++) {
-					int pixel;
-					if (j + (heightLocation * 8) < height) {
-						pixel = pixels[PixelIndex(w, j + (heightLocation * 8))];
-					} else {
-						pixel = Color.WHITE;
-					}
-					if (pixelBrightness(Color.red(pixel), Color.green(pixel), Color.blue(pixel)) < 127) {
-						nextByte = (byte) (nextByte | (1 << (7 - bitLocation)));
-					}
-					bitLocation++;
-					if (bitLocation == 8) {
-						bitLocation = 0;
-						data.add(nextByte);
-						nextByte = 0;
-					}
+	/**
+	 * Appends the image to out as ESC K bit image lines for impact printers.
+	 * Each line is 8 rows high and sent one column byte at a time, so every
+	 * 8x8 block of the monochrome plane is transposed. The image is cut off
+	 * at 199 dots wide.
+	 */
+	public void writeImageImpactPrinterData(CommandWriter out) {
+		int mHeight = (height + 7) / 8;
+		int cwidth = impactColumns();
+
+		out.ensureCapacity(impactDataLength());
+		out.put(new byte[] { 0x1b, 0x1e, 'C', 48 });
+
+		for (int line = 0; line < mHeight; line++) {
+			out.put(0x1b);
+			out.put('K');
+			out.put(cwidth);
+			out.put(0);
+
+			int pos = out.skip(cwidth);
+			byte[] buffer = out.array();
+			int top = line * 8;
+			int rows = Math.min(8, height - top);
+
+			for (int xb = 0; xb * 8 < cwidth; xb++) {
+				long block = 0;
+				for (int j = 0; j < rows; j++) {
+					block |= (long) (mono[(top + j) * bytesPerRow + xb] & 0xff) << (56 - 8 * j);
+				}
+				block = transpose8x8(block);
 
+				int columns = Math.min(8, cwidth - xb * 8);
+				for (int k = 0; k < columns; k++) {
+					buffer[pos++] = (byte) (block >>> (56 - 8 * k));
 				}
 			}
-			heightLocation++;
-			byte[] lineFeed = new byte[] { 0x1b, 0x49, 0x10 };
-			for (int count = 0; count < lineFeed.length; count++) {
-				data.add(lineFeed[count]);
-			}
+
+			out.put(0x1b);
+			out.put(0x49);
+			out.put(0x10);
 		}
+	}
 
-		imageData = new byte[data.size()];
-		for (int count = 0; count < imageData.length; count++) {
-			imageData[count] = data.get(count);
+	/**
+	 * Appends the image as one bit image of an FS q NV bit image definition:
+	 * the width and height in units of 8 dots followed by the image one
+	 * column at a time, each column top to bottom with the top dot in the
+	 * most significant bit. The edges are padded with blank dots.
+	 */
+	public void writeNvBitImageData(CommandWriter out) throws StarIOPortException {
+		int xBytes = bytesPerRow;
+		int yBytes = (height + 7) / 8;
+		if (xBytes > 1023 || yBytes > 288) {
+			throw new StarIOPortException("Logo is too large to store in the printer");
 		}
 
-		return imageData;
+		out.put(xBytes % 256);
+		out.put(xBytes / 256);
+		out.put(yBytes % 256);
+		out.put(yBytes / 256);
+
+		int pos = out.skip(xBytes * 8 * yBytes);
+		byte[] buffer = out.array();
+
+		for (int line = 0; line < yBytes; line++) {
+			int top = line * 8;
+			int rows = Math.min(8, height - top);
+
+			for (int xb = 0; xb < xBytes; xb++) {
+				long block = 0;
+				for (int j = 0; j < rows; j++) {
+					block |= (long) (mono[(top + j) * bytesPerRow + xb] & 0xff) << (56 - 8 * j);
+				}
+				block = transpose8x8(block);
+
+				for (int k = 0; k < 8; k++) {
+					buffer[pos + (xb * 8 + k) * yBytes + line] = (byte) (block >>> (56 - 8 * k));
+				}
+			}
+		}
 	}
 }
@@ -0,0 +1,203 @@
+package com.star.printer;
+
+import java.util.Arrays;
+
+/**
+ * Converts rows of brightness into the packed monochrome plane used by
+ * StarBitmap. Rows are fed one at a time from the top, and only the error
+ * rows the kernel diffuses into are kept, so the whole image never has to be
+ * held as brightness values. All arithmetic is integer.
+ */
+public class StarDither {
+
+	/** Serpentine Floyd-Steinberg, the kernel StarBitmap has always used. */
+	public static final int FLOYD_STEINBERG = 0;
+	/** Atkinson: diffuses 6/8 of the error, keeps highlights and shadows clean. */
+	public static final int ATKINSON = 1;
+	/** Sierra Lite: three neighbours, close to Floyd-Steinberg but cheaper. */
+	public static final int SIERRA_LITE = 2;
+	/** 8x8 ordered Bayer matrix: no error buffer at all, fastest. */
+	public static final int BAYER = 3;
+
+	/** Brightness multiplier in percent the plugin has always dithered with. */
+	public static final int DEFAULT_INTENSITY = 150;
+
+	// Error rows are padded so kernels can write past either edge
+	private static final int PAD = 2;
+
+	private static final int[] BAYER_MATRIX = {
+			0, 32, 8, 40, 2, 34, 10, 42,
+			48, 16, 56, 24, 50, 18, 58, 26,
+			12, 44, 4, 36, 14, 46, 6, 38,
+			60, 28, 52, 20, 62, 30, 54, 22,
+			3, 35, 11, 43, 1, 33, 9, 41,
+			51, 19, 59, 27, 49, 17, 57, 25,
+			15, 47, 7, 39, 13, 45, 5, 37,
+			63, 31, 55, 23, 61, 29, 53, 21 };
+
+	private final int kernel;
+	private final int intensity;
+	private final int width;
+	// errors[0] is the current row, errors[1] and errors[2] the rows below
+	private final int[][] errors;
+
+	/**
+	 * @param kernel
+	 *            One of FLOYD_STEINBERG, ATKINSON, SIERRA_LITE or BAYER
+	 * @param intensityPercent
+	 *            Brightness multiplier applied before dithering, in percent
+	 * @param width
+	 *            Width of the image in pixels
+	 */
+	public StarDither(int kernel, int intensityPercent, int width) {
+		if (kernel < FLOYD_STEINBERG || kernel > BAYER) {
+			throw new IllegalArgumentException("Unknown dithering kernel " + kernel);
+		}
+		this.kernel = kernel;
+		this.intensity = intensityPercent;
+		this.width = width;
+
+		int rows = (kernel == BAYER) ? 0 : (kernel == ATKINSON) ? 3 : 2;
+		errors = new int[rows][width + 2 * PAD];
+	}
+
+	/**
+	 * Dithers row y of the image.
+	 *
+	 * @param luma
+	 *            Brightness of each pixel of the row starting at lumaOffset,
+	 *            as the sum of its red, green and blue values: 0 = black,
+	 *            765 = white
+	 * @param mono
+	 *            Packed monochrome plane; black pixels are set in the row
+	 *            starting at monoOffset, which must be cleared beforehand
+	 */
+	public void ditherRow(int[] luma, int lumaOffset, byte[] mono, int monoOffset, int y) {
+		switch (kernel) {
+		case BAYER:
+			orderedRow(luma, lumaOffset, mono, monoOffset, y);
+			return;
+		case FLOYD_STEINBERG:
+			floydSteinbergRow(luma, lumaOffset, mono, monoOffset, y);
+			break;
+		case ATKINSON:
+			atkinsonRow(luma, lumaOffset, mono, monoOffset, y);
+			break;
+		default:
+			sierraLiteRow(luma, lumaOffset, mono, monoOffset, y);
+			break;
+		}
+
+		// Move down a row
+		int[] done = errors[0];
+		for (int i = 1; i < errors.length; i++) {
+			errors[i - 1] = errors[i];
+		}
+		Arrays.fill(done, 0);
+		errors[errors.length - 1] = done;
+	}
+
+	/**
+	 * How dark the pixel is after the intensity is applied, 0 = white. The
+	 * channel sum is divided by three only after the intensity is applied,
+	 * which at DEFAULT_INTENSITY gives exactly the levels of the float
+	 * arithmetic StarBitmap used to dither with.
+	 */
+	private int darkness(int channelSum) {
+		int gray = channelSum * intensity / 300;
+		if (gray > 255) {
+			gray = 255;
+		}
+		return 255 - gray;
+	}
+
+	private static void setBlack(byte[] mono, int monoOffset, int x) {
+		mono[monoOffset + (x >> 3)] |= (byte) (0x80 >>> (x & 7));
+	}
+
+	private void floydSteinbergRow(int[] luma, int lumaOffset, byte[] mono, int monoOffset, int y) {
+		int[] cur = errors[0];
+		int[] below = errors[1];
+
+		// Serpentine: even rows left to right, odd rows right to left
+		int step = ((y & 1) == 0) ? 1 : -1;
+		int x = (step == 1) ? 0 : width - 1;
+
+		for (int n = 0; n < width; n++, x += step) {
+			int e = x + PAD;
+			int level = cur[e] + darkness(luma[lumaOffset + x]);
+
+			if (level >= 255) {
+				level -= 255;
+				setBlack(mono, monoOffset, x);
+			}
+
+			int sixteenth = level / 16;
+			cur[e + step] += sixteenth * 7;
+			below[e] += sixteenth * 5;
+			below[e - step] += sixteenth * 3;
+			below[e + step] += sixteenth;
+		}
+	}
+
+	private void atkinsonRow(int[] luma, int lumaOffset, byte[] mono, int monoOffset, int y) {
+		int[] cur = errors[0];
+		int[] below = errors[1];
+		int[] below2 = errors[2];
+
+		int step = ((y & 1) == 0) ? 1 : -1;
+		int x = (step == 1) ? 0 : width - 1;
+
+		for (int n = 0; n < width; n++, x += step) {
+			int e = x + PAD;
+			int level = cur[e] + darkness(luma[lumaOffset + x]);
+
+			if (level >= 255) {
+				level -= 255;
+				setBlack(mono, monoOffset, x);
+			}
+
+			int eighth = level >> 3;
+			cur[e + step] += eighth;
+			cur[e + 2 * step] += eighth;
+			below[e - step] += eighth;
+			below[e] += eighth;
+			below[e + step] += eighth;
+			below2[e] += eighth;
+		}
+	}
+
+	private void sierraLiteRow(int[] luma, int lumaOffset, byte[] mono, int monoOffset, int y) {
+		int[] cur = errors[0];
+		int[] below = errors[1];
+
+		int step = ((y & 1) == 0) ? 1 : -1;
+		int x = (step == 1) ? 0 : width - 1;
+
+		for (int n = 0; n < width; n++, x += step) {
+			int e = x + PAD;
+			int level = cur[e] + darkness(luma[lumaOffset + x]);
+
+			if (level >= 255) {
+				level -= 255;
+				setBlack(mono, monoOffset, x);
+			}
+
+			int quarter = level >> 2;
+			cur[e + step] += quarter * 2;
+			below[e - step] += quarter;
+			below[e] += quarter;
+		}
+	}
+
+	private void orderedRow(int[] luma, int lumaOffset, byte[] mono, int monoOffset, int y) {
+		int matrixRow = (y & 7) * 8;
+
+		for (int x = 0; x < width; x++) {
+			// Black once the darkness passes the matrix cell, scaled to 0..255
+			if (darkness(luma[lumaOffset + x]) * 64 >= (BAYER_MATRIX[matrixRow + (x & 7)] + 1) * 255) {
+				setBlack(mono, monoOffset, x);
+			}
+		}
+	}
+}
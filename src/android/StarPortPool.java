@@ -0,0 +1,393 @@
+package com.star.printer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.content.Context;
+
+import com.starmicronics.stario.StarIOPort;
+import com.starmicronics.stario.StarIOPortException;
+
+/**
+ * Keeps printer ports open across jobs instead of opening and releasing a
+ * port for every command. Ports are keyed by (portName, portSettings), checked
+ * with a status probe before they are handed out again and released once they
+ * have been idle for longer than the idle timeout.
+ *
+ * A newly opened port is polled with status requests, backing off between
+ * attempts, until the printer answers. The time each port takes to become
+ * ready is tracked so that the wait for a link that never answers is bounded
+ * by what that link normally needs, after which the port is closed and the
+ * job fails.
+ */
+public class StarPortPool {
+
+	public static final int DEFAULT_OPEN_TIMEOUT = 20000;
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+	// Longest wait for a new port to answer, used until a port has been
+	// measured
+	private static final long MAX_READY_WAIT = 2000;
+	// Shortest wait once a port has been measured: a port that misses it
+	// fails the job, so never less than the fixed sleep polling replaced
+	private static final long MIN_READY_WAIT = 500;
+	// Multiple of the typical ready time waited before giving up
+	private static final int READY_WAIT_FACTOR = 4;
+	private static final long FIRST_PROBE_DELAY = 10;
+	private static final long MAX_PROBE_DELAY = 160;
+
+	private static final StarPortPool sharedPool = new StarPortPool(DEFAULT_IDLE_TIMEOUT);
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final long idleTimeoutMillis;
+	private ScheduledExecutorService sweeper;
+
+	/**
+	 * A pooled port. The lock is held by whoever has the port checked out, so
+	 * only one job talks to a printer at a time.
+	 */
+	private static class Entry {
+		final String portName;
+		final String portSettings;
+		final ReentrantLock lock = new ReentrantLock();
+		StarIOPort port;
+		long lastUsed;
+		volatile boolean closeOnRelease;
+		// Running average of the time from getPort to the first status
+		// answer, -1 until measured
+		volatile long readyMillis = -1;
+		// Running average of the bytes per second printed, from the first
+		// write of a job to the end of its checked block, 0 until measured
+		volatile double bytesPerSecond;
+
+		Entry(String portName, String portSettings) {
+			this.portName = portName;
+			this.portSettings = portSettings;
+		}
+	}
+
+	public StarPortPool(long idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	public static StarPortPool getSharedPool() {
+		return sharedPool;
+	}
+
+	private static String key(String portName, String portSettings) {
+		return portName + "\u0000" + portSettings;
+	}
+
+	private synchronized Entry entryFor(String portName, String portSettings) {
+		String key = key(portName, portSettings);
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry(portName, portSettings);
+			entries.put(key, entry);
+		}
+		startSweeper();
+		return entry;
+	}
+
+	/**
+	 * Checks out the port for the given printer, opening it if there is no
+	 * usable pooled connection. The caller must hand the port back with
+	 * {@link #release(StarIOPort)}, or
+	 * {@link #release(StarIOPort, StarIOPortException)} if a command failed
+	 * on it.
+	 *
+	 * @param context
+	 *            Context passed to StarIOPort.getPort
+	 * @param portName
+	 *            Port name to use for communication. This should be
+	 *            (TCP:<IPAddress> or BT:<Device pair name>)
+	 * @param portSettings
+	 *            Should be mini, the port settings mini is used for portable
+	 *            printers
+	 * @param timeoutMillis
+	 *            Timeout passed to StarIOPort.getPort when a new connection
+	 *            has to be opened. A connection opened with less than
+	 *            DEFAULT_OPEN_TIMEOUT is closed when it is released.
+	 */
+	public StarIOPort acquire(Context context, String portName,
+			String portSettings, int timeoutMillis) throws StarIOPortException {
+		return acquire(context, portName, portSettings, timeoutMillis, true);
+	}
+
+	/**
+	 * Checks out the port like {@link #acquire(Context, String, String, int)}.
+	 *
+	 * @param probe
+	 *            False to hand out a pooled port without checking it first,
+	 *            for callers whose first command is a status request anyway
+	 *            and that release the port with the exception if it fails
+	 */
+	public StarIOPort acquire(Context context, String portName,
+			String portSettings, int timeoutMillis, boolean probe)
+			throws StarIOPortException {
+		Entry entry = entryFor(portName, portSettings);
+		entry.lock.lock();
+		try {
+			if (entry.port != null && !probe) {
+				return entry.port;
+			} else if (entry.port != null) {
+				try {
+					// Cheap probe to make sure the link survived while idle
+					entry.port.retreiveStatus();
+					return entry.port;
+				} catch (StarIOPortException e) {
+					close(entry);
+				}
+			}
+
+			/*
+			 * using StarIOPort3.1.jar (support USB Port) Android OS Version:
+			 * upper 2.2
+			 */
+			entry.port = StarIOPort.getPort(portName, portSettings,
+					timeoutMillis, context);
+			// The timeout also bounds every read and write on the port, so
+			// one opened with a short timeout is not kept for jobs
+			entry.closeOnRelease = timeoutMillis < DEFAULT_OPEN_TIMEOUT;
+			awaitReady(entry);
+
+			return entry.port;
+		} catch (StarIOPortException e) {
+			entry.lock.unlock();
+			throw e;
+		} catch (RuntimeException e) {
+			entry.lock.unlock();
+			throw e;
+		}
+	}
+
+	/**
+	 * Whether the pool holds an open port for the printer. Only a hint: the
+	 * port may be closed or opened by another thread straight afterwards.
+	 */
+	public synchronized boolean isOpen(String portName, String portSettings) {
+		Entry entry = entries.get(key(portName, portSettings));
+		return entry != null && entry.port != null;
+	}
+
+	/**
+	 * Records that a job of this many bytes took millis from its first write
+	 * until the printer reported it printed. Jobs too small to say anything
+	 * about the link are ignored.
+	 */
+	public void recordTransfer(String portName, String portSettings,
+			long bytes, long millis) {
+		if (bytes < 1024 || millis <= 0) {
+			return;
+		}
+		Entry entry = entryFor(portName, portSettings);
+		double rate = bytes * 1000.0 / millis;
+		double average = entry.bytesPerSecond;
+		entry.bytesPerSecond = (average == 0) ? rate : (average * 3 + rate) / 4;
+	}
+
+	/**
+	 * Typical bytes per second the printer takes in and prints, or 0 if no
+	 * job large enough to measure has been printed yet.
+	 */
+	public double getBytesPerSecond(String portName, String portSettings) {
+		return entryFor(portName, portSettings).bytesPerSecond;
+	}
+
+	/**
+	 * Polls a newly opened port with status requests until the printer
+	 * answers, instead of sleeping a fixed time for the socket to open. The
+	 * polls back off from FIRST_PROBE_DELAY to MAX_PROBE_DELAY. A port that
+	 * does not answer within READY_WAIT_FACTOR times its typical ready time
+	 * is closed.
+	 *
+	 * @throws StarIOPortException
+	 *             if the printer did not answer in time
+	 */
+	private static void awaitReady(Entry entry) throws StarIOPortException {
+		long start = System.currentTimeMillis();
+		long typical = entry.readyMillis;
+		long limit = (typical < 0) ? MAX_READY_WAIT : Math.min(MAX_READY_WAIT,
+				Math.max(MIN_READY_WAIT, typical * READY_WAIT_FACTOR));
+		long delay = FIRST_PROBE_DELAY;
+
+		while (true) {
+			try {
+				entry.port.retreiveStatus();
+				long ready = System.currentTimeMillis() - start;
+				entry.readyMillis = (typical < 0) ? ready : (typical * 3 + ready) / 4;
+				return;
+			} catch (StarIOPortException e) {
+				// Not answering yet
+			}
+
+			long remaining = limit - (System.currentTimeMillis() - start);
+			if (remaining <= 0) {
+				// Allow this link longer next time
+				entry.readyMillis = limit;
+				close(entry);
+				throw new StarIOPortException("The printer did not answer within "
+						+ limit + " ms of connecting");
+			}
+			try {
+				Thread.sleep(Math.min(delay, remaining));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close(entry);
+				throw new StarIOPortException("Interrupted while connecting");
+			}
+			delay = Math.min(delay * 2, MAX_PROBE_DELAY);
+		}
+	}
+
+	/**
+	 * Returns a port checked out with {@link #acquire} to the pool. The port
+	 * stays open for the next job.
+	 */
+	public void release(StarIOPort port) {
+		Entry entry = checkedOutEntry(port);
+		if (entry == null) {
+			return;
+		}
+		entry.lastUsed = System.currentTimeMillis();
+		if (entry.closeOnRelease) {
+			entry.closeOnRelease = false;
+			close(entry);
+		}
+		entry.lock.unlock();
+	}
+
+	/**
+	 * Closes a port checked out with {@link #acquire} after a
+	 * StarIOPortException so that the next acquire reconnects.
+	 */
+	public void invalidate(StarIOPort port) {
+		Entry entry = checkedOutEntry(port);
+		if (entry == null) {
+			return;
+		}
+		entry.closeOnRelease = false;
+		close(entry);
+		entry.lock.unlock();
+	}
+
+	/**
+	 * Hands back a port after a command on it failed. The port is closed so
+	 * that the next acquire reconnects, unless the failure only reports that
+	 * the printer is not ready, which leaves the connection itself healthy.
+	 */
+	public void release(StarIOPort port, StarIOPortException failure) {
+		if (isConnectionFailure(failure)) {
+			invalidate(port);
+		} else {
+			release(port);
+		}
+	}
+
+	/**
+	 * Whether a failure may have left the connection unusable, as opposed to
+	 * the printer answering that it is offline, out of paper or has its
+	 * cover open.
+	 */
+	public static boolean isConnectionFailure(Throwable failure) {
+		for (Throwable e = failure; e != null; e = e.getCause()) {
+			if (e instanceof PrinterNotReadyException) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Closes every pooled port. Ports that are checked out are closed as soon
+	 * as their job hands them back.
+	 */
+	public void closeAll() {
+		Entry[] all;
+		synchronized (this) {
+			all = entries.values().toArray(new Entry[entries.size()]);
+			if (sweeper != null) {
+				sweeper.shutdownNow();
+				sweeper = null;
+			}
+		}
+		for (Entry entry : all) {
+			if (entry.lock.tryLock()) {
+				try {
+					close(entry);
+				} finally {
+					entry.lock.unlock();
+				}
+			} else {
+				entry.closeOnRelease = true;
+			}
+		}
+	}
+
+	private synchronized Entry checkedOutEntry(StarIOPort port) {
+		if (port == null) {
+			return null;
+		}
+		for (Entry entry : entries.values()) {
+			if (entry.port == port && entry.lock.isHeldByCurrentThread()) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private static void close(Entry entry) {
+		if (entry.port != null) {
+			try {
+				StarIOPort.releasePort(entry.port);
+			} catch (StarIOPortException e) {
+			}
+			entry.port = null;
+		}
+	}
+
+	private synchronized void startSweeper() {
+		if (sweeper != null) {
+			return;
+		}
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "StarPortPool-sweeper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long period = Math.max(1000, idleTimeoutMillis / 2);
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				evictIdle();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	private void evictIdle() {
+		long now = System.currentTimeMillis();
+		Entry[] all;
+		synchronized (this) {
+			all = entries.values().toArray(new Entry[entries.size()]);
+		}
+		for (Entry entry : all) {
+			// Skip ports that are in use; they are checked again next sweep
+			if (!entry.lock.tryLock()) {
+				continue;
+			}
+			try {
+				if (entry.port != null && now - entry.lastUsed >= idleTimeoutMillis) {
+					close(entry);
+				}
+			} finally {
+				entry.lock.unlock();
+			}
+		}
+	}
+}
@@ -19,10 +19,15 @@
 package com.star.printer;
 
 import java.util.TimeZone;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.star.printer.StarBitmap;
 import com.starmicronics.stario.StarIOPort;
@@ -31,11 +36,15 @@ import com.starmicronics.stario.StarPrinterStatus;
 
 import org.apache.cordova.CordovaWebView;
 import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaArgs;
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.CordovaInterface;
+import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
+import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.AlertDialog.Builder;
 import android.content.Context;
@@ -43,6 +52,7 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.provider.Settings;
+import android.util.Base64;
 
 public class StarPrinter extends CordovaPlugin {
 
@@ -50,6 +60,60 @@ public class StarPrinter extends CordovaPlugin {
 	public static final String CHECKFIRMWARE = "CheckFirmwareVersion";
 	public static final String PRINTSAMPLERECEIPT = "PrintSampleReceipt";
 	public static final String PRINTSIGNATURE = "PrintSignature";
+	public static final String STORELOGOS = "StoreLogos";
+	public static final String PRINTCOMMANDS = "PrintCommands";
+	public static final String PRINTSIGNATUREDATA = "PrintSignatureData";
+	public static final String PRINTIMAGEDATA = "PrintImageData";
+	public static final String GETSTATUS = "GetStatus";
+	public static final String STARTSTATUSMONITOR = "StartStatusMonitor";
+	public static final String STOPSTATUSMONITOR = "StopStatusMonitor";
+	public static final String DISCOVERPRINTERS = "DiscoverPrinters";
+	public static final String GETPRINTERS = "GetPrinters";
+	public static final String SETPRINTER = "SetPrinter";
+	public static final String GETMETRICS = "GetMetrics";
+	public static final String SETMETRICSLOG = "SetMetricsLog";
+	public static final String GETPRINTJOBS = "GetPrintJobs";
+	public static final String CANCELPRINTJOB = "CancelPrintJob";
+	public static final String CLEARPRINTJOBS = "ClearPrintJobs";
+
+	// Lane of the print executor that printer searches run on
+	private static final String DISCOVERY_LANE = "discovery";
+	// Lane of the print executor that job queue requests run on, so they do
+	// not wait for a printer
+	private static final String QUEUE_LANE = "queue";
+	private static final String[] JOB_STATES = { "pending", "printed",
+			"failed", "cancelled", "unconfirmed" };
+
+	private static final String DEFAULT_PORT_NAME = "BT:Star Micronics";
+	private static final String DEFAULT_PORT_SETTINGS = "mini";
+
+	private static final String METRICS_LOG_NAME = "starprinter-metrics.log";
+	private static final long DEFAULT_METRICS_LOG_BYTES = 256 * 1024;
+
+	// A status younger than this is trusted to reject a job before sending
+	private static final long PREFLIGHT_STATUS_AGE = 2000;
+	// Assumed print speed of a printer that has not been measured yet
+	private static final double DEFAULT_BYTES_PER_SECOND = 4096;
+	private static final long END_CHECKED_BLOCK_ALLOWANCE = 3000;
+	private static final long MIN_END_CHECKED_BLOCK_TIMEOUT = 5000;
+	// The fixed timeout used before jobs were timed, kept as the least a
+	// printer whose speed has not been measured yet gets
+	private static final long UNMEASURED_END_CHECKED_BLOCK_TIMEOUT = 30000;
+	private static final long MAX_END_CHECKED_BLOCK_TIMEOUT = 120000;
+
+	// Templates sent with PrintCommands, compiled once per distinct text
+	private static final int MAX_COMPILED_TEMPLATES = 16;
+	private static final LinkedHashMap<String, ReceiptTemplate> compiledTemplates = new LinkedHashMap<String, ReceiptTemplate>(
+			16, 0.75f, true) {
+		protected boolean removeEldestEntry(
+				Map.Entry<String, ReceiptTemplate> eldest) {
+			return size() > MAX_COMPILED_TEMPLATES;
+		}
+	};
+
+	// Group of a job sent with a "leastBusy:" address, set on the print
+	// thread while the action runs so its job can move within the group
+	private static final ThreadLocal<String> jobGroup = new ThreadLocal<String>();
 
 	public static final String SET_USER_ID = "setUserId";
 	public static final String DEBUG_MODE = "debugMode";
@@ -58,6 +122,10 @@ public class StarPrinter extends CordovaPlugin {
 	public Boolean debugModeEnabled = false;
 	private static Context mContext;
 
+	// Receive the status changes of each monitored printer, by port name
+	private final Map<String, CallbackContext> statusCallbacks = new ConcurrentHashMap<String, CallbackContext>();
+	private StatusMonitor.Listener statusListener;
+
 	/**
 	 * Constructor.
 	 */
@@ -75,11 +143,40 @@ public class StarPrinter extends CordovaPlugin {
 	 */
 	public void initialize(CordovaInterface cordova, CordovaWebView webView) {
 		super.initialize(cordova, webView);
+
+		// Encoded logos survive restarts of the app
+		RasterCache.getSharedCache().enableDiskCache(
+				new File(cordova.getActivity().getCacheDir(), "starprinter-raster"),
+				RasterCache.DEFAULT_MAX_DISK_BYTES);
+
+		// Print anything left in the job queue by a previous run
+		getJobQueue(cordova.getActivity()).resume();
+	}
+
+	/**
+	 * Stops the printer threads and closes the pooled printer connections
+	 * when the plugin is torn down.
+	 */
+	@Override
+	public void onDestroy() {
+		StatusMonitor.getSharedMonitor().stopAll();
+		if (statusListener != null) {
+			StatusMonitor.getSharedMonitor().removeListener(statusListener);
+			statusListener = null;
+		}
+		statusCallbacks.clear();
+		PrintExecutor.getSharedExecutor().shutdown();
+		StarPortPool.getSharedPool().closeAll();
+		super.onDestroy();
 	}
 
 	/**
 	 * Executes the request and returns PluginResult.
 	 * 
+	 * The printer work itself runs on the print executor for the target
+	 * printer, so this returns straight away and the callback is completed
+	 * once the job has finished.
+	 * 
 	 * @param action
 	 *            The action to execute.
 	 * @param arguments
@@ -88,48 +185,561 @@ public class StarPrinter extends CordovaPlugin {
 	 *            The callback id used when calling back into JavaScript.
 	 * @return True if the action was valid, false if not.
 	 */
-	public boolean execute(String action, JSONArray arguments,
-            CallbackContext callbackContext) throws JSONException {
+	public boolean execute(final String action, final JSONArray arguments,
+            final CallbackContext callbackContext) throws JSONException {
 		mContext = this.cordova.getActivity();
 
+		if (!CHECKSTATUS.equals(action) && !CHECKFIRMWARE.equals(action)
+				&& !PRINTSAMPLERECEIPT.equals(action)
+				&& !PRINTSIGNATURE.equals(action)
+				&& !STORELOGOS.equals(action)
+				&& !PRINTCOMMANDS.equals(action)
+				&& !PRINTSIGNATUREDATA.equals(action)
+				&& !PRINTIMAGEDATA.equals(action)
+				&& !GETSTATUS.equals(action)
+				&& !STARTSTATUSMONITOR.equals(action)
+				&& !STOPSTATUSMONITOR.equals(action)
+				&& !DISCOVERPRINTERS.equals(action)
+				&& !GETPRINTERS.equals(action)
+				&& !SETPRINTER.equals(action)
+				&& !GETMETRICS.equals(action)
+				&& !SETMETRICSLOG.equals(action)
+				&& !GETPRINTJOBS.equals(action)
+				&& !CANCELPRINTJOB.equals(action)
+				&& !CLEARPRINTJOBS.equals(action)) {
+			callbackContext.error("Invalid action");
+			return false;
+		}
+
+		// Status requests are answered here without waiting for the printer
+		if (GETSTATUS.equals(action) || STARTSTATUSMONITOR.equals(action)
+				|| STOPSTATUSMONITOR.equals(action)) {
+			executeStatusAction(action, OptionsAt(arguments, 0),
+					callbackContext);
+			return true;
+		}
+
+		final Context context = this.cordova.getActivity();
+		if (GETMETRICS.equals(action) || SETMETRICSLOG.equals(action)) {
+			executeMetricsAction(context, action, OptionsAt(arguments, 0),
+					callbackContext);
+			return true;
+		}
+
+		if (GETPRINTJOBS.equals(action) || CANCELPRINTJOB.equals(action)
+				|| CLEARPRINTJOBS.equals(action)) {
+			executeQueueAction(context, action, OptionsAt(arguments, 0),
+					callbackContext);
+			return true;
+		}
+
+		if (DISCOVERPRINTERS.equals(action) || GETPRINTERS.equals(action)
+				|| SETPRINTER.equals(action)) {
+			executeRegistryAction(context, action, OptionsAt(arguments, 0),
+					callbackContext);
+			return true;
+		}
+
+		// Actions with options address their printers, the others use the
+		// default printer
+		JSONObject options = null;
+		if (PRINTCOMMANDS.equals(action)) {
+			options = arguments.getJSONObject(0);
+		} else if (PRINTSIGNATUREDATA.equals(action)
+				|| PRINTIMAGEDATA.equals(action) || STORELOGOS.equals(action)) {
+			options = OptionsAt(arguments, 1);
+		}
+
+		if (options == null) {
+			submit(context, DEFAULT_PORT_NAME, null, action, arguments,
+					callbackContext);
+		} else {
+			String address = options.optString("portName", DEFAULT_PORT_NAME);
+			String portSettings = options.optString("portSettings",
+					DEFAULT_PORT_SETTINGS);
+			List<PrinterRegistry.Printer> printers;
+			try {
+				printers = PrinterRegistry.getSharedRegistry(context).resolve(
+						address, portSettings, getJobQueue(context));
+			} catch (IllegalArgumentException e) {
+				callbackContext.error(e.getMessage());
+				return true;
+			}
+
+			String group = null;
+			if (address.startsWith(PrinterRegistry.LEAST_BUSY_PREFIX)) {
+				group = address.substring(PrinterRegistry.LEAST_BUSY_PREFIX
+						.length());
+			}
+
+			FanOutCallback fanOut = null;
+			if (printers.size() > 1) {
+				fanOut = new FanOutCallback(callbackContext, webView,
+						printers.size());
+			}
+			for (PrinterRegistry.Printer printer : printers) {
+				JSONArray printerArguments = arguments;
+				if (!printer.getPortName().equals(address)
+						|| !printer.getPortSettings().equals(portSettings)) {
+					printerArguments = Retarget(action, arguments, printer);
+				}
+				submit(context, printer.getPortName(), group, action,
+						printerArguments, (fanOut != null) ? fanOut
+								.forPrinter(printer.getPortName())
+								: callbackContext);
+			}
+		}
+
+		PluginResult pending = new PluginResult(PluginResult.Status.NO_RESULT);
+		pending.setKeepCallback(true);
+		callbackContext.sendPluginResult(pending);
+		return true;
+	}
+
+	private static void submit(final Context context, String portName,
+			final String group, final String action,
+			final JSONArray arguments, final CallbackContext callbackContext) {
+		final String timedPort = portName;
+		PrintExecutor.getSharedExecutor().submit(portName, new Runnable() {
+			public void run() {
+				boolean timed = PrintMetrics.begin(timedPort);
+				jobGroup.set(group);
+				try {
+					executeOnPrinterThread(context, action, arguments,
+							callbackContext);
+				} finally {
+					jobGroup.remove();
+					if (timed) {
+						PrintMetrics.end();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Copies the arguments of a print action with the port name and port
+	 * settings of the printer it was resolved to.
+	 */
+	private static JSONArray Retarget(String action, JSONArray arguments,
+			PrinterRegistry.Printer printer) throws JSONException {
+		JSONArray copy = new JSONArray();
+		JSONObject options;
+		if (PRINTCOMMANDS.equals(action)) {
+			options = new JSONObject(arguments.getJSONObject(0).toString());
+		} else {
+			copy.put(arguments.get(0));
+			options = new JSONObject(OptionsAt(arguments, 1).toString());
+		}
+		options.put("portName", printer.getPortName());
+		options.put("portSettings", printer.getPortSettings());
+		copy.put(options);
+		return copy;
+	}
+
+	/**
+	 * Searches for printers, lists the registered printers and registers a
+	 * printer with its groups, all on the discovery lane of the print
+	 * executor: the registry saves its file on every change and discovery
+	 * holds its lock while it does, neither of which the WebView thread
+	 * should wait for.
+	 */
+	private static void executeRegistryAction(final Context context,
+			final String action, final JSONObject options,
+			final CallbackContext callbackContext) {
+		PrintExecutor.getSharedExecutor().submit(DISCOVERY_LANE,
+				new Runnable() {
+					public void run() {
+						try {
+							registryAction(context, action, options,
+									callbackContext);
+						} catch (Exception e) {
+							System.err.println("Exception: " + e.getMessage());
+							callbackContext.error(e.getMessage());
+						}
+					}
+				});
+
+		PluginResult pending = new PluginResult(PluginResult.Status.NO_RESULT);
+		pending.setKeepCallback(true);
+		callbackContext.sendPluginResult(pending);
+	}
+
+	private static void registryAction(Context context, String action,
+			JSONObject options, CallbackContext callbackContext)
+			throws JSONException, StarIOPortException {
+		PrinterRegistry registry = PrinterRegistry.getSharedRegistry(context);
+
+		if (DISCOVERPRINTERS.equals(action)) {
+			String target = options.optString("target", "BT:");
+			List<PrinterRegistry.Printer> found = new ArrayList<PrinterRegistry.Printer>();
+			for (String each : target.split(",")) {
+				found.addAll(registry.discover(each.trim()));
+			}
+			callbackContext.success(PrintersJSON(found));
+		} else if (GETPRINTERS.equals(action)) {
+			callbackContext.success(PrintersJSON(registry.getPrinters()));
+		} else {
+			String portName = options.getString("portName");
+			registry.add(portName, options.optString("portSettings",
+					DEFAULT_PORT_SETTINGS));
+			JSONArray groups = options.optJSONArray("groups");
+			if (groups != null) {
+				List<String> names = new ArrayList<String>();
+				for (int i = 0; i < groups.length(); i++) {
+					names.add(groups.getString(i));
+				}
+				registry.setGroups(portName, names);
+			}
+			callbackContext.success();
+		}
+	}
+
+	private static JSONArray PrintersJSON(List<PrinterRegistry.Printer> printers)
+			throws JSONException {
+		JSONArray result = new JSONArray();
+		for (PrinterRegistry.Printer printer : printers) {
+			JSONObject json = new JSONObject();
+			json.put("portName", printer.getPortName());
+			json.put("portSettings", printer.getPortSettings());
+			json.put("modelName", printer.getModelName());
+			json.put("macAddress", printer.getMacAddress());
+			json.put("groups", new JSONArray(printer.getGroups()));
+			result.put(json);
+		}
+		return result;
+	}
+
+	/**
+	 * Lists, cancels and clears the jobs in the print job queue, on the queue
+	 * lane of the print executor.
+	 */
+	private static void executeQueueAction(final Context context,
+			final String action, final JSONObject options,
+			final CallbackContext callbackContext) {
+		PrintExecutor.getSharedExecutor().submit(QUEUE_LANE, new Runnable() {
+			public void run() {
+				try {
+					PrintJobQueue queue = getJobQueue(context);
+					String portName = options.optString("portName", null);
+					if (GETPRINTJOBS.equals(action)) {
+						callbackContext.success(PrintJobsJSON(queue.getJobs(),
+								portName));
+					} else if (CANCELPRINTJOB.equals(action)) {
+						if (queue.cancel(options.getLong("id"))) {
+							callbackContext.success();
+						} else {
+							callbackContext.error("The job is not waiting to print");
+						}
+					} else {
+						callbackContext.success(queue.clear(portName));
+					}
+				} catch (Exception e) {
+					System.err.println("Exception: " + e.getMessage());
+					callbackContext.error(e.getMessage());
+				}
+			}
+		});
+
+		PluginResult pending = new PluginResult(PluginResult.Status.NO_RESULT);
+		pending.setKeepCallback(true);
+		callbackContext.sendPluginResult(pending);
+	}
+
+	private static JSONArray PrintJobsJSON(List<PrintJobQueue.PrintJob> jobs,
+			String portName) throws JSONException {
+		JSONArray result = new JSONArray();
+		for (PrintJobQueue.PrintJob job : jobs) {
+			if (portName != null && !portName.equals(job.portName)) {
+				continue;
+			}
+			JSONObject json = new JSONObject();
+			json.put("id", job.id);
+			json.put("portName", job.portName);
+			json.put("state", JOB_STATES[job.getState()]);
+			json.put("created", job.created);
+			json.put("attempts", job.getAttempts());
+			if (job.getFailure() != null) {
+				json.put("failure", job.getFailure());
+			}
+			result.put(json);
+		}
+		return result;
+	}
+
+	/**
+	 * Answers GetMetrics from the counters of PrintMetrics, optionally
+	 * clearing them, and turns the metrics log on or off.
+	 */
+	private static void executeMetricsAction(Context context, String action,
+			JSONObject options, CallbackContext callbackContext)
+			throws JSONException {
+		if (GETMETRICS.equals(action)) {
+			String portName = options.optString("portName", null);
+			JSONObject result = new JSONObject();
+			for (Map.Entry<String, PrintMetrics.Aggregate> entry : PrintMetrics
+					.getAggregates().entrySet()) {
+				if (portName == null || portName.equals(entry.getKey())) {
+					result.put(entry.getKey(), MetricsJSON(entry.getValue()));
+				}
+			}
+			if (options.optBoolean("reset", false)) {
+				PrintMetrics.reset();
+			}
+			callbackContext.success(result);
+		} else {
+			if (options.optBoolean("enabled", true)) {
+				PrintMetrics.setLog(new File(context.getApplicationContext()
+						.getFilesDir(), METRICS_LOG_NAME), options.optLong(
+						"maxBytes", DEFAULT_METRICS_LOG_BYTES));
+			} else {
+				PrintMetrics.setLog(null, 0);
+			}
+			callbackContext.success();
+		}
+	}
+
+	private static JSONObject MetricsJSON(PrintMetrics.Aggregate aggregate)
+			throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("jobs", aggregate.jobs.get());
+		json.put("failures", aggregate.failures.get());
+		json.put("retries", aggregate.retries.get());
+		json.put("bytes", aggregate.bytes.get());
+		json.put("p50", aggregate.percentile(0.5));
+		json.put("p95", aggregate.percentile(0.95));
+		json.put("p99", aggregate.percentile(0.99));
+		json.put("jobsPerMinute", aggregate.jobsPerMinute(5));
+
+		JSONObject stages = new JSONObject();
+		for (int i = 0; i < PrintMetrics.STAGE_NAMES.length; i++) {
+			stages.put(PrintMetrics.STAGE_NAMES[i],
+					aggregate.stageNanos(i) / 1000000);
+		}
+		json.put("stages", stages);
+
+		JSONObject reasons = new JSONObject();
+		for (int i = 0; i < PrintMetrics.FAILURE_REASONS.length; i++) {
+			reasons.put(PrintMetrics.FAILURE_REASONS[i], aggregate.failures(i));
+		}
+		json.put("failureReasons", reasons);
+
+		JSONArray recent = new JSONArray();
+		for (PrintMetrics.Job job : aggregate.recentJobs()) {
+			JSONObject each = new JSONObject();
+			each.put("started", job.started);
+			each.put("total", job.totalNanos / 1000000);
+			JSONObject jobStages = new JSONObject();
+			for (int i = 0; i < PrintMetrics.STAGE_NAMES.length; i++) {
+				jobStages.put(PrintMetrics.STAGE_NAMES[i],
+						job.stageNanos[i] / 1000000);
+			}
+			each.put("stages", jobStages);
+			each.put("bytes", job.bytes);
+			each.put("attempts", job.attempts);
+			each.put("succeeded", job.succeeded);
+			if (job.failureReason >= 0) {
+				each.put("failureReason",
+						PrintMetrics.FAILURE_REASONS[job.failureReason]);
+			}
+			recent.put(each);
+		}
+		json.put("recentJobs", recent);
+		return json;
+	}
+
+	/**
+	 * Answers GetStatus from the status cache and starts or stops the
+	 * background status monitor of a printer. While a monitor runs, its
+	 * callback is kept and receives the status of that printer every time it
+	 * changes; stopping the monitor, or starting it again, releases it.
+	 */
+	private void executeStatusAction(String action, JSONObject options,
+			CallbackContext callbackContext) throws JSONException {
+		StatusMonitor monitor = StatusMonitor.getSharedMonitor();
+		String portName = options.optString("portName", DEFAULT_PORT_NAME);
+
+		if (GETSTATUS.equals(action)) {
+			StatusMonitor.Snapshot snapshot = monitor.getStatus(portName);
+			if (snapshot == null) {
+				callbackContext.error("No status has been read from "
+						+ portName);
+			} else {
+				callbackContext.success(StatusJSON(portName, snapshot));
+			}
+		} else if (STARTSTATUSMONITOR.equals(action)) {
+			releaseStatusCallback(statusCallbacks.put(portName,
+					callbackContext));
+			if (statusListener == null) {
+				statusListener = new StatusMonitor.Listener() {
+					public void statusChanged(String portName,
+							StatusMonitor.Snapshot previous,
+							StatusMonitor.Snapshot current) {
+						sendStatus(portName, current);
+					}
+				};
+				monitor.addListener(statusListener);
+			}
+			monitor.start(this.cordova.getActivity(), portName, options
+					.optString("portSettings", DEFAULT_PORT_SETTINGS), options
+					.optLong("interval", StatusMonitor.DEFAULT_INTERVAL));
+
+			StatusMonitor.Snapshot snapshot = monitor.getStatus(portName);
+			if (snapshot != null) {
+				sendStatus(portName, snapshot);
+			} else {
+				PluginResult pending = new PluginResult(
+						PluginResult.Status.NO_RESULT);
+				pending.setKeepCallback(true);
+				callbackContext.sendPluginResult(pending);
+			}
+		} else {
+			monitor.stop(portName);
+			releaseStatusCallback(statusCallbacks.remove(portName));
+			callbackContext.success();
+		}
+	}
+
+	/**
+	 * Tells Cordova a status monitor callback will not be called again.
+	 */
+	private static void releaseStatusCallback(CallbackContext callback) {
+		if (callback != null) {
+			PluginResult done = new PluginResult(PluginResult.Status.NO_RESULT);
+			done.setKeepCallback(false);
+			callback.sendPluginResult(done);
+		}
+	}
+
+	/**
+	 * Pushes a printer status to the callback of its status monitor.
+	 */
+	private void sendStatus(String portName, StatusMonitor.Snapshot snapshot) {
+		CallbackContext callback = statusCallbacks.get(portName);
+		if (callback == null) {
+			return;
+		}
+		try {
+			PluginResult result = new PluginResult(PluginResult.Status.OK,
+					StatusJSON(portName, snapshot));
+			result.setKeepCallback(true);
+			callback.sendPluginResult(result);
+		} catch (JSONException e) {
+			System.err.println("Exception: " + e.getMessage());
+		}
+	}
+
+	private static JSONObject StatusJSON(String portName,
+			StatusMonitor.Snapshot snapshot) throws JSONException {
+		JSONObject status = new JSONObject();
+		status.put("portName", portName);
+		status.put("reachable", snapshot.reachable);
+		status.put("offline", snapshot.offline);
+		status.put("coverOpen", snapshot.coverOpen);
+		status.put("paperEmpty", snapshot.paperEmpty);
+		status.put("paperNearEmpty", snapshot.paperNearEmpty);
+		status.put("timestamp", snapshot.timestamp);
+		return status;
+	}
+
+	private static void executeOnPrinterThread(Context context, String action,
+			JSONArray arguments, CallbackContext callbackContext) {
 		try {
 			if (CHECKSTATUS.equals(action)) {
-				Context context = this.cordova.getActivity();
 				StarPrinter.CheckStatus(context, "BT:Star Micronics", "mini");
-				callbackContext.success();
-				return true;
+				StatusMonitor.Snapshot snapshot = StatusMonitor
+						.getSharedMonitor().getStatus(DEFAULT_PORT_NAME);
+				if (snapshot != null) {
+					callbackContext.success(StatusJSON(DEFAULT_PORT_NAME,
+							snapshot));
+				} else {
+					callbackContext.success();
+				}
 			} else if (CHECKFIRMWARE.equals(action)) {
-
-				Context context = this.cordova.getActivity();
 				StarPrinter.CheckFirmwareVersion(context, "BT:Star Micronics",
 						"mini");
 				callbackContext.success();
-				return true;
 			} else if (PRINTSAMPLERECEIPT.equals(action)) {
-
-				Context context = this.cordova.getActivity();
 				StarPrinter.PrintSampleReceipt(context, "BT:Star Micronics",
-						"mini", "3inch (80mm)");
+						"mini", PrinterProfile.forPort(DEFAULT_PORT_NAME,
+								DEFAULT_PORT_SETTINGS).getName());
 				callbackContext.success();
-				return true;
 			} else if (PRINTSIGNATURE.equals(action)) {
-				Context context = this.cordova.getActivity();		
-				if(StarPrinter.PrintSignature(context, "BT:Star Micronics", "mini", "3inch (80mm)", arguments.toString()) == true){
+				if(StarPrinter.PrintSignature(context, "BT:Star Micronics", "mini", PrinterProfile.forPort(DEFAULT_PORT_NAME, DEFAULT_PORT_SETTINGS).getName(), arguments.toString(), OptionsAt(arguments, 1)) == true){
 					callbackContext.success();	
-					return true;
 				}
 				else{
-
-					callbackContext.error("Printer error! Please reprint.");
-					return false;
+					callbackContext.error("Printer error! The receipt will print once the printer is ready.");
 				}				
+			} else if (STORELOGOS.equals(action)) {
+				JSONArray images = arguments.getJSONArray(0);
+				List<Bitmap> logos = new ArrayList<Bitmap>();
+				for (int i = 0; i < images.length(); i++) {
+					String image = images.getString(i);
+					// Accept data URLs as well as bare base64
+					image = image.substring(image.indexOf(',') + 1);
+					byte[] data = Base64.decode(image, Base64.DEFAULT);
+					Bitmap logo = BitmapFactory.decodeByteArray(data, 0,
+							data.length);
+					if (logo == null) {
+						throw new IllegalArgumentException("Logo " + (i + 1)
+								+ " is not a PNG or JPEG image");
+					}
+					logos.add(logo);
+				}
+				JSONObject options = OptionsAt(arguments, 1);
+				String portName = options.optString("portName",
+						DEFAULT_PORT_NAME);
+				String portSettings = options.optString("portSettings",
+						DEFAULT_PORT_SETTINGS);
+				boolean sent = StarPrinter.StoreLogos(context, portName,
+						portSettings, logos, ProfileFor(context, portName,
+								portSettings, options).getDotWidth());
+				callbackContext.sendPluginResult(new PluginResult(
+						PluginResult.Status.OK, sent));
+			} else if (PRINTCOMMANDS.equals(action)) {
+				if (StarPrinter.PrintCommands(context,
+						arguments.getJSONObject(0)) == true) {
+					callbackContext.success();
+				} else {
+					callbackContext.error("Printer error! The receipt will print once the printer is ready.");
+				}
+			} else if (PRINTSIGNATUREDATA.equals(action)
+					|| PRINTIMAGEDATA.equals(action)) {
+				// The data arrives as an ArrayBuffer, received as byte[]
+				byte[] data = new CordovaArgs(arguments).getArrayBuffer(0);
+				JSONObject options = OptionsAt(arguments, 1);
+				String portName = options.optString("portName",
+						DEFAULT_PORT_NAME);
+				String portSettings = options.optString("portSettings",
+						DEFAULT_PORT_SETTINGS);
+				PrinterProfile profile = ProfileFor(context, portName,
+						portSettings, options);
+
+				boolean printed;
+				if (PRINTSIGNATUREDATA.equals(action)) {
+					int format = "int16delta".equals(options
+							.optString("format")) ? Signature.POINTS_INT16_DELTA
+							: Signature.POINTS_FLOAT32;
+					printed = StarPrinter.PrintSignatureData(context, portName,
+							portSettings, data, format, options);
+				} else {
+					int monoWidth = "mono".equals(options.optString("format")) ? options
+							.getInt("width") : 0;
+					printed = StarPrinter.PrintImageData(context, portName,
+							portSettings, data, monoWidth, options.optInt(
+									"maxWidth", profile.getDotWidth()));
+				}
+
+				if (printed == true) {
+					callbackContext.success();
+				} else {
+					callbackContext.error("Printer error! The receipt will print once the printer is ready.");
+				}
 			}
-			callbackContext.error("Invalid action");
-			return false;
 		} catch (Exception e) {
 			System.err.println("Exception: " + e.getMessage());
 			callbackContext.error(e.getMessage());
-			return false;
 		}
 	}
 
@@ -153,40 +763,56 @@ public class StarPrinter extends CordovaPlugin {
 	 *            Should be mini, the port settings mini is used for portable
 	 *            printers
 	 * @param strPrintArea
-	 *            Printable area size, This should be ("2inch (58mm)" or
-	 *            "3inch (80mm)")
+	 *            Name of the printer profile giving the printable width, such
+	 *            as "2inch (58mm)" or "3inch (80mm)"
 	 */
 	public static boolean PrintSignature(Context context, String portName,
 			String portSettings, String strPrintArea, String sigArgs) {
-		ArrayList<byte[]> list = new ArrayList<byte[]>();
-		ArrayList<byte[]> al = new ArrayList<byte[]>();
-
-		if (strPrintArea.equals("3inch (80mm)")) {
-			byte[] outputByteBuffer = null;
-
-
-			list = StarPrinter.PrintBitmap(context, portName, portSettings,
-					sigArgs, 576, true, false);
-
-
-			al.addAll(list);
+		return PrintSignature(context, portName, portSettings, strPrintArea,
+				sigArgs, new JSONObject());
+	}
 
-			return sendCommand(context, portName, portSettings, al);
-			// return true;
+	/**
+	 * Prints a signature laid out as described by options; see
+	 * {@link #SignatureBitmap(Signature, JSONObject, int)}.
+	 */
+	public static boolean PrintSignature(Context context, String portName,
+			String portSettings, String strPrintArea, String sigArgs,
+			JSONObject options) {
+		int width = PrinterProfile.forName(strPrintArea).getDotWidth();
+		StarBitmap starbitmap = SignatureBitmap(Signature.parse(sigArgs),
+				options, width);
 
-		}
-		return false;
+		return sendBitmap(context, portName, portSettings, starbitmap);
 	}
 
 	private static void ShowAlert(String Title, String Message) {
-		Builder dialog = new AlertDialog.Builder(mContext);
-		dialog.setNegativeButton("Ok", null);
-		AlertDialog alert = dialog.create();
-		alert.setTitle(Title);
-		alert.setMessage(Message);
-		alert.setCancelable(false);
-		alert.show();
+		ShowAlert(mContext, Title, Message);
+	}
+
+	/**
+	 * Shows a message box. Printer jobs run on the print executor, so the
+	 * dialog is posted to the UI thread of the activity.
+	 */
+	private static void ShowAlert(final Context context, final String Title,
+			final String Message) {
+		Runnable show = new Runnable() {
+			public void run() {
+				Builder dialog = new AlertDialog.Builder(context);
+				dialog.setNegativeButton("Ok", null);
+				AlertDialog alert = dialog.create();
+				alert.setTitle(Title);
+				alert.setMessage(Message);
+				alert.setCancelable(false);
+				alert.show();
+			}
+		};
 
+		if (context instanceof Activity) {
+			((Activity) context).runOnUiThread(show);
+		} else {
+			show.run();
+		}
 	}
 
 	/**
@@ -202,8 +828,8 @@ public class StarPrinter extends CordovaPlugin {
 	 *            Should be mini, the port settings mini is used for portable
 	 *            printers
 	 * @param source
-	 *            The bitmap to convert to Star printer data for portable
-	 *            printers
+	 *            The JSON encoding of a signature, drawn framed on the
+	 *            576x300 signature area
 	 * @param maxWidth
 	 *            The maximum width of the image to print. This is usually the
 	 *            page width of the printer. If the image exceeds the maximum
@@ -213,23 +839,14 @@ public class StarPrinter extends CordovaPlugin {
 			String portName, String portSettings, String source, int maxWidth,
 			boolean compressionEnable, boolean pageModeEnable) {
 		ArrayList<byte[]> commands = new ArrayList<byte[]>();
-		;
-
-
-		Bitmap bitmap = null;
-		try {
-			bitmap = SigGen.redrawSignatureBMP(source);
-		} catch (IOException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		}
-
-		StarBitmap starbitmap = new StarBitmap(bitmap, false, maxWidth);
 
 		try {
-
+			StarBitmap starbitmap = SignatureBitmap(Signature.parse(source),
+					new JSONObject(), maxWidth);
+			long start = System.nanoTime();
 			commands.add(starbitmap.getImageEscPosDataForPrinting(
 					compressionEnable, pageModeEnable));
+			PrintMetrics.stage(PrintMetrics.STAGE_ENCODE, start);
 
 			return commands;
 		} catch (StarIOPortException e) {
@@ -240,6 +857,315 @@ public class StarPrinter extends CordovaPlugin {
 		return commands;
 	}
 
+	/**
+	 * Returns the profile of the printer on the port, after assigning the
+	 * one named by the "profile" option if there is one. The
+	 * "smallestEncoding" option turns on encoding images twice for the port,
+	 * see PrinterProfile.setSmallestEncoding.
+	 */
+	private static PrinterProfile ProfileFor(Context context, String portName,
+			String portSettings, JSONObject options) {
+		String name = options.optString("profile", null);
+		if (name != null) {
+			PrinterProfile.assign(portName, PrinterProfile.forName(name));
+		}
+		if (options.has("smallestEncoding")) {
+			PrinterProfile.setSmallestEncoding(portName,
+					options.optBoolean("smallestEncoding"));
+		}
+		return IdentifyPrinter(context, portName, portSettings);
+	}
+
+	/**
+	 * Returns the profile of the printer on the port. The first time a port
+	 * is used without an assigned profile, the printer is asked for its
+	 * model name and the matching profile is used from then on. If the
+	 * printer cannot be reached the profile is guessed from the port
+	 * settings and the printer is asked again after a backoff that grows
+	 * with every failure, see PrinterProfile.identifyFailed.
+	 */
+	private static PrinterProfile IdentifyPrinter(Context context,
+			String portName, String portSettings) {
+		if (PrinterProfile.shouldIdentify(portName)) {
+			StarIOPort port = null;
+			try {
+				port = StarPortPool.getSharedPool().acquire(context, portName,
+						portSettings, StarPortPool.DEFAULT_OPEN_TIMEOUT);
+				PrinterProfile.identify(portName, port.getFirmwareInformation());
+			} catch (StarIOPortException e) {
+				StarPortPool.getSharedPool().release(port, e);
+				port = null;
+				PrinterProfile.identifyFailed(portName);
+			} finally {
+				StarPortPool.getSharedPool().release(port);
+			}
+		}
+		return PrinterProfile.forPort(portName, portSettings);
+	}
+
+	/**
+	 * Returns the options object at index, or an empty one.
+	 */
+	private static JSONObject OptionsAt(JSONArray arguments, int index) {
+		JSONObject options = arguments.optJSONObject(index);
+		return (options != null) ? options : new JSONObject();
+	}
+
+	/**
+	 * Prints a signature sent as a binary point stream.
+	 * 
+	 * @param context
+	 *            Activity for displaying messages to the user
+	 * @param portName
+	 *            Port name to use for communication. This should be
+	 *            (TCP:<IPAddress> or BT:<Device pair name>)
+	 * @param portSettings
+	 *            Should be mini, the port settings mini is used for portable
+	 *            printers
+	 * @param points
+	 *            The points of the signature
+	 * @param format
+	 *            Signature.POINTS_FLOAT32 or Signature.POINTS_INT16_DELTA
+	 * @param options
+	 *            Layout of the signature; see
+	 *            {@link #SignatureBitmap(Signature, JSONObject, int)}
+	 */
+	public static boolean PrintSignatureData(Context context, String portName,
+			String portSettings, byte[] points, int format, JSONObject options) {
+		int width = PrinterProfile.forPort(portName, portSettings)
+				.getDotWidth();
+		StarBitmap starbitmap = SignatureBitmap(Signature.decode(points,
+				format), options, width);
+
+		return sendBitmap(context, portName, portSettings, starbitmap);
+	}
+
+	/**
+	 * Prints an image sent as binary data.
+	 * 
+	 * @param context
+	 *            Activity for displaying messages to the user
+	 * @param portName
+	 *            Port name to use for communication. This should be
+	 *            (TCP:<IPAddress> or BT:<Device pair name>)
+	 * @param portSettings
+	 *            Should be mini, the port settings mini is used for portable
+	 *            printers
+	 * @param image
+	 *            A PNG or JPEG image, or when monoWidth is set an image
+	 *            already converted to one bit per pixel: rows padded to whole
+	 *            bytes, most significant bit leftmost, 1 = black
+	 * @param monoWidth
+	 *            Width in pixels of a one bit per pixel image, 0 for PNG or
+	 *            JPEG
+	 * @param maxWidth
+	 *            The maximum width of the image to print. PNG and JPEG
+	 *            images are scaled down to it.
+	 */
+	public static boolean PrintImageData(Context context, String portName,
+			String portSettings, byte[] image, int monoWidth, int maxWidth)
+			throws StarIOPortException {
+		if (monoWidth > 0) {
+			if (monoWidth > maxWidth) {
+				throw new IllegalArgumentException("The image is wider than "
+						+ maxWidth + " dots");
+			}
+			int height = image.length / ((monoWidth + 7) / 8);
+			StarBitmap starbitmap = new StarBitmap(image, monoWidth, height);
+
+			return sendBitmap(context, portName, portSettings, starbitmap);
+		}
+
+		Bitmap bitmap = BitmapFactory.decodeByteArray(image, 0, image.length);
+		if (bitmap == null) {
+			throw new IllegalArgumentException("The image is not a PNG or JPEG image");
+		}
+
+		CommandBuffer commands = new CommandBuffer();
+		commands.add(EncodeBitmap(bitmap, maxWidth,
+				IdentifyPrinter(context, portName, portSettings),
+				PrinterProfile.isSmallestEncoding(portName)));
+		return sendCommand(context, portName, portSettings, commands);
+	}
+
+	/**
+	 * Draws a signature straight into a StarBitmap.
+	 * 
+	 * @param signature
+	 *            The points of the signature
+	 * @param options
+	 *            With a "height" in dots, the signature is cropped to its ink
+	 *            and scaled to that height; otherwise it is drawn framed on
+	 *            the fixed 576x300 area. "tolerance" is how far in dots the
+	 *            strokes may be simplified, by default 0.5 for a cropped
+	 *            signature and 0 on the fixed area.
+	 * @param maxWidth
+	 *            The maximum width of the image to print
+	 */
+	private static StarBitmap SignatureBitmap(Signature signature,
+			JSONObject options, int maxWidth) {
+		long start = System.nanoTime();
+		try {
+			int height = options.optInt("height", 0);
+			if (height > 0) {
+				return SignatureRasterizer.toStarBitmap(signature, maxWidth,
+						height, (float) options.optDouble("tolerance",
+								SignatureRasterizer.DEFAULT_TOLERANCE));
+			}
+
+			float tolerance = (float) options.optDouble("tolerance", 0);
+			if (tolerance > 0) {
+				signature = signature.simplify(tolerance);
+			}
+			return SignatureRasterizer.toStarBitmap(signature, maxWidth);
+		} finally {
+			PrintMetrics.stage(PrintMetrics.STAGE_RENDER, start);
+		}
+	}
+
+	/**
+	 * Converts a bitmap to ESC X 4 commands. The result is kept in the
+	 * raster cache, so printing the same image again skips scaling,
+	 * thresholding and encoding.
+	 */
+	private static byte[] EncodeBitmap(Bitmap bitmap, int maxWidth,
+			boolean compressionEnable, boolean pageModeEnable)
+			throws StarIOPortException {
+		RasterCache cache = RasterCache.getSharedCache();
+		String key = RasterCache.key(bitmap, "EscPos", maxWidth,
+				StarBitmap.NO_DITHERING, StarDither.DEFAULT_INTENSITY,
+				compressionEnable, pageModeEnable);
+
+		byte[] data = cache.get(key);
+		if (data == null) {
+			long start = System.nanoTime();
+			StarBitmap starbitmap = new StarBitmap(bitmap, false, maxWidth);
+			data = starbitmap.getImageEscPosDataForPrinting(compressionEnable,
+					pageModeEnable);
+			PrintMetrics.stage(PrintMetrics.STAGE_ENCODE, start);
+			cache.put(key, data);
+		}
+		return data;
+	}
+
+	/**
+	 * Converts a bitmap to the raster commands of a printer profile, through
+	 * the raster cache like {@link #EncodeBitmap(Bitmap, int, boolean, boolean)}.
+	 * 
+	 * @param smallest
+	 *            Encode in the two fastest formats and keep the shorter
+	 */
+	private static byte[] EncodeBitmap(Bitmap bitmap, int maxWidth,
+			PrinterProfile profile, boolean smallest)
+			throws StarIOPortException {
+		RasterCache cache = RasterCache.getSharedCache();
+		String key = RasterCache.key(bitmap, "Profile/" + profile.getName()
+				+ (smallest ? "/smallest" : ""), maxWidth,
+				StarBitmap.NO_DITHERING, StarDither.DEFAULT_INTENSITY,
+				profile.supportsCompression(), false);
+
+		byte[] data = cache.get(key);
+		if (data == null) {
+			long start = System.nanoTime();
+			StarBitmap starbitmap = new StarBitmap(bitmap, false, maxWidth);
+			data = smallest ? starbitmap.getSmallestImageDataForPrinting(profile)
+					: starbitmap.getImageDataForPrinting(profile);
+			PrintMetrics.stage(PrintMetrics.STAGE_ENCODE, start);
+			cache.put(key, data);
+		}
+		return data;
+	}
+
+	/**
+	 * Prints a StarBitmap in the raster format the printer's profile
+	 * selects. ESC X 4 bands are streamed to the port while they are encoded
+	 * when no earlier job is waiting for the printer; otherwise, if
+	 * streaming fails before anything was written, or if the port compares
+	 * encodings, the full image is queued in the print job queue. A streamed
+	 * image that fails part way is reported rather than queued, since the
+	 * printer may already have printed it.
+	 */
+	private static boolean sendBitmap(Context context, String portName,
+			String portSettings, StarBitmap starbitmap) {
+		PrinterProfile profile = IdentifyPrinter(context, portName,
+				portSettings);
+		boolean smallest = PrinterProfile.isSmallestEncoding(portName);
+		if (!smallest
+				&& starbitmap.rasterFormatFor(profile) == PrinterProfile.RASTER_ESC_X4
+				&& getJobQueue(context).pendingCount(portName) == 0) {
+			try {
+				sendToPrinter(context, portName, portSettings, new BandStreamer(
+						starbitmap, profile.supportsCompression(), false));
+				return true;
+			} catch (PossiblyPrintedException e) {
+				// Part of the image reached the printer, queueing it could
+				// print it twice
+				ShowAlert(context, "Failure", e.getMessage()
+						+ "\nThe receipt may have printed. Check it before printing it again.");
+				return false;
+			} catch (StarIOPortException e) {
+				// Nothing was sent, queue the image below so that it is retried
+			}
+		}
+
+		CommandBuffer commands = new CommandBuffer();
+		try {
+			long start = System.nanoTime();
+			commands.add(smallest ? starbitmap
+					.getSmallestImageDataForPrinting(profile) : starbitmap
+					.getImageDataForPrinting(profile));
+			PrintMetrics.stage(PrintMetrics.STAGE_ENCODE, start);
+		} catch (StarIOPortException e) {
+			ShowAlert(context, "StarIOPortException", e.getMessage());
+			return false;
+		}
+
+		return sendCommand(context, portName, portSettings, commands);
+	}
+
+	/**
+	 * Stores logos in the printer's NV memory so receipts can print them with
+	 * LogoStore.reference(n). Nothing is sent when the printer already holds
+	 * these versions of the logos.
+	 * 
+	 * @param context
+	 *            Context passed to StarIOPort.getPort
+	 * @param portName
+	 *            Port name to use for communication. This should be
+	 *            (TCP:<IPAddress> or BT:<Device pair name>)
+	 * @param portSettings
+	 *            Should be mini, the port settings mini is used for portable
+	 *            printers
+	 * @param logos
+	 *            Every logo the printer should hold, logo 1 first
+	 * @param maxWidth
+	 *            The maximum width of the logos. Wider logos are scaled down.
+	 * @return True if the logos were sent, false if the printer already had
+	 *         them
+	 */
+	public static boolean StoreLogos(Context context, String portName,
+			String portSettings, List<Bitmap> logos, int maxWidth)
+			throws StarIOPortException {
+		LogoStore store = LogoStore.getSharedStore(context);
+		String[] versions = LogoStore.versions(logos, maxWidth);
+		if (store.holds(portName, versions)) {
+			return false;
+		}
+
+		CommandBuffer command = new CommandBuffer();
+		command.add(LogoStore.defineCommand(logos, maxWidth));
+
+		try {
+			sendToPrinter(context, portName, portSettings, command);
+		} catch (StarIOPortException e) {
+			// The printer may hold part of the new set
+			store.forget(portName);
+			throw e;
+		}
+		store.recordStored(portName, versions);
+		return true;
+	}
+
 	/**
 	 * This function is used to print a java bitmap directly to a portable
 	 * printer.
@@ -264,28 +1190,21 @@ public class StarPrinter extends CordovaPlugin {
 	public static void PrintBitmapImage(Context context, String portName,
 			String portSettings, Resources res, int source, int maxWidth,
 			boolean compressionEnable, boolean pageModeEnable) {
-		ArrayList<byte[]> commands = new ArrayList<byte[]>();
-
 		Bitmap bm = BitmapFactory.decodeResource(res, source);
-		StarBitmap starbitmap = new StarBitmap(bm, false, maxWidth);
 
+		CommandBuffer commands = new CommandBuffer();
 		try {
-
-			commands.add(starbitmap.getImageEscPosDataForPrinting(
-					compressionEnable, pageModeEnable));
-
-			sendCommand(context, portName, portSettings, commands);
+			commands.add(EncodeBitmap(bm, maxWidth, compressionEnable,
+					pageModeEnable));
 		} catch (StarIOPortException e) {
-			Builder dialog = new AlertDialog.Builder(context);
-			dialog.setNegativeButton("Ok", null);
-			AlertDialog alert = dialog.create();
-			alert.setTitle("Failure");
-			alert.setMessage(e.getMessage());
-			alert.setCancelable(false);
-			alert.show();
+			ShowAlert(context, "Failure", e.getMessage());
+			return;
 		}
+
+		sendCommand(context, portName, portSettings, commands);
 	}
 
+
 	// Format the width of each column
 	public static String padRight(String string, int length) {
 
@@ -293,7 +1212,11 @@ public class StarPrinter extends CordovaPlugin {
 		if (string.length() > length) {
 			string = string.substring(0, length - 1);
 		}
-		return String.format("%1$-" + length + "s", string);
+		StringBuilder padded = new StringBuilder(length).append(string);
+		while (padded.length() < length) {
+			padded.append(' ');
+		}
+		return padded.toString();
 
 	}
 
@@ -303,7 +1226,11 @@ public class StarPrinter extends CordovaPlugin {
 		if (string.length() > length) {
 			string = string.substring(0, length - 1);
 		}
-		return String.format("%1$" + length + "s", string);
+		StringBuilder padded = new StringBuilder(length);
+		for (int i = string.length(); i < length; i++) {
+			padded.append(' ');
+		}
+		return padded.append(string).toString();
 
 	}
 
@@ -323,179 +1250,212 @@ public class StarPrinter extends CordovaPlugin {
 	 *            Should be mini, the port settings mini is used for portable
 	 *            printers
 	 * @param strPrintArea
-	 *            Printable area size, This should be ("2inch (58mm)" or
-	 *            "3inch (80mm)")
+	 *            Name of the printer profile giving the line width, such as
+	 *            "2inch (58mm)" or "3inch (80mm)"
 	 */
 	public static boolean PrintSampleReceipt(Context context, String portName,
 			String portSettings, String strPrintArea) {
-		ArrayList<byte[]> list = new ArrayList<byte[]>();
-
-		if (strPrintArea.equals("2inch (58mm)")) {
-			byte[] outputByteBuffer = null;
-			list.add(new byte[] { 0x1d, 0x57, (byte) 0x80, 0x31 }); // Page Area
-																	// Setting
-																	// <GS> <W>
-																	// nL nH (nL
-																	// = 128, nH
-																	// = 1)
-
-			list.add(new byte[] { 0x1b, 0x61, 0x01 }); // Center Justification
-														// <ESC> a n (0 Left, 1
-														// Center, 2 Right)
-
-			// outputByteBuffer = ("[Print Stored Logo Below]\n\n").getBytes();
-			// port.writePort(outputByteBuffer, 0, outputByteBuffer.length);
-			//
-			// list.add(new byte[]{0x1b, 0x66, 0x00}); //Stored Logo Printing
-			// <ESC> f n (n = Store Logo # = 0 or 1 or 2 etc.)
-
-			list.add(("Star Clothing Boutique\n" + "123 Star Road\n"
-					+ "City, State 12345\n\n").getBytes());
-
-			list.add(new byte[] { 0x1b, 0x61, 0x00 }); // Left Alignment
-
-			list.add(("Date: MM/DD/YYYY   Time:HH:MM PM\n"
-					+ "--------------------------------\n").getBytes());
-
-			list.add(new byte[] { 0x1b, 0x45, 0x01 }); // Set Emphasized
-														// Printing ON
-
-			list.add("SALE\n".getBytes());
-
-			list.add(new byte[] { 0x1b, 0x45, 0x00 }); // Set Emphasized
-														// Printing OFF (same
-														// command as on)
-
-			outputByteBuffer = ("300678566  PLAIN T-SHIRT  10.99\n"
-					+ "300692003  BLACK DENIM    29.99\n"
-					+ "300651148  BLUE DENIM     29.99\n"
-					+ "300642980  STRIPED DRESS  49.99\n"
-					+ "300638471  BLACK BOOTS    35.99\n\n"
-					+ "Subtotal                 156.95" + "\n"
-					+ "Tax                        0.00" + "\n"
-					+ "--------------------------------\n" + "Total ")
-					.getBytes();
-			list.add(outputByteBuffer);
-
-			list.add(new byte[] { 0x1d, 0x21, 0x11 }); // Width and Height
-														// Character Expansion
-														// <GS> ! n
-
-			list.add("      $156.95\n".getBytes());
-
-			list.add(new byte[] { 0x1d, 0x21, 0x00 }); // Cancel Expansion -
-														// Reference Star
-														// Portable Printer
-														// Programming Manual
+		int columns = PrinterProfile.forName(strPrintArea).getColumns();
+		ReceiptTemplate template;
+		if (columns < 48) {
+			template = SAMPLE_RECEIPT_2INCH;
+		} else if (columns < 69) {
+			template = SAMPLE_RECEIPT_3INCH;
+		} else {
+			template = SAMPLE_RECEIPT_4INCH;
+		}
 
-			list.add(("--------------------------------\n" + "Charge\n"
-					+ "$156.95\n" + "Visa XXXX-XXXX-XXXX-0123\n").getBytes());
+		long start = System.nanoTime();
+		CommandBuffer commands = new CommandBuffer();
+		commands.add(template.render(SampleSale()));
+		PrintMetrics.stage(PrintMetrics.STAGE_RENDER, start);
+		return sendCommand(context, portName, portSettings, commands);
+	}
 
-			list.add(new byte[] { 0x1d, 0x77, 0x02 }); // for 1D Code39 Barcode
-			list.add(new byte[] { 0x1d, 0x68, 0x64 }); // for 1D Code39 Barcode
-			list.add(new byte[] { 0x1d, 0x48, 0x01 }); // for 1D Code39 Barcode
-			list.add(new byte[] { 0x1d, 0x6b, 0x41, 0x0b, 0x30, 0x31, 0x32,
-					0x33, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x30 }); // for 1D
-																		// Code39
-																		// Barcode
+	/**
+	 * Prints a command document sent from JavaScript in one call. The
+	 * document holds either pre-encoded commands or a receipt template and
+	 * its data, which are encoded here.
+	 * 
+	 * <pre>
+	 * {
+	 *   portName: "BT:Star Micronics",    // optional
+	 *   portSettings: "mini",             // optional
+	 *   profile: "3inch (80mm)",          // optional, see PrinterProfile
+	 *   width: 576,                       // optional, printable dots for images
+	 *   commands: "&lt;base64&gt;",             // raw printer commands, or
+	 *   template: "[center]{store}\n...", // see ReceiptTemplate
+	 *   data: { store: "...", items: [ ... ] },
+	 *   images: { logo: "&lt;base64 PNG or JPEG&gt;" } // for [image logo]
+	 * }
+	 * </pre>
+	 * 
+	 * @param context
+	 *            Activity for displaying messages to the user
+	 * @param document
+	 *            The command document
+	 * @return True if the commands were printed, false if they are still
+	 *         waiting in the queue
+	 */
+	public static boolean PrintCommands(Context context, JSONObject document)
+			throws JSONException, StarIOPortException {
+		String portName = document.optString("portName", DEFAULT_PORT_NAME);
+		String portSettings = document.optString("portSettings",
+				DEFAULT_PORT_SETTINGS);
+		PrinterProfile profile = ProfileFor(context, portName, portSettings,
+				document);
+		int width = document.optInt("width", profile.getDotWidth());
+
+		CommandBuffer commands = new CommandBuffer();
+		if (document.has("commands")) {
+			commands.add(Base64.decode(document.getString("commands"),
+					Base64.DEFAULT));
+		} else if (document.has("template")) {
+			Map<String, Object> variables = new HashMap<String, Object>();
+			JSONObject data = document.optJSONObject("data");
+			if (data != null) {
+				variables = ToMap(data);
+			}
 
-			list.add("\n".getBytes());
+			JSONObject images = document.optJSONObject("images");
+			if (images != null) {
+				Iterator<?> names = images.keys();
+				while (names.hasNext()) {
+					String name = (String) names.next();
+					byte[] image = Base64.decode(images.getString(name),
+							Base64.DEFAULT);
+					Bitmap bitmap = BitmapFactory.decodeByteArray(image, 0,
+							image.length);
+					if (bitmap == null) {
+						throw new IllegalArgumentException("Image " + name
+								+ " is not a PNG or JPEG image");
+					}
+					variables.put(name, EncodeBitmap(bitmap, width, profile,
+							PrinterProfile.isSmallestEncoding(portName)));
+				}
+			}
 
-			list.add(new byte[] { 0x1d, 0x42, 0x01 }); // Specify White-Black
-														// Invert
+			long start = System.nanoTime();
+			commands.add(CompiledTemplate(document.getString("template"))
+					.render(variables));
+			PrintMetrics.stage(PrintMetrics.STAGE_RENDER, start);
+		} else {
+			throw new IllegalArgumentException(
+					"The document needs commands or a template");
+		}
 
-			list.add("Refunds and Exchanges\n".getBytes());
+		return sendCommand(context, portName, portSettings, commands);
+	}
 
-			list.add(new byte[] { 0x1d, 0x42, 0x00 }); // Cancel White-Black
-														// Invert
+	private static ReceiptTemplate CompiledTemplate(String text) {
+		synchronized (compiledTemplates) {
+			ReceiptTemplate template = compiledTemplates.get(text);
+			if (template == null) {
+				template = ReceiptTemplate.compile(text);
+				compiledTemplates.put(text, template);
+			}
+			return template;
+		}
+	}
 
-			list.add("Within ".getBytes());
+	/**
+	 * Converts template data from JSON to the maps and lists
+	 * ReceiptTemplate reads.
+	 */
+	private static Map<String, Object> ToMap(JSONObject object)
+			throws JSONException {
+		Map<String, Object> map = new HashMap<String, Object>();
+		Iterator<?> keys = object.keys();
+		while (keys.hasNext()) {
+			String key = (String) keys.next();
+			map.put(key, ToValue(object.get(key)));
+		}
+		return map;
+	}
 
-			list.add(new byte[] { 0x1b, 0x2d, 0x01 }); // Specify Underline
-														// Printing
+	private static Object ToValue(Object value) throws JSONException {
+		if (value instanceof JSONObject) {
+			return ToMap((JSONObject) value);
+		} else if (value instanceof JSONArray) {
+			JSONArray array = (JSONArray) value;
+			List<Object> list = new ArrayList<Object>(array.length());
+			for (int i = 0; i < array.length(); i++) {
+				list.add(ToValue(array.get(i)));
+			}
+			return list;
+		} else if (value == JSONObject.NULL) {
+			return null;
+		}
+		return value;
+	}
 
-			list.add("30 days".getBytes());
+	/**
+	 * The sale printed on the sample receipts.
+	 */
+	static Map<String, Object> SampleSale() {
+		String[][] items = { { "300678566", "PLAIN T-SHIRT", "10.99" },
+				{ "300692003", "BLACK DENIM", "29.99" },
+				{ "300651148", "BLUE DENIM", "29.99" },
+				{ "300642980", "STRIPED DRESS", "49.99" },
+				{ "300638471", "BLACK BOOTS", "35.99" } };
+
+		List<Map<String, Object>> lines = new ArrayList<Map<String, Object>>();
+		for (String[] item : items) {
+			Map<String, Object> line = new HashMap<String, Object>();
+			line.put("sku", item[0]);
+			line.put("name", item[1]);
+			line.put("price", item[2]);
+			lines.add(line);
+		}
 
-			list.add(new byte[] { 0x1b, 0x2d, 0x00 }); // Cancel Underline
-														// Printing
+		Map<String, Object> sale = new HashMap<String, Object>();
+		sale.put("date", "MM/DD/YYYY");
+		sale.put("time", "HH:MM PM");
+		sale.put("items", lines);
+		sale.put("subtotal", "156.95");
+		sale.put("tax", "0.00");
+		sale.put("total", "156.95");
+		sale.put("card", "Visa XXXX-XXXX-XXXX-0123");
+		return sale;
+	}
 
-			outputByteBuffer = (" with receipt\n" + "And tags attached\n"
+	// Sample receipts from the Star Developer Kit, see ReceiptTemplate for
+	// the syntax. <GS> <W> nL nH sets the page area.
+	static final ReceiptTemplate SAMPLE_RECEIPT_2INCH = ReceiptTemplate
+			.compile("[raw 1d 57 80 31][center]"
+					+ "Star Clothing Boutique\n123 Star Road\nCity, State 12345\n\n"
+					+ "[left]Date: {date}   Time:{time}\n"
+					+ "--------------------------------\n"
+					+ "[b]SALE\n[/b]"
+					+ "[each items]{sku}  {name:15}{price}\n[/each]\n"
+					+ "Subtotal{subtotal:>23}\n"
+					+ "Tax{tax:>28}\n"
+					+ "--------------------------------\n"
+					+ "Total [x 2 2]      ${total}\n[/x]"
+					+ "--------------------------------\n"
+					+ "Charge\n${total}\n{card}\n"
+					+ "[code39 01234567890]\n"
+					+ "[inv]Refunds and Exchanges\n[/inv]"
+					+ "Within [u]30 days[/u] with receipt\n"
+					+ "And tags attached\n"
 					+ "-------------Sign Here----------\n\n\n"
 					+ "--------------------------------\n"
 					+ "Thank you for buying Star!\n"
-					+ "Scan QR code to visit our site!\n").getBytes();
-			list.add(outputByteBuffer);
-
-			list.add(new byte[] { 0x1d, 0x5a, 0x02 }); // Cancel Underline
-														// Printing
-
-			byte[] qrcodeByteBuffer = new byte[] { 0x1d, 0x5a, 0x02, 0x1b,
-					0x5a, 0x00, 0x51, 0x04, 0x1C, 0x00, 0x68, 0x74, 0x74, 0x70,
-					0x3a, 0x2f, 0x2f, 0x77, 0x77, 0x77, 0x2e, 0x53, 0x74, 0x61,
-					0x72, 0x4d, 0x69, 0x63, 0x72, 0x6f, 0x6e, 0x69, 0x63, 0x73,
-					0x2e, 0x63, 0x6f, 0x6d };
-			list.add(qrcodeByteBuffer); // QR Code (View QR 2D Barcode code for
-										// better explanation)
-
-			list.add("\n\n\n".getBytes());
-
-			return sendCommand(context, portName, portSettings, list);
-		} else if (strPrintArea.equals("3inch (80mm)")) {
-			byte[] outputByteBuffer = null;
-
-			list.add(new byte[] { 0x1d, 0x57, 0x40, 0x32 }); // Page Area
-																// Setting <GS>
-																// <W> nL nH (nL
-																// = 64, nH = 2)
-
-			list.add(new byte[] { 0x1b, 0x61, 0x01 }); // Center Justification
-														// <ESC> a n (0 Left, 1
-														// Center, 2 Right)
+					+ "Scan QR code to visit our site!\n"
+					+ "[raw 1d 5a 02][qr http://www.StarMicronics.com]\n\n\n");
 
-			// outputByteBuffer = ("[Print Stored Logo Below]\n\n").getBytes();
-			// port.writePort(outputByteBuffer, 0, outputByteBuffer.length);
-			//
-			// list.add(new byte[]{0x1b, 0x66, 0x00}); //Stored Logo Printing
-			// <ESC> f n (n = Store Logo # = 0 or 1 or 2 etc.)
-
-			list.add(("\nStar Clothing Boutique\n" + "123 Star Road\n"
-					+ "City, State 12345\n\n").getBytes());
-
-			list.add(new byte[] { 0x1b, 0x61, 0x00 }); // Left Alignment
-
-			list.add(new byte[] { 0x1b, 0x44, 0x02, 0x10, 0x22, 0x00 }); // Setting
-																			// Horizontal
-																			// Tab
-
-			list.add("Date: MM/DD/YYYY ".getBytes());
-
-			list.add(new byte[] { 0x09 }); // Left Alignment"
-
-			list.add(("Time: HH:MM PM\n"
-					+ "------------------------------------------------ \n")
-					.getBytes());
-
-			list.add(new byte[] { 0x1b, 0x45, 0x01 }); // Set Emphasized
-														// Printing ON
-
-			list.add("SALE\n".getBytes());
-
-			list.add(new byte[] { 0x1b, 0x45, 0x00 }); // Set Emphasized
-														// Printing OFF (same
-														// command as on)
-
-			outputByteBuffer = ("300678566    PLAIN T-SHIRT                 10.99\n"
-					+ "300692003    BLACK DENIM                   29.99\n"
-					+ "300651148    BLUE DENIM                    29.99\n"
-					+ "300642980    STRIPED DRESS                 49.99\n"
-					+ "300638471    BLACK BOOTS                   35.99\n\n"
-					+ "Subtotal                                  156.95\n"
-					+ "Tax                                         0.00\n"
+	static final ReceiptTemplate SAMPLE_RECEIPT_3INCH = ReceiptTemplate
+			.compile("[raw 1d 57 40 32][center]"
+					+ "\nStar Clothing Boutique\n123 Star Road\nCity, State 12345\n\n"
+					+ "[left][tabs 2 16 34]Date: {date} [tab]Time: {time}\n"
 					+ "------------------------------------------------ \n"
-					+ "Total   ").getBytes();
-			list.add(outputByteBuffer);
-
-			outputByteBuffer = ("<br/>This is text<br/>"
+					+ "[b]SALE\n[/b]"
+					+ "[each items]{sku}    {name:30}{price}\n[/each]\n"
+					+ "Subtotal{subtotal:>40}\n"
+					+ "Tax{tax:>45}\n"
+					+ "------------------------------------------------ \n"
+					+ "Total   "
+					+ "<br/>This is text<br/>"
 					+ "<br/>This is text<br/><br/>"
 					+ "<br/>This is text<br/><br/>"
 					+ "<br/>This is text<br/><br/>"
@@ -507,190 +1467,30 @@ public class StarPrinter extends CordovaPlugin {
 					+ "Subtotal                                  156.95\n"
 					+ "Tax                                         0.00\n"
 					+ "------------------------------------------------ \n"
-					+ "Total   ").getBytes();
-			list.add(outputByteBuffer);
-
-			/*
-			 * list.add(new byte[] { 0x1d, 0x21, 0x11 }); // Width and Height
-			 * Character Expansion <GS> ! n
-			 * 
-			 * list.add("             $156.95\n".getBytes());
-			 * 
-			 * list.add(new byte[] { 0x1d, 0x21, 0x00 }); // Cancel Expansion -
-			 * Reference Star Portable Printer Programming Manual
-			 * 
-			 * list.add(("------------------------------------------------ \n" +
-			 * "Charge\n" + "$156.95\n" +
-			 * "Visa XXXX-XXXX-XXXX-0123\n").getBytes());
-			 * 
-			 * list.add(new byte[] { 0x1d, 0x77, 0x02 }); // for 1D Code39
-			 * Barcode list.add(new byte[] { 0x1d, 0x68, 0x64 }); // for 1D
-			 * Code39 Barcode list.add(new byte[] { 0x1d, 0x48, 0x01 }); // for
-			 * 1D Code39 Barcode list.add(new byte[] { 0x1d, 0x6b, 0x41, 0x0b,
-			 * 0x30, 0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x30
-			 * }); // for 1D Code39 Barcode
-			 * 
-			 * list.add("\n".getBytes());
-			 * 
-			 * list.add(new byte[] { 0x1d, 0x42, 0x01 }); // Specify White-Black
-			 * Invert
-			 * 
-			 * list.add("Refunds and Exchanges\n".getBytes());
-			 * 
-			 * list.add(new byte[] { 0x1d, 0x42, 0x00 }); // Cancel White-Black
-			 * Invert
-			 * 
-			 * list.add("Within ".getBytes());
-			 * 
-			 * list.add(new byte[] { 0x1b, 0x2d, 0x01 }); // Specify Underline
-			 * Printing
-			 * 
-			 * list.add("30 days".getBytes());
-			 * 
-			 * list.add(new byte[] { 0x1b, 0x2d, 0x00 }); // Cancel Underline
-			 * Printing
-			 * 
-			 * outputByteBuffer = (" with receipt\n" + "And tags attached\n" +
-			 * "------------- Card Holder's Signature ---------- \n\n\n" +
-			 * "------------------------------------------------ \n" +
-			 * "Thank you for buying Star!\n" +
-			 * "Scan QR code to visit our site!\n").getBytes();
-			 * list.add(outputByteBuffer);
-			 * 
-			 * list.add(new byte[] { 0x1d, 0x5a, 0x02 }); // Cancel Underline
-			 * Printing
-			 * 
-			 * byte[] qrcodeByteBuffer = new byte[] { 0x1d, 0x5a, 0x02, 0x1b,
-			 * 0x5a, 0x00, 0x51, 0x04, 0x1C, 0x00, 0x68, 0x74, 0x74, 0x70, 0x3a,
-			 * 0x2f, 0x2f, 0x77, 0x77, 0x77, 0x2e, 0x53, 0x74, 0x61, 0x72, 0x4d,
-			 * 0x69, 0x63, 0x72, 0x6f, 0x6e, 0x69, 0x63, 0x73, 0x2e, 0x63, 0x6f,
-			 * 0x6d }; list.add(qrcodeByteBuffer); // QR Code (View QR 2D
-			 * Barcode code for better explanation)
-			 */
-			list.add("\n\n\n\n".getBytes());
-		} else if (strPrintArea.equals("4inch (112mm)")) {
-			byte[] outputByteBuffer = null;
-
-			list.add(new byte[] { 0x1d, 0x57, 0x40, 0x32 }); // Page Area
-																// Setting <GS>
-																// <W> nL nH (nL
-																// = 64, nH = 2)
-
-			list.add(new byte[] { 0x1b, 0x61, 0x01 }); // Center Justification
-														// <ESC> a n (0 Left, 1
-														// Center, 2 Right)
-
-			// outputByteBuffer = ("[Print Stored Logo Below]\n\n").getBytes();
-			// port.writePort(outputByteBuffer, 0, outputByteBuffer.length);
-			//
-			// list.add(new byte[]{0x1b, 0x66, 0x00})); //Stored Logo Printing
-			// <ESC> f n (n = Store Logo # = 0 or 1 or 2 etc.)
-
-			list.add(("\nStar Clothing Boutique\n" + "123 Star Road\n"
-					+ "City, State 12345\n\n").getBytes());
-
-			list.add(new byte[] { 0x1b, 0x61, 0x00 }); // Left Alignment
-
-			list.add(new byte[] { 0x1b, 0x44, 0x02, 0x1b, 0x34, 0x00 }); // Setting
-																			// Horizontal
-																			// Tab
-
-			list.add("Date: MM/DD/YYYY ".getBytes());
-
-			list.add(new byte[] { 0x09 }); // Left Alignment"
+					+ "Total   \n\n\n\n");
 
-			list.add(("Time: HH:MM PM\n"
-					+ "--------------------------------------------------------------------- \n")
-					.getBytes());
-
-			list.add(new byte[] { 0x1b, 0x45, 0x01 }); // Set Emphasized
-														// Printing ON
-
-			list.add("SALE\n".getBytes());
-
-			list.add(new byte[] { 0x1b, 0x45, 0x00 }); // Set Emphasized
-														// Printing OFF (same
-														// command as on)
-
-			outputByteBuffer = ("300678566 \u0009  PLAIN T-SHIRT\u0009         10.99\n"
-					+ "300692003 \u0009  BLACK DENIM\u0009         29.99\n"
-					+ "300651148 \u0009  BLUE DENIM\u0009         29.99\n"
-					+ "300642980 \u0009  STRIPED DRESS\u0009         49.99\n"
-					+ "300638471 \u0009  BLACK BOOTS\u0009         35.99\n\n"
-					+ "Subtotal \u0009\u0009        156.95\n"
-					+ "Tax \u0009\u0009          0.00\n"
+	static final ReceiptTemplate SAMPLE_RECEIPT_4INCH = ReceiptTemplate
+			.compile("[raw 1d 57 40 32][center]"
+					+ "\nStar Clothing Boutique\n123 Star Road\nCity, State 12345\n\n"
+					+ "[left][tabs 2 27 52]Date: {date} [tab]Time: {time}\n"
 					+ "--------------------------------------------------------------------- \n"
-					+ "Total\u0009").getBytes();
-			list.add(outputByteBuffer);
-
-			list.add(new byte[] { 0x1d, 0x21, 0x11 }); // Width and Height
-														// Character Expansion
-														// <GS> ! n
-
-			list.add("\u0009$156.95\n".getBytes());
-
-			list.add(new byte[] { 0x1d, 0x21, 0x00 }); // Cancel Expansion -
-														// Reference Star
-														// Portable Printer
-														// Programming Manual
-
-			outputByteBuffer = ("--------------------------------------------------------------------- \n"
-					+ "Charge\n" + "$156.95\n" + "Visa XXXX-XXXX-XXXX-0123\n")
-					.getBytes();
-			list.add(outputByteBuffer);
-
-			list.add(new byte[] { 0x1d, 0x77, 0x02 }); // for 1D Code39 Barcode
-			list.add(new byte[] { 0x1d, 0x68, 0x64 }); // for 1D Code39 Barcode
-			list.add(new byte[] { 0x1d, 0x48, 0x01 }); // for 1D Code39 Barcode
-			list.add(new byte[] { 0x1d, 0x6b, 0x41, 0x0b, 0x30, 0x31, 0x32,
-					0x33, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x30 }); // for 1D
-																		// Code39
-																		// Barcode
-
-			list.add("\n".getBytes());
-
-			list.add(new byte[] { 0x1d, 0x42, 0x01 }); // Specify White-Black
-														// Invert
-
-			list.add("Refunds and Exchanges\n".getBytes());
-
-			list.add(new byte[] { 0x1d, 0x42, 0x00 }); // Cancel White-Black
-														// Invert
-
-			list.add("Within ".getBytes());
-
-			list.add(new byte[] { 0x1b, 0x2d, 0x01 }); // Specify Underline
-														// Printing
-
-			list.add("30 days".getBytes());
-
-			list.add(new byte[] { 0x1b, 0x2d, 0x00 }); // Cancel Underline
-														// Printing
-
-			outputByteBuffer = (" with receipt\n"
+					+ "[b]SALE\n[/b]"
+					+ "[each items]{sku} [tab]  {name}[tab]         {price}\n[/each]\n"
+					+ "Subtotal [tab][tab]        {subtotal}\n"
+					+ "Tax [tab][tab]          {tax}\n"
+					+ "--------------------------------------------------------------------- \n"
+					+ "Total[tab][x 2 2][tab]${total}\n[/x]"
+					+ "--------------------------------------------------------------------- \n"
+					+ "Charge\n${total}\n{card}\n"
+					+ "[code39 01234567890]\n"
+					+ "[inv]Refunds and Exchanges\n[/inv]"
+					+ "Within [u]30 days[/u] with receipt\n"
 					+ "And tags attached\n"
 					+ "----------------------- Card Holder's Signature --------------------- \n\n\n"
 					+ "--------------------------------------------------------------------- \n"
 					+ "Thank you for buying Star!\n"
-					+ "Scan QR code to visit our site!\n").getBytes();
-			list.add(outputByteBuffer);
-
-			list.add(new byte[] { 0x1d, 0x5a, 0x02 }); // Cancel Underline
-														// Printing
-
-			byte[] qrcodeByteBuffer = new byte[] { 0x1d, 0x5a, 0x02, 0x1b,
-					0x5a, 0x00, 0x51, 0x04, 0x1C, 0x00, 0x68, 0x74, 0x74, 0x70,
-					0x3a, 0x2f, 0x2f, 0x77, 0x77, 0x77, 0x2e, 0x53, 0x74, 0x61,
-					0x72, 0x4d, 0x69, 0x63, 0x72, 0x6f, 0x6e, 0x69, 0x63, 0x73,
-					0x2e, 0x63, 0x6f, 0x6d };
-			list.add(qrcodeByteBuffer); // QR Code (View QR 2D Barcode code for
-										// better explanation)
-
-			list.add("\n\n\n\n".getBytes());
-		}
-
-		return sendCommand(context, portName, portSettings, list);
-	}
+					+ "Scan QR code to visit our site!\n"
+					+ "[raw 1d 5a 02][qr http://www.StarMicronics.com]\n\n\n\n");
 
 	/**
 	 * This function shows how to get the status of a printer
@@ -711,32 +1511,14 @@ public class StarPrinter extends CordovaPlugin {
 			String portSettings) {
 		StarIOPort port = null;
 		try {
-			/*
-			 * using StarIOPort3.1.jar (support USB Port) Android OS Version:
-			 * upper 2.2
-			 */
-			port = StarIOPort.getPort(portName, portSettings, 10000, context);
-			/*
-			 * using StarIOPort.jar Android OS Version: under 2.1 port =
-			 * StarIOPort.getPort(portName, portSettings, 10000);
-			 */
-
-			// A sleep is used to get time for the socket to completely open
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {
-			}
+			port = StarPortPool.getSharedPool().acquire(context, portName,
+					portSettings, 10000);
 
 			StarPrinterStatus status = port.retreiveStatus();
+			StatusMonitor.getSharedMonitor().record(portName, status);
 
 			if (status.offline == false) {
-				Builder dialog = new AlertDialog.Builder(context);
-				dialog.setNegativeButton("Ok", null);
-				AlertDialog alert = dialog.create();
-				alert.setTitle("Printer");
-				alert.setMessage("Printer is Online");
-				alert.setCancelable(false);
-				alert.show();
+				ShowAlert(context, "Printer", "Printer is Online");
 			} else {
 				String message = "Printer is offline";
 				if (status.receiptPaperEmpty == true) {
@@ -745,29 +1527,15 @@ public class StarPrinter extends CordovaPlugin {
 				if (status.coverOpen == true) {
 					message += "\nCover is Open";
 				}
-				Builder dialog = new AlertDialog.Builder(context);
-				dialog.setNegativeButton("Ok", null);
-				AlertDialog alert = dialog.create();
-				alert.setTitle("Printer");
-				alert.setMessage(message);
-				alert.setCancelable(false);
-				alert.show();
+				ShowAlert(context, "Printer", message);
 			}
 		} catch (StarIOPortException e) {
-			Builder dialog = new AlertDialog.Builder(context);
-			dialog.setNegativeButton("Ok", null);
-			AlertDialog alert = dialog.create();
-			alert.setTitle("Failure");
-			alert.setMessage("Failed to connect to printer");
-			alert.setCancelable(false);
-			alert.show();
+			StarPortPool.getSharedPool().release(port, e);
+			port = null;
+			StatusMonitor.getSharedMonitor().recordUnreachable(portName);
+			ShowAlert(context, "Failure", "Failed to connect to printer");
 		} finally {
-			if (port != null) {
-				try {
-					StarIOPort.releasePort(port);
-				} catch (StarIOPortException e) {
-				}
-			}
+			StarPortPool.getSharedPool().release(port);
 		}
 	}
 
@@ -787,23 +1555,13 @@ public class StarPrinter extends CordovaPlugin {
 			String portSettings) {
 		StarIOPort port = null;
 		try {
-			/*
-			 * using StarIOPort3.1.jar (support USB Port) Android OS Version:
-			 * upper 2.2
-			 */
-			port = StarIOPort.getPort(portName, portSettings, 10000, context);
-			/*
-			 * using StarIOPort.jar Android OS Version: under 2.1 port =
-			 * StarIOPort.getPort(portName, portSettings, 10000);
-			 */
-
-			// A sleep is used to get time for the socket to completely open
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {
-			}
+			port = StarPortPool.getSharedPool().acquire(context, portName,
+					portSettings, 10000);
 
 			Map<String, String> firmware = port.getFirmwareInformation();
+			if (PrinterProfile.shouldIdentify(portName)) {
+				PrinterProfile.identify(portName, firmware);
+			}
 
 			String modelName = firmware.get("ModelName");
 			String firmwareVersion = firmware.get("FirmwareVersion");
@@ -811,29 +1569,14 @@ public class StarPrinter extends CordovaPlugin {
 			String message = "Model Name:" + modelName;
 			message += "\nFirmware Version:" + firmwareVersion;
 
-			Builder dialog = new AlertDialog.Builder(context);
-			dialog.setNegativeButton("Ok", null);
-			AlertDialog alert = dialog.create();
-			alert.setTitle("Firmware Information");
-			alert.setMessage(message);
-			alert.setCancelable(false);
-			alert.show();
+			ShowAlert(context, "Firmware Information", message);
 
 		} catch (StarIOPortException e) {
-			Builder dialog = new AlertDialog.Builder(context);
-			dialog.setNegativeButton("Ok", null);
-			AlertDialog alert = dialog.create();
-			alert.setTitle("Failure");
-			alert.setMessage("Failed to connect to printer");
-			alert.setCancelable(false);
-			alert.show();
+			StarPortPool.getSharedPool().release(port, e);
+			port = null;
+			ShowAlert(context, "Failure", "Failed to connect to printer");
 		} finally {
-			if (port != null) {
-				try {
-					StarIOPort.releasePort(port);
-				} catch (StarIOPortException e) {
-				}
-			}
+			StarPortPool.getSharedPool().release(port);
 		}
 	}
 
@@ -865,24 +1608,201 @@ public class StarPrinter extends CordovaPlugin {
 	 * StarIOPortException(ex.getMessage()); } } }
 	 */
 
+	/**
+	 * Queues the commands in the persistent print job queue and sends every
+	 * pending job for the printer. If the printer is not ready the job stays
+	 * queued and is printed once the printer recovers. While the queue is
+	 * already waiting for the printer, or it was last found unreachable, the
+	 * job is only queued, so a sale does not wait for another connect that
+	 * is bound to fail.
+	 * 
+	 * @return True if the commands were printed, false if they are still
+	 *         waiting in the queue
+	 */
 	private static boolean sendCommand(Context context, String portName,
 			String portSettings, ArrayList<byte[]> byteList) {
-		boolean result = true;
-		StarIOPort port = null;
+		return sendCommand(context, portName, portSettings, new CommandBuffer(
+				byteList));
+	}
+
+	private static boolean sendCommand(Context context, String portName,
+			String portSettings, CommandBuffer command) {
+		PrintJobQueue queue = getJobQueue(context);
+
 		try {
-			/*
-			 * using StarIOPort3.1.jar (support USB Port) Android OS Version:
-			 * upper 2.2
-			 */
-			port = StarIOPort.getPort(portName, portSettings, 20000, context);
-			/*
-			 * using StarIOPort.jar Android OS Version: under 2.1 port =
-			 * StarIOPort.getPort(portName, portSettings, 10000);
-			 */
+			queue.enqueue(portName, portSettings, command, jobGroup.get());
+		} catch (IOException e) {
+			// The job could not be stored, fall back to sending it directly
 			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {
+				sendJob(context, new PrintJobQueue.PrintJob(0, portName,
+						portSettings, command));
+				return true;
+			} catch (StarIOPortException ex) {
+				ShowAlert(context, "Failure", ex.getMessage());
+				return false;
 			}
+		}
+
+		StatusMonitor.Snapshot status = StatusMonitor.getSharedMonitor()
+				.getStatus(portName);
+		if (queue.isRetryScheduled(portName)
+				|| (status != null && !status.reachable)) {
+			queue.scheduleRetry(portName);
+			ShowAlert(context, "Failure", "The printer cannot be reached."
+					+ "\nThe receipt will print once the printer is ready.");
+			return false;
+		}
+
+		StarIOPortException error = queue.drain(portName);
+		if (error instanceof PossiblyPrintedException) {
+			ShowAlert(context, "Failure", error.getMessage()
+					+ "\nThe receipt may have printed. Check it before printing it again.");
+			return false;
+		} else if (error instanceof JobMovedException) {
+			ShowAlert(context, "Failure", error.getMessage()
+					+ "\nThe receipt will print on "
+					+ ((JobMovedException) error).getPortName() + " instead.");
+			return false;
+		} else if (error != null) {
+			ShowAlert(context, "Failure", error.getMessage()
+					+ "\nThe receipt will print once the printer is ready.");
+			return false;
+		}
+		return true;
+	}
+
+	static PrintJobQueue getJobQueue(Context context) {
+		return PrintJobQueue.getSharedQueue(context,
+				new PrintJobQueue.JobSender() {
+					public void send(Context context, PrintJobQueue.PrintJob job)
+							throws StarIOPortException {
+						sendJob(context, job);
+					}
+
+					public PrinterRegistry.Printer reroute(Context context,
+							PrintJobQueue.PrintJob job) {
+						return PrinterRegistry.getSharedRegistry(context)
+								.alternative(job.getGroup(), job.portName,
+										getJobQueue(context));
+					}
+				});
+	}
+
+	/**
+	 * Writes the command bytes of a queued job to the printer.
+	 * 
+	 * @param context
+	 *            Context passed to StarIOPort.getPort
+	 * @param job
+	 *            The job to print
+	 */
+	private static void sendJob(Context context, PrintJobQueue.PrintJob job)
+			throws StarIOPortException {
+		// Retries drained by the queue on their own are timed as jobs too
+		boolean timed = PrintMetrics.begin(job.portName);
+		try {
+			sendToPrinter(context, job.portName, job.portSettings, job.command);
+		} finally {
+			if (timed) {
+				PrintMetrics.end();
+			}
+		}
+	}
+
+	/**
+	 * Throws the error a job would end with if the printer is in this state.
+	 */
+	private static void CheckPrinterReady(boolean offline, boolean coverOpen,
+			boolean paperEmpty) throws StarIOPortException {
+		if (true == coverOpen) {
+			throw new PrinterNotReadyException("Printer cover is open");
+		} else if (true == paperEmpty) {
+			throw new PrinterNotReadyException("Receipt paper is empty");
+		} else if (true == offline) {
+			throw new PrinterNotReadyException("A printer is offline");
+		}
+	}
+
+	/**
+	 * Timeout for the printer to confirm a job of this many bytes: three
+	 * times as long as the link normally takes to print that much, plus a
+	 * fixed allowance for the round trip, within bounds. Until the link has
+	 * been measured the speed is only a guess, so the timeout is never
+	 * shorter than the fixed one used before.
+	 */
+	private static int EndCheckedBlockTimeout(String portName,
+			String portSettings, int bytes) {
+		double bytesPerSecond = StarPortPool.getSharedPool().getBytesPerSecond(
+				portName, portSettings);
+		long minimum = MIN_END_CHECKED_BLOCK_TIMEOUT;
+		if (bytesPerSecond <= 0) {
+			bytesPerSecond = DEFAULT_BYTES_PER_SECOND;
+			minimum = UNMEASURED_END_CHECKED_BLOCK_TIMEOUT;
+		}
+		long timeout = END_CHECKED_BLOCK_ALLOWANCE
+				+ (long) (3000.0 * bytes / bytesPerSecond);
+		return (int) Math.max(minimum,
+				Math.min(MAX_END_CHECKED_BLOCK_TIMEOUT, timeout));
+	}
+
+	/**
+	 * Writes commands to an open port.
+	 */
+	interface PortWriter {
+		void writeTo(StarIOPort port) throws StarIOPortException;
+
+		/**
+		 * Number of bytes writeTo sends. A writer that produces its commands
+		 * while writing returns the bytes handed to the port so far, so 0
+		 * after a failure before anything went out.
+		 */
+		int length();
+	}
+
+	/**
+	 * Writes commands to the printer inside a begin / end checked block and
+	 * throws if the printer reports a problem afterwards. A failure once
+	 * bytes of the commands have been handed to the port is thrown as a
+	 * PossiblyPrintedException, so the job is not sent again blindly. A
+	 * failure to reach the printer before that is thrown as a
+	 * PrinterUnreachableException and recorded with the StatusMonitor.
+	 * 
+	 * @param context
+	 *            Context passed to StarIOPort.getPort
+	 * @param portName
+	 *            Port name to use for communication. This should be
+	 *            (TCP:<IPAddress> or BT:<Device pair name>)
+	 * @param portSettings
+	 *            Should be mini, the port settings mini is used for portable
+	 *            printers
+	 * @param writer
+	 *            Writes the commands to the port
+	 */
+	private static void sendToPrinter(Context context, String portName,
+			String portSettings, PortWriter writer) throws StarIOPortException {
+		// A recent status that rules out printing fails the job straight
+		// away, leaving it in the job queue, without opening the port
+		StatusMonitor.Snapshot cached = StatusMonitor.getSharedMonitor()
+				.getStatus(portName);
+		if (cached != null && cached.reachable
+				&& System.currentTimeMillis() - cached.timestamp < PREFLIGHT_STATUS_AGE) {
+			try {
+				CheckPrinterReady(cached.offline, cached.coverOpen,
+						cached.paperEmpty);
+			} catch (StarIOPortException e) {
+				PrintMetrics.attempt(0, PrintMetrics.failureReason(cached));
+				throw e;
+			}
+		}
+
+		StarIOPort port = null;
+		long written = 0;
+		boolean writing = false;
+		try {
+			long stageStart = System.nanoTime();
+			port = StarPortPool.getSharedPool().acquire(context, portName,
+					portSettings, StarPortPool.DEFAULT_OPEN_TIMEOUT);
+			PrintMetrics.stage(PrintMetrics.STAGE_CONNECT, stageStart);
 
 			/*
 			 * Portable Printer Firmware Version 2.4 later, SM-S220i(Firmware
@@ -901,29 +1821,39 @@ public class StarPrinter extends CordovaPlugin {
 			 */
 
 			/* Start of Begin / End Checked Block Sample code */
+			stageStart = System.nanoTime();
 			StarPrinterStatus status = port.beginCheckedBlock();
-
-			if (true == status.offline) {
-				throw new StarIOPortException("A printer is offline");
-			}
-
-			byte[] commandToSendToPrinter = convertFromListByteArrayTobyteArray(byteList);
-			port.writePort(commandToSendToPrinter, 0,
-					commandToSendToPrinter.length);
-
-			port.setEndCheckedBlockTimeoutMillis(30000);// Change the timeout
-														// time of
-														// endCheckedBlock
-														// method.
+			StatusMonitor.getSharedMonitor().record(portName, status);
+
+			// Fail before sending anything rather than after the timeout
+			CheckPrinterReady(status.offline, status.coverOpen,
+					status.receiptPaperEmpty);
+
+			long start = System.currentTimeMillis();
+			writing = true;
+			writer.writeTo(port);
+			written = writer.length();
+			PrintMetrics.stage(PrintMetrics.STAGE_WRITE, stageStart);
+
+			// Change the timeout time of endCheckedBlock method.
+			port.setEndCheckedBlockTimeoutMillis(EndCheckedBlockTimeout(
+					portName, portSettings, writer.length()));
+			stageStart = System.nanoTime();
 			status = port.endCheckedBlock();
+			PrintMetrics.stage(PrintMetrics.STAGE_CONFIRM, stageStart);
+			StatusMonitor.getSharedMonitor().record(portName, status);
 
 			if (true == status.coverOpen) {
-				throw new StarIOPortException("Printer cover is open");
+				throw new PrinterNotReadyException("Printer cover is open");
 			} else if (true == status.receiptPaperEmpty) {
-				throw new StarIOPortException("Receipt paper is empty");
+				throw new PrinterNotReadyException("Receipt paper is empty");
 			} else if (true == status.offline) {
-				throw new StarIOPortException("Printer is offline");
+				throw new PrinterNotReadyException("Printer is offline");
 			}
+			StarPortPool.getSharedPool().recordTransfer(portName,
+					portSettings, writer.length(),
+					System.currentTimeMillis() - start);
+			PrintMetrics.attempt(written, -1);
 			/* End of Begin / End Checked Block Sample code */
 
 			/*
@@ -943,50 +1873,30 @@ public class StarPrinter extends CordovaPlugin {
 			 */
 
 			/* Start of query commands Sample code */
-			// byte[] commandToSendToPrinter =
-			// convertFromListByteArrayTobyteArray(byteList);
-			// port.writePort(commandToSendToPrinter, 0,
-			// commandToSendToPrinter.length);
+			// writer.writeTo(port);
 			//
 			// checkPrinterSendToComplete(port);
 			/* End of query commands Sample code */
 		} catch (StarIOPortException e) {
-			result = false;
-			Builder dialog = new AlertDialog.Builder(context);
-			dialog.setNegativeButton("Ok", null);
-			AlertDialog alert = dialog.create();
-			alert.setTitle("Failure");
-			alert.setMessage(e.getMessage());
-			alert.setCancelable(false);
-			alert.show();
-		} finally {
-			if (port != null) {
-				try {
-					StarIOPort.releasePort(port);
-				} catch (StarIOPortException e) {
-				}
+			StarPortPool.getSharedPool().release(port, e);
+			port = null;
+			boolean unreachable = !writing
+					&& StarPortPool.isConnectionFailure(e);
+			if (unreachable) {
+				StatusMonitor.getSharedMonitor().recordUnreachable(portName);
 			}
+			PrintMetrics.attempt(written, PrintMetrics.failureReason(
+					StatusMonitor.getSharedMonitor().getStatus(portName)));
+			if (writing && writer.length() > 0) {
+				// The printer has received some or all of the job
+				throw new PossiblyPrintedException(e);
+			} else if (unreachable) {
+				throw new PrinterUnreachableException(e);
+			}
+			throw e;
+		} finally {
+			StarPortPool.getSharedPool().release(port);
 		}
-
-		return result;
-	}
-
-	private static byte[] convertFromListByteArrayTobyteArray(
-			List<byte[]> ByteArray) {
-		int dataLength = 0;
-		for (int i = 0; i < ByteArray.size(); i++) {
-			dataLength += ByteArray.get(i).length;
-		}
-
-		int distPosition = 0;
-		byte[] byteArray = new byte[dataLength];
-		for (int i = 0; i < ByteArray.size(); i++) {
-			System.arraycopy(ByteArray.get(i), 0, byteArray, distPosition,
-					ByteArray.get(i).length);
-			distPosition += ByteArray.get(i).length;
-		}
-
-		return byteArray;
 	}
 
 	/**
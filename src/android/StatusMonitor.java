@@ -0,0 +1,267 @@
+package com.star.printer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+
+import com.starmicronics.stario.StarIOPort;
+import com.starmicronics.stario.StarIOPortException;
+import com.starmicronics.stario.StarPrinterStatus;
+
+/**
+ * Keeps the latest status of each printer so it can be read without talking
+ * to the printer. Print jobs record the status they read anyway, and printers
+ * being monitored are polled at a low rate in between. Listeners are told
+ * when a printer goes offline or comes back, or its cover or paper state
+ * changes.
+ */
+public class StatusMonitor {
+
+	public static final long DEFAULT_INTERVAL = 5000;
+	// Timeout for opening a port to poll, much shorter than a job's so an
+	// unreachable printer does not hold its thread for long
+	private static final int POLL_OPEN_TIMEOUT = 3000;
+	// Least time between polls that have to connect, because no port is
+	// open; such a poll opens a port only to close it again
+	private static final long RECONNECT_INTERVAL = StarPortPool.DEFAULT_IDLE_TIMEOUT;
+
+	private static final StatusMonitor sharedMonitor = new StatusMonitor();
+
+	/**
+	 * The status of a printer at a point in time.
+	 */
+	public static class Snapshot {
+		/** False if the printer could not be reached. */
+		public final boolean reachable;
+		public final boolean offline;
+		public final boolean coverOpen;
+		public final boolean paperEmpty;
+		public final boolean paperNearEmpty;
+		/** The full status read from the printer, or null if unreachable. */
+		public final StarPrinterStatus status;
+		/** System.currentTimeMillis() when the status was read. */
+		public final long timestamp;
+
+		Snapshot(StarPrinterStatus status, long timestamp) {
+			this.reachable = status != null;
+			this.offline = status == null || status.offline;
+			this.coverOpen = status != null && status.coverOpen;
+			this.paperEmpty = status != null && status.receiptPaperEmpty;
+			this.paperNearEmpty = status != null
+					&& (status.receiptPaperNearEmptyInner || status.receiptPaperNearEmptyOuter);
+			this.status = status;
+			this.timestamp = timestamp;
+		}
+
+		/**
+		 * Whether the states listeners are told about differ.
+		 */
+		boolean differsFrom(Snapshot other) {
+			return other == null || reachable != other.reachable
+					|| offline != other.offline || coverOpen != other.coverOpen
+					|| paperEmpty != other.paperEmpty
+					|| paperNearEmpty != other.paperNearEmpty;
+		}
+	}
+
+	public interface Listener {
+		/**
+		 * Called on the thread that read the status.
+		 *
+		 * @param previous
+		 *            The last status, or null if there was none
+		 */
+		void statusChanged(String portName, Snapshot previous, Snapshot current);
+	}
+
+	/**
+	 * A monitored printer. pending is set while a poll is waiting for the
+	 * printer's thread, so polls do not pile up behind a long job.
+	 */
+	private static class Watch {
+		final String portName;
+		final String portSettings;
+		final Context context;
+		final long intervalMillis;
+		final AtomicBoolean pending = new AtomicBoolean();
+		ScheduledFuture<?> task;
+
+		Watch(Context context, String portName, String portSettings,
+				long intervalMillis) {
+			this.context = context.getApplicationContext();
+			this.portName = portName;
+			this.portSettings = portSettings;
+			this.intervalMillis = intervalMillis;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Snapshot> snapshots = new ConcurrentHashMap<String, Snapshot>();
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private final Map<String, Watch> watches = new HashMap<String, Watch>();
+	private ScheduledExecutorService timer;
+
+	public static StatusMonitor getSharedMonitor() {
+		return sharedMonitor;
+	}
+
+	/**
+	 * Returns the latest status of the printer, or null if none has been
+	 * read. Never talks to the printer.
+	 */
+	public Snapshot getStatus(String portName) {
+		return snapshots.get(portName);
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Records a status read from the printer and tells the listeners if it
+	 * changed.
+	 */
+	public void record(String portName, StarPrinterStatus status) {
+		update(portName, new Snapshot((StarPrinterStatus) status.clone(),
+				System.currentTimeMillis()));
+	}
+
+	/**
+	 * Records that the printer could not be reached.
+	 */
+	public void recordUnreachable(String portName) {
+		update(portName, new Snapshot(null, System.currentTimeMillis()));
+	}
+
+	private void update(String portName, Snapshot current) {
+		Snapshot previous = snapshots.put(portName, current);
+		if (current.differsFrom(previous)) {
+			for (Listener listener : listeners) {
+				listener.statusChanged(portName, previous, current);
+			}
+		}
+	}
+
+	/**
+	 * Starts polling the printer every intervalMillis, or changes the
+	 * interval if it is already monitored. A poll is skipped when a job has
+	 * recorded the status more recently than that, or when jobs are waiting
+	 * for the printer. While the pool holds no open port for the printer,
+	 * it is connected to at most every RECONNECT_INTERVAL, so an idle
+	 * printer is not connected to and disconnected from on every poll.
+	 * Polls run on the printer's own thread, between its jobs.
+	 */
+	public synchronized void start(Context context, String portName,
+			String portSettings, long intervalMillis) {
+		stop(portName);
+
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "StatusMonitor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		final Watch watch = new Watch(context, portName, portSettings,
+				intervalMillis);
+		watch.task = timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				schedulePoll(watch);
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+		watches.put(portName, watch);
+	}
+
+	public synchronized void stop(String portName) {
+		Watch watch = watches.remove(portName);
+		if (watch != null) {
+			watch.task.cancel(false);
+		}
+	}
+
+	public synchronized void stopAll() {
+		for (Watch watch : watches.values()) {
+			watch.task.cancel(false);
+		}
+		watches.clear();
+		if (timer != null) {
+			timer.shutdownNow();
+			timer = null;
+		}
+	}
+
+	private void schedulePoll(final Watch watch) {
+		Snapshot last = snapshots.get(watch.portName);
+		long age = (last == null) ? Long.MAX_VALUE : System.currentTimeMillis()
+				- last.timestamp;
+		if (last != null && last.reachable && age < watch.intervalMillis) {
+			return;
+		}
+		if (age < Math.max(watch.intervalMillis, RECONNECT_INTERVAL)
+				&& !StarPortPool.getSharedPool().isOpen(watch.portName,
+						watch.portSettings)) {
+			return;
+		}
+		if (!watch.pending.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			PrintExecutor.getSharedExecutor().submit(watch.portName,
+					new Runnable() {
+						public void run() {
+							try {
+								// Jobs waiting behind the poll read the
+								// status themselves
+								if (PrintExecutor.getSharedExecutor()
+										.queuedCount(watch.portName) <= 1) {
+									poll(watch);
+								}
+							} finally {
+								watch.pending.set(false);
+							}
+						}
+					});
+		} catch (RuntimeException e) {
+			// The executor has been shut down
+			watch.pending.set(false);
+		}
+	}
+
+	/**
+	 * Reads the status once. The port is checked out without the pool's
+	 * status probe, since the poll is a status request itself; a link that
+	 * died while idle fails it, is closed and is reported unreachable until
+	 * the next poll reconnects.
+	 */
+	private void poll(Watch watch) {
+		StarPortPool pool = StarPortPool.getSharedPool();
+		StarIOPort port = null;
+		try {
+			port = pool.acquire(watch.context, watch.portName,
+					watch.portSettings, POLL_OPEN_TIMEOUT, false);
+			record(watch.portName, port.retreiveStatus());
+		} catch (StarIOPortException e) {
+			pool.release(port, e);
+			port = null;
+			recordUnreachable(watch.portName);
+		} finally {
+			pool.release(port);
+		}
+	}
+}
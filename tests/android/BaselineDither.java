@@ -0,0 +1,108 @@
+package com.star.printer;
+
+/**
+ * The Floyd-Steinberg pass StarBitmap used before StarDither, kept as the
+ * reference StarDither is tested and timed against. Color.red and friends
+ * are replaced by shifts so it runs off the device; otherwise it is
+ * unchanged, float grey levels and column-major level map included.
+ */
+class BaselineDither {
+
+	private static final int BLACK = 0xff000000;
+	private static final int WHITE = 0xffffffff;
+
+	/**
+	 * Dithers ARGB pixels in place to black and white.
+	 */
+	static void dither(int[] pixels, int width, int height, float intensity) {
+		int[][] levelmap = new int[width][height];
+		for (int y = 0; y < height; y++) {
+			if ((y & 1) == 0) {
+				for (int x = 0; x < width; x++) {
+					int pixel = pixels[y * width + x];
+					levelmap[x][y] += 255 - greyLevel(pixel, intensity);
+					if (levelmap[x][y] >= 255) {
+						levelmap[x][y] -= 255;
+						pixels[y * width + x] = BLACK;
+					} else {
+						pixels[y * width + x] = WHITE;
+					}
+
+					int sixteenthOfQuantError = levelmap[x][y] / 16;
+
+					if (x < width - 1)
+						levelmap[x + 1][y] += sixteenthOfQuantError * 7;
+
+					if (y < height - 1) {
+						levelmap[x][y + 1] += sixteenthOfQuantError * 5;
+
+						if (x > 0)
+							levelmap[x - 1][y + 1] += sixteenthOfQuantError * 3;
+						if (x < width - 1)
+							levelmap[x + 1][y + 1] += sixteenthOfQuantError;
+					}
+				}
+			} else {
+				for (int x = width - 1; x >= 0; x--) {
+					int pixel = pixels[y * width + x];
+
+					levelmap[x][y] += 255 - greyLevel(pixel, intensity);
+
+					if (levelmap[x][y] >= 255) {
+						levelmap[x][y] -= 255;
+						pixels[y * width + x] = BLACK;
+					} else {
+						pixels[y * width + x] = WHITE;
+					}
+
+					int sixteenthOfQuantError = levelmap[x][y] / 16;
+
+					if (x > 0)
+						levelmap[x - 1][y] += sixteenthOfQuantError * 7;
+
+					if (y < height - 1) {
+						levelmap[x][y + 1] += sixteenthOfQuantError * 5;
+
+						if (x < width - 1)
+							levelmap[x + 1][y + 1] += sixteenthOfQuantError * 3;
+
+						if (x > 0)
+							levelmap[x - 1][y + 1] += sixteenthOfQuantError;
+					}
+				}
+			}
+		}
+	}
+
+	private static int greyLevel(int pixel, float intensity) {
+		float red = (pixel >> 16) & 0xff;
+		float green = (pixel >> 8) & 0xff;
+		float blue = pixel & 0xff;
+		float parcial = red + green + blue;
+		parcial = (float) (parcial / 3.0);
+		int gray = (int) (parcial * intensity);
+		if (gray > 255) {
+			gray = 255;
+		}
+		return gray;
+	}
+
+	/**
+	 * Packs dithered pixels the way the original encoders read them: black
+	 * where the brightness is below 127.
+	 */
+	static byte[] pack(int[] pixels, int width, int height) {
+		int bytesPerRow = (width + 7) / 8;
+		byte[] plane = new byte[bytesPerRow * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int pixel = pixels[y * width + x];
+				int brightness = (((pixel >> 16) & 0xff) + ((pixel >> 8) & 0xff) + (pixel & 0xff)) / 3;
+				if (brightness < 127) {
+					plane[y * bytesPerRow + (x >> 3)] |= (byte) (0x80 >>> (x & 7));
+				}
+			}
+		}
+		return plane;
+	}
+}
@@ -0,0 +1,60 @@
+package com.star.printer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The regular expression parsing SigGen used before Signature.parse, kept as
+ * the reference Signature is tested and timed against. Points are returned
+ * as the floats the old code parsed, before SigGen.Point rounded them.
+ */
+class BaselineSignature {
+
+	/**
+	 * SigGen.ExtractSignature: the x, y pairs of every line.
+	 */
+	static List<float[]> extract(String jsonEncoding) {
+		List<float[]> lines = new ArrayList<float[]>();
+		Matcher lineMatcher = Pattern.compile(
+				"(\\[(?:,?\\[-?[\\d\\.]+,-?[\\d\\.]+\\])+\\])").matcher(
+				jsonEncoding);
+		while (lineMatcher.find()) {
+			Matcher pointMatcher = Pattern.compile(
+					"\\[(-?[\\d\\.]+),(-?[\\d\\.]+)\\]").matcher(
+					lineMatcher.group(1));
+			float[] line = new float[0];
+			while (pointMatcher.find()) {
+				float[] grown = new float[line.length + 2];
+				System.arraycopy(line, 0, grown, 0, line.length);
+				grown[line.length] = Float.parseFloat(pointMatcher.group(1));
+				grown[line.length + 1] = Float.parseFloat(pointMatcher.group(2));
+				line = grown;
+			}
+			lines.add(line);
+		}
+		return lines;
+	}
+
+	/**
+	 * SigGen.maxWidth: the largest x, at least 0.
+	 */
+	static float maxWidth(String jsonEncoding) {
+		float mWidth = 0;
+		Matcher lineMatcher = Pattern.compile(
+				"(\\[(?:,?\\[-?[\\d\\.]+,-?[\\d\\.]+\\])+\\])").matcher(
+				jsonEncoding);
+		while (lineMatcher.find()) {
+			Matcher pointMatcher = Pattern.compile(
+					"\\[(-?[\\d\\.]+),(-?[\\d\\.]+)\\]").matcher(
+					lineMatcher.group(1));
+			while (pointMatcher.find()) {
+				if (Float.parseFloat(pointMatcher.group(1)) > mWidth) {
+					mWidth = Float.parseFloat(pointMatcher.group(1));
+				}
+			}
+		}
+		return mWidth;
+	}
+}
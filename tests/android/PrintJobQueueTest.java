@@ -0,0 +1,275 @@
+package com.star.printer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.Context;
+
+import com.starmicronics.stario.StarIOPortException;
+
+public class PrintJobQueueTest {
+
+	/**
+	 * Records the jobs sent and fails the printers it is told to.
+	 */
+	static class Sender implements PrintJobQueue.JobSender {
+		final List<Long> sent = new ArrayList<Long>();
+		final Map<String, StarIOPortException> failures = new HashMap<String, StarIOPortException>();
+		PrinterRegistry.Printer alternative;
+
+		public synchronized void send(Context context, PrintJobQueue.PrintJob job)
+				throws StarIOPortException {
+			StarIOPortException failure = failures.get(job.portName);
+			if (failure != null) {
+				throw failure;
+			}
+			sent.add(job.id);
+		}
+
+		public PrinterRegistry.Printer reroute(Context context,
+				PrintJobQueue.PrintJob job) {
+			return alternative;
+		}
+	}
+
+	private File file;
+	private Sender sender;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("jobs", ".log");
+		file.delete();
+		file.deleteOnExit();
+		sender = new Sender();
+	}
+
+	/**
+	 * Opens the log as a new run would, once its jobs have been loaded.
+	 */
+	private PrintJobQueue open() {
+		PrintJobQueue queue = new PrintJobQueue(null, file, sender);
+		queue.getJobs();
+		return queue;
+	}
+
+	private static CommandBuffer command(int... bytes) {
+		byte[] data = new byte[bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			data[i] = (byte) bytes[i];
+		}
+		CommandBuffer buffer = new CommandBuffer();
+		buffer.add(data);
+		return buffer;
+	}
+
+	private static List<PrintJobQueue.PrintJob> pending(PrintJobQueue queue) {
+		List<PrintJobQueue.PrintJob> jobs = new ArrayList<PrintJobQueue.PrintJob>();
+		for (PrintJobQueue.PrintJob job : queue.getJobs()) {
+			if (job.getState() == PrintJobQueue.STATE_PENDING) {
+				jobs.add(job);
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * Writes a job record the way the queue does, for jobs the queue itself
+	 * would not create.
+	 */
+	private void writeJob(long id, long created, String portName, int... bytes)
+			throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file,
+				true));
+		try {
+			out.writeByte('J');
+			out.writeLong(id);
+			out.writeLong(created);
+			out.writeUTF(portName);
+			out.writeUTF("");
+			out.writeInt(bytes.length);
+			for (int b : bytes) {
+				out.writeByte(b);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private void appendBytes(int... bytes) throws IOException {
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			for (int b : bytes) {
+				out.write(b);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@Test
+	public void pendingJobsAreReplayedInOrderPerPrinter() throws IOException {
+		PrintJobQueue queue = open();
+		long a1 = queue.enqueue("TEST:A", "", command(1)).id;
+		long b1 = queue.enqueue("TEST:B", "", command(2)).id;
+		long a2 = queue.enqueue("TEST:A", "", command(3)).id;
+		long a3 = queue.enqueue("TEST:A", "", command(4)).id;
+		assertTrue(queue.cancel(a2));
+
+		PrintJobQueue reloaded = open();
+		assertEquals(2, reloaded.pendingCount("TEST:A"));
+		assertEquals(1, reloaded.pendingCount("TEST:B"));
+		assertNull(reloaded.drain("TEST:A"));
+		assertEquals(a1, (long) sender.sent.get(0));
+		assertEquals(a3, (long) sender.sent.get(1));
+		assertEquals(2, sender.sent.size());
+
+		// Jobs queued after a reload come after the replayed ones
+		long b2 = reloaded.enqueue("TEST:B", "", command(5)).id;
+		assertTrue(b2 > a3);
+		assertNull(reloaded.drain("TEST:B"));
+		assertEquals(b1, (long) sender.sent.get(2));
+		assertEquals(b2, (long) sender.sent.get(3));
+	}
+
+	@Test
+	public void tornTailIsCutOff() throws IOException {
+		PrintJobQueue queue = open();
+		queue.enqueue("TEST:A", "", command(1, 2, 3));
+		queue.enqueue("TEST:A", "", command(4));
+		// A job record cut short by a crash
+		appendBytes('J', 0, 0, 0, 0, 0, 0, 0, 9, 0, 0);
+
+		PrintJobQueue reloaded = open();
+		assertEquals(2, reloaded.pendingCount("TEST:A"));
+
+		// Records appended after the replay are read back, not lost behind
+		// the torn one
+		reloaded.enqueue("TEST:A", "", command(5));
+		assertEquals(3, open().pendingCount("TEST:A"));
+	}
+
+	@Test
+	public void unknownRecordEndsTheReplay() throws IOException {
+		writeJob(1, System.currentTimeMillis(), "TEST:A", 1);
+		appendBytes('X', 0, 0, 0, 0, 0, 0, 0, 1);
+		writeJob(2, System.currentTimeMillis(), "TEST:A", 2);
+
+		assertEquals(1, open().pendingCount("TEST:A"));
+	}
+
+	@Test
+	public void failingJobIsGivenUpAfterMaxAttempts() throws IOException {
+		PrintJobQueue queue = open();
+		PrintJobQueue.PrintJob job = queue.enqueue("TEST:A", "", command(1));
+		sender.failures.put("TEST:A", new StarIOPortException("Broken"));
+
+		for (int i = 1; i < PrintJobQueue.MAX_ATTEMPTS; i++) {
+			assertTrue(queue.drain("TEST:A") != null);
+			assertEquals(PrintJobQueue.STATE_PENDING, job.getState());
+		}
+		queue.drain("TEST:A");
+		assertEquals(PrintJobQueue.STATE_FAILED, job.getState());
+		assertEquals("Broken", job.getFailure());
+		assertEquals(0, open().pendingCount("TEST:A"));
+	}
+
+	@Test
+	public void waitingForThePrinterUsesNoAttempts() throws IOException {
+		PrintJobQueue queue = open();
+		PrintJobQueue.PrintJob job = queue.enqueue("TEST:A", "", command(1));
+
+		sender.failures.put("TEST:A", new PrinterNotReadyException(
+				"Receipt paper is empty"));
+		for (int i = 0; i < PrintJobQueue.MAX_ATTEMPTS * 2; i++) {
+			queue.drain("TEST:A");
+		}
+		sender.failures.put("TEST:A", new PrinterUnreachableException(
+				new StarIOPortException("Failed to open port")));
+		for (int i = 0; i < PrintJobQueue.MAX_ATTEMPTS * 2; i++) {
+			queue.drain("TEST:A");
+		}
+		assertEquals(PrintJobQueue.STATE_PENDING, job.getState());
+		assertEquals(0, job.getAttempts());
+
+		sender.failures.clear();
+		assertNull(queue.drain("TEST:A"));
+		assertEquals(PrintJobQueue.STATE_PRINTED, job.getState());
+	}
+
+	@Test
+	public void expiredJobIsGivenUpWithoutSending() throws IOException {
+		long now = System.currentTimeMillis();
+		writeJob(1, now - PrintJobQueue.MAX_AGE - 1000, "TEST:A", 1);
+		writeJob(2, now, "TEST:A", 2);
+
+		PrintJobQueue queue = open();
+		assertNull(queue.drain("TEST:A"));
+		assertEquals(1, sender.sent.size());
+		assertEquals(2L, (long) sender.sent.get(0));
+		PrintJobQueue.PrintJob expired = queue.getJobs().get(0);
+		assertEquals(1L, expired.id);
+		assertEquals(PrintJobQueue.STATE_FAILED, expired.getState());
+	}
+
+	@Test
+	public void unconfirmedJobIsNotSentAgain() throws IOException {
+		PrintJobQueue queue = open();
+		PrintJobQueue.PrintJob job = queue.enqueue("TEST:A", "", command(1));
+		queue.enqueue("TEST:A", "", command(2));
+		sender.failures.put("TEST:A", new PossiblyPrintedException(
+				new StarIOPortException("Timed out")));
+
+		assertTrue(queue.drain("TEST:A") instanceof PossiblyPrintedException);
+		assertEquals(PrintJobQueue.STATE_UNCONFIRMED, job.getState());
+
+		sender.failures.clear();
+		assertNull(queue.drain("TEST:A"));
+		assertEquals(1, sender.sent.size());
+		assertTrue(job.id != sender.sent.get(0));
+		assertEquals(0, pending(open()).size());
+	}
+
+	@Test
+	public void movedJobReloadsUnderItsNewPrinter() throws IOException {
+		PrintJobQueue queue = open();
+		PrintJobQueue.PrintJob grouped = queue.enqueue("TEST:A", "",
+				command(1), "kitchen");
+		PrintJobQueue.PrintJob fixed = queue.enqueue("TEST:A", "", command(2));
+		sender.failures.put("TEST:A", new PrinterNotReadyException(
+				"Printer cover is open"));
+		sender.failures.put("TEST:B", new PrinterNotReadyException(
+				"Printer cover is open"));
+		sender.alternative = new PrinterRegistry.Printer("TEST:B", "mini");
+
+		// The grouped job moves, the other one keeps waiting for its printer
+		StarIOPortException error = queue.drain("TEST:A");
+		assertTrue(error instanceof PrinterNotReadyException);
+		assertEquals(1, queue.pendingCount("TEST:A"));
+		assertEquals(1, queue.pendingCount("TEST:B"));
+
+		List<PrintJobQueue.PrintJob> jobs = pending(open());
+		assertEquals(2, jobs.size());
+		PrintJobQueue.PrintJob moved = jobs.get(0);
+		assertEquals(grouped.id, moved.id);
+		assertEquals("TEST:B", moved.portName);
+		assertEquals("mini", moved.portSettings);
+		assertEquals("kitchen", moved.getGroup());
+		assertEquals(grouped.created, moved.created);
+		assertEquals(fixed.id, jobs.get(1).id);
+		assertEquals("TEST:A", jobs.get(1).portName);
+		assertNull(jobs.get(1).getGroup());
+	}
+}
@@ -0,0 +1,275 @@
+package com.star.printer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ReceiptTemplateTest {
+
+	private static byte[] concat(List<byte[]> list) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] bytes : list) {
+			try {
+				out.write(bytes);
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static final byte[] CODE39 = { 0x1d, 0x6b, 0x41, 0x0b, 0x30,
+			0x31, 0x32, 0x33, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x30 };
+
+	private static final byte[] QR_CODE = { 0x1d, 0x5a, 0x02, 0x1b, 0x5a,
+			0x00, 0x51, 0x04, 0x1C, 0x00, 0x68, 0x74, 0x74, 0x70, 0x3a, 0x2f,
+			0x2f, 0x77, 0x77, 0x77, 0x2e, 0x53, 0x74, 0x61, 0x72, 0x4d, 0x69,
+			0x63, 0x72, 0x6f, 0x6e, 0x69, 0x63, 0x73, 0x2e, 0x63, 0x6f, 0x6d };
+
+	/**
+	 * The 2 inch receipt as PrintSampleReceipt built it before templates.
+	 */
+	private static byte[] baseline2inch() {
+		return concat(Arrays.asList(
+				new byte[] { 0x1d, 0x57, (byte) 0x80, 0x31 },
+				new byte[] { 0x1b, 0x61, 0x01 },
+				("Star Clothing Boutique\n" + "123 Star Road\n"
+						+ "City, State 12345\n\n").getBytes(),
+				new byte[] { 0x1b, 0x61, 0x00 },
+				("Date: MM/DD/YYYY   Time:HH:MM PM\n"
+						+ "--------------------------------\n").getBytes(),
+				new byte[] { 0x1b, 0x45, 0x01 },
+				"SALE\n".getBytes(),
+				new byte[] { 0x1b, 0x45, 0x00 },
+				("300678566  PLAIN T-SHIRT  10.99\n"
+						+ "300692003  BLACK DENIM    29.99\n"
+						+ "300651148  BLUE DENIM     29.99\n"
+						+ "300642980  STRIPED DRESS  49.99\n"
+						+ "300638471  BLACK BOOTS    35.99\n\n"
+						+ "Subtotal                 156.95" + "\n"
+						+ "Tax                        0.00" + "\n"
+						+ "--------------------------------\n" + "Total ")
+						.getBytes(),
+				new byte[] { 0x1d, 0x21, 0x11 },
+				"      $156.95\n".getBytes(),
+				new byte[] { 0x1d, 0x21, 0x00 },
+				("--------------------------------\n" + "Charge\n"
+						+ "$156.95\n" + "Visa XXXX-XXXX-XXXX-0123\n").getBytes(),
+				new byte[] { 0x1d, 0x77, 0x02 },
+				new byte[] { 0x1d, 0x68, 0x64 },
+				new byte[] { 0x1d, 0x48, 0x01 },
+				CODE39,
+				"\n".getBytes(),
+				new byte[] { 0x1d, 0x42, 0x01 },
+				"Refunds and Exchanges\n".getBytes(),
+				new byte[] { 0x1d, 0x42, 0x00 },
+				"Within ".getBytes(),
+				new byte[] { 0x1b, 0x2d, 0x01 },
+				"30 days".getBytes(),
+				new byte[] { 0x1b, 0x2d, 0x00 },
+				(" with receipt\n" + "And tags attached\n"
+						+ "-------------Sign Here----------\n\n\n"
+						+ "--------------------------------\n"
+						+ "Thank you for buying Star!\n"
+						+ "Scan QR code to visit our site!\n").getBytes(),
+				new byte[] { 0x1d, 0x5a, 0x02 },
+				QR_CODE,
+				"\n\n\n".getBytes()));
+	}
+
+	/**
+	 * The 3 inch receipt as PrintSampleReceipt built it before templates.
+	 */
+	private static byte[] baseline3inch() {
+		return concat(Arrays.asList(
+				new byte[] { 0x1d, 0x57, 0x40, 0x32 },
+				new byte[] { 0x1b, 0x61, 0x01 },
+				("\nStar Clothing Boutique\n" + "123 Star Road\n"
+						+ "City, State 12345\n\n").getBytes(),
+				new byte[] { 0x1b, 0x61, 0x00 },
+				new byte[] { 0x1b, 0x44, 0x02, 0x10, 0x22, 0x00 },
+				"Date: MM/DD/YYYY ".getBytes(),
+				new byte[] { 0x09 },
+				("Time: HH:MM PM\n"
+						+ "------------------------------------------------ \n")
+						.getBytes(),
+				new byte[] { 0x1b, 0x45, 0x01 },
+				"SALE\n".getBytes(),
+				new byte[] { 0x1b, 0x45, 0x00 },
+				("300678566    PLAIN T-SHIRT                 10.99\n"
+						+ "300692003    BLACK DENIM                   29.99\n"
+						+ "300651148    BLUE DENIM                    29.99\n"
+						+ "300642980    STRIPED DRESS                 49.99\n"
+						+ "300638471    BLACK BOOTS                   35.99\n\n"
+						+ "Subtotal                                  156.95\n"
+						+ "Tax                                         0.00\n"
+						+ "------------------------------------------------ \n"
+						+ "Total   ").getBytes(),
+				("<br/>This is text<br/>"
+						+ "<br/>This is text<br/><br/>"
+						+ "<br/>This is text<br/><br/>"
+						+ "<br/>This is text<br/><br/>"
+						+ "300678566    Break above                 10.99\n"
+						+ "300692003    BLACK DENIM                   29.99\n"
+						+ "300651148    BLUE DENIM                    29.99\n"
+						+ "300642980    STRIPED DRESS                 49.99\n"
+						+ "300638471    BLACK BOOTS                   35.99\n\n"
+						+ "Subtotal                                  156.95\n"
+						+ "Tax                                         0.00\n"
+						+ "------------------------------------------------ \n"
+						+ "Total   ").getBytes(),
+				"\n\n\n\n".getBytes()));
+	}
+
+	/**
+	 * The 4 inch receipt as PrintSampleReceipt built it before templates.
+	 */
+	private static byte[] baseline4inch() {
+		return concat(Arrays.asList(
+				new byte[] { 0x1d, 0x57, 0x40, 0x32 },
+				new byte[] { 0x1b, 0x61, 0x01 },
+				("\nStar Clothing Boutique\n" + "123 Star Road\n"
+						+ "City, State 12345\n\n").getBytes(),
+				new byte[] { 0x1b, 0x61, 0x00 },
+				new byte[] { 0x1b, 0x44, 0x02, 0x1b, 0x34, 0x00 },
+				"Date: MM/DD/YYYY ".getBytes(),
+				new byte[] { 0x09 },
+				("Time: HH:MM PM\n"
+						+ "--------------------------------------------------------------------- \n")
+						.getBytes(),
+				new byte[] { 0x1b, 0x45, 0x01 },
+				"SALE\n".getBytes(),
+				new byte[] { 0x1b, 0x45, 0x00 },
+				("300678566 \u0009  PLAIN T-SHIRT\u0009         10.99\n"
+						+ "300692003 \u0009  BLACK DENIM\u0009         29.99\n"
+						+ "300651148 \u0009  BLUE DENIM\u0009         29.99\n"
+						+ "300642980 \u0009  STRIPED DRESS\u0009         49.99\n"
+						+ "300638471 \u0009  BLACK BOOTS\u0009         35.99\n\n"
+						+ "Subtotal \u0009\u0009        156.95\n"
+						+ "Tax \u0009\u0009          0.00\n"
+						+ "--------------------------------------------------------------------- \n"
+						+ "Total\u0009").getBytes(),
+				new byte[] { 0x1d, 0x21, 0x11 },
+				"\u0009$156.95\n".getBytes(),
+				new byte[] { 0x1d, 0x21, 0x00 },
+				("--------------------------------------------------------------------- \n"
+						+ "Charge\n" + "$156.95\n" + "Visa XXXX-XXXX-XXXX-0123\n")
+						.getBytes(),
+				new byte[] { 0x1d, 0x77, 0x02 },
+				new byte[] { 0x1d, 0x68, 0x64 },
+				new byte[] { 0x1d, 0x48, 0x01 },
+				CODE39,
+				"\n".getBytes(),
+				new byte[] { 0x1d, 0x42, 0x01 },
+				"Refunds and Exchanges\n".getBytes(),
+				new byte[] { 0x1d, 0x42, 0x00 },
+				"Within ".getBytes(),
+				new byte[] { 0x1b, 0x2d, 0x01 },
+				"30 days".getBytes(),
+				new byte[] { 0x1b, 0x2d, 0x00 },
+				(" with receipt\n"
+						+ "And tags attached\n"
+						+ "----------------------- Card Holder's Signature --------------------- \n\n\n"
+						+ "--------------------------------------------------------------------- \n"
+						+ "Thank you for buying Star!\n"
+						+ "Scan QR code to visit our site!\n").getBytes(),
+				new byte[] { 0x1d, 0x5a, 0x02 },
+				QR_CODE,
+				"\n\n\n\n".getBytes()));
+	}
+
+	@Test
+	public void sampleReceiptsMatchBaseline() {
+		assertArrayEquals("2 inch", baseline2inch(),
+				StarPrinter.SAMPLE_RECEIPT_2INCH.render(StarPrinter.SampleSale()));
+		assertArrayEquals("3 inch", baseline3inch(),
+				StarPrinter.SAMPLE_RECEIPT_3INCH.render(StarPrinter.SampleSale()));
+		assertArrayEquals("4 inch", baseline4inch(),
+				StarPrinter.SAMPLE_RECEIPT_4INCH.render(StarPrinter.SampleSale()));
+	}
+
+	@Test
+	public void paddingCutsLongValues() {
+		ReceiptTemplate template = ReceiptTemplate.compile("{a:5}|{a:>5}|");
+		assertEquals("abc  |  abc|", new String(template.render(
+				Collections.singletonMap("a", "abc"))));
+		assertEquals("abcd | abcd|", new String(template.render(
+				Collections.singletonMap("a", "abcdefgh"))));
+	}
+
+	@Test
+	public void code39LengthFitsOneByte() {
+		ReceiptTemplate template = ReceiptTemplate.compile("[code39 {id}]");
+		char[] data = new char[255];
+		Arrays.fill(data, '7');
+		byte[] rendered = template.render(Collections.singletonMap("id",
+				new String(data)));
+		assertEquals(255, rendered[12] & 0xff);
+
+		try {
+			template.render(Collections.singletonMap("id", new String(data) + "7"));
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("[code39]"));
+		}
+		try {
+			ReceiptTemplate.compile("[code39 " + new String(data) + "7]");
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("[code39]"));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void qrDataLongerThanAQrCodeIsRejected() {
+		char[] data = new char[1664];
+		Arrays.fill(data, 'x');
+		ReceiptTemplate.compile("[qr {url}]").render(
+				Collections.singletonMap("url", new String(data)));
+	}
+
+	@Test
+	public void imageThatIsNotBytesNamesTheTag() {
+		try {
+			ReceiptTemplate.compile("[image logo]").render(
+					Collections.singletonMap("logo", "not bytes"));
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("[image logo]"));
+		}
+	}
+
+	@Test
+	public void eachOverSomethingElseNamesTheTag() {
+		ReceiptTemplate template = ReceiptTemplate.compile("[each items]{sku}[/each]");
+		try {
+			template.render(Collections.singletonMap("items", "not a list"));
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("[each items]"));
+		}
+		try {
+			template.render(Collections.singletonMap("items",
+					Arrays.asList("not a map")));
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("[each items]"));
+		}
+
+		Map<String, Object> line = new HashMap<String, Object>();
+		line.put("sku", "42");
+		assertEquals("4242", new String(template.render(Collections
+				.singletonMap("items", Arrays.asList(line, line)))));
+	}
+}
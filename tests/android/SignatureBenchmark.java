@@ -0,0 +1,48 @@
+package com.star.printer;
+
+import java.util.Random;
+
+/**
+ * Times reading a JSON signature with the regular expressions SigGen used
+ * before, once for the points and once for the width, against the single
+ * pass of Signature.parse.
+ *
+ * Run with: java com.star.printer.SignatureBenchmark [points]
+ */
+public class SignatureBenchmark {
+
+	private static final int WARMUP = 50;
+	private static final int ROUNDS = 200;
+
+	public static void main(String[] args) {
+		int points = (args.length > 0) ? Integer.parseInt(args[0]) : 6000;
+		final String json = SignatureTest.randomJson(new Random(42),
+				points / 100, 100);
+
+		System.out.println("Signature, " + points + " points, "
+				+ json.length() + " characters");
+		report("regex, before  ", new Runnable() {
+			public void run() {
+				BaselineSignature.extract(json);
+				BaselineSignature.maxWidth(json);
+			}
+		});
+		report("one pass, after", new Runnable() {
+			public void run() {
+				Signature.parse(json);
+			}
+		});
+	}
+
+	private static void report(String name, Runnable pass) {
+		for (int i = 0; i < WARMUP; i++) {
+			pass.run();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			pass.run();
+		}
+		double millis = (System.nanoTime() - start) / 1e6 / ROUNDS;
+		System.out.printf("  %s  %8.3f ms%n", name, millis);
+	}
+}
@@ -0,0 +1,79 @@
+package com.star.printer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SignatureRasterizerTest {
+
+	private static boolean isBlack(SignatureRasterizer raster, int x, int y) {
+		int bytesPerRow = (raster.getWidth() + 7) / 8;
+		return (raster.getPlane()[y * bytesPerRow + (x >> 3)] & (0x80 >>> (x & 7))) != 0;
+	}
+
+	@Test
+	public void verticalStrokeKeepsItsHeightWhenMaxWidthIsTiny() {
+		Signature signature = Signature.parse("[[10,0],[10,100]]");
+		for (int maxWidth = 0; maxWidth < 5; maxWidth++) {
+			SignatureRasterizer raster = SignatureRasterizer.drawFitted(
+					signature, maxWidth, 50, 0);
+
+			assertEquals(SignatureRasterizer.MARGIN * 2 + 1, raster.getWidth());
+			assertEquals(50, raster.getHeight());
+			int x = SignatureRasterizer.MARGIN;
+			assertTrue(isBlack(raster, x, SignatureRasterizer.MARGIN));
+			assertTrue(isBlack(raster, x, 25));
+			assertTrue(isBlack(raster, x, 50 - 1 - SignatureRasterizer.MARGIN));
+		}
+	}
+
+	@Test
+	public void fittedStrokeFillsTheHeight() {
+		Signature signature = Signature.parse("[[0,0],[200,100]]");
+		SignatureRasterizer raster = SignatureRasterizer.drawFitted(signature,
+				576, 105, 0);
+
+		assertEquals(205, raster.getWidth());
+		assertEquals(105, raster.getHeight());
+		assertTrue(isBlack(raster, 2, 2));
+		assertTrue(isBlack(raster, 202, 102));
+		assertFalse(isBlack(raster, 202, 2));
+	}
+
+	@Test
+	public void fittedStrokeIsNarrowedToMaxWidth() {
+		Signature signature = Signature.parse("[[0,0],[1000,10]]");
+		SignatureRasterizer raster = SignatureRasterizer.drawFitted(signature,
+				205, 200, 0);
+
+		assertEquals(205, raster.getWidth());
+		assertEquals(7, raster.getHeight());
+	}
+
+	@Test
+	public void framedSignatureHasFrameAndCenteredInk() {
+		// 100 dots wide, so centered at an offset of (576 - 100) / 2 = 238
+		Signature signature = Signature.parse("[[0,150],[100,150]]");
+		SignatureRasterizer raster = SignatureRasterizer.draw(signature, 576);
+
+		assertEquals(SignatureRasterizer.WIDTH, raster.getWidth());
+		assertEquals(SignatureRasterizer.HEIGHT, raster.getHeight());
+		assertTrue(isBlack(raster, 0, 0));
+		assertTrue(isBlack(raster, 575, 299));
+		assertTrue(isBlack(raster, 238, 150));
+		assertTrue(isBlack(raster, 338, 150));
+		assertFalse(isBlack(raster, 230, 150));
+		assertFalse(isBlack(raster, 346, 150));
+	}
+
+	@Test
+	public void emptySignatureIsBlank() {
+		SignatureRasterizer raster = SignatureRasterizer.drawFitted(
+				Signature.parse(""), 576, 40, 0.5f);
+		for (byte b : raster.getPlane()) {
+			assertEquals(0, b);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package com.star.printer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SignatureTest {
+
+	/**
+	 * A JSON signature of random strokes, with the number forms a signature
+	 * pad produces: integers, decimals and negatives.
+	 */
+	static String randomJson(Random random, int strokes, int points) {
+		StringBuilder json = new StringBuilder("{\"lines\":[");
+		for (int s = 0; s < strokes; s++) {
+			json.append(s > 0 ? ",[" : "[");
+			for (int p = 0; p < points; p++) {
+				json.append(p > 0 ? ",[" : "[");
+				json.append(randomNumber(random)).append(',')
+						.append(randomNumber(random)).append(']');
+			}
+			json.append(']');
+		}
+		return json.append("]}").toString();
+	}
+
+	private static String randomNumber(Random random) {
+		switch (random.nextInt(4)) {
+		case 0:
+			return Integer.toString(random.nextInt(600));
+		case 1:
+			return Integer.toString(-random.nextInt(50));
+		case 2:
+			return (random.nextInt(600) + "." + random.nextInt(1000));
+		default:
+			return Float.toString(random.nextFloat() * 600);
+		}
+	}
+
+	private static void assertMatchesBaseline(String json) {
+		List<float[]> expected = BaselineSignature.extract(json);
+		Signature signature = Signature.parse(json);
+
+		assertEquals(json, expected.size(), signature.getStrokeCount());
+		for (int stroke = 0; stroke < expected.size(); stroke++) {
+			float[] line = expected.get(stroke);
+			int start = signature.getStrokeStart(stroke);
+			assertEquals(json, line.length / 2, signature.getStrokeEnd(stroke)
+					- start);
+			for (int i = 0; i < line.length / 2; i++) {
+				// SigGen.Point rounds, so that is what has to agree
+				assertEquals(json, Math.round(line[i * 2]),
+						Math.round(signature.getX(start + i)));
+				assertEquals(json, Math.round(line[i * 2 + 1]),
+						Math.round(signature.getY(start + i)));
+			}
+		}
+		if (!signature.isEmpty()) {
+			assertEquals(json, BaselineSignature.maxWidth(json),
+					Math.max(0, signature.maxX), 1e-3f);
+		}
+	}
+
+	private static byte[] float32(float... values) {
+		ByteBuffer buffer = ByteBuffer.allocate(values.length * 4).order(
+				ByteOrder.LITTLE_ENDIAN);
+		for (float value : values) {
+			buffer.putFloat(value);
+		}
+		return buffer.array();
+	}
+
+	private static byte[] int16(int... values) {
+		ByteBuffer buffer = ByteBuffer.allocate(values.length * 2).order(
+				ByteOrder.LITTLE_ENDIAN);
+		for (int value : values) {
+			buffer.putShort((short) value);
+		}
+		return buffer.array();
+	}
+
+	@Test
+	public void jsonStrokesAndBounds() {
+		Signature signature = Signature
+				.parse("{\"lines\":[[[1,2],[3.5,4]],[[10,-2],[7,8],[0.25,1]]]}");
+
+		assertEquals(2, signature.getStrokeCount());
+		assertEquals(5, signature.getPointCount());
+		assertEquals(0, signature.getStrokeStart(0));
+		assertEquals(2, signature.getStrokeStart(1));
+		assertEquals(5, signature.getStrokeEnd(1));
+		assertEquals(3.5f, signature.getX(1), 0);
+		assertEquals(-2f, signature.getY(2), 0);
+		assertEquals(0.25f, signature.minX, 0);
+		assertEquals(10f, signature.maxX, 0);
+		assertEquals(-2f, signature.minY, 0);
+		assertEquals(8f, signature.maxY, 0);
+	}
+
+	@Test
+	public void jsonMatchesBaseline() {
+		Random random = new Random(16);
+		for (int i = 0; i < 200; i++) {
+			assertMatchesBaseline(randomJson(random, 1 + random.nextInt(6),
+					1 + random.nextInt(40)));
+		}
+		// Commas are optional between points, and strokes may sit anywhere
+		assertMatchesBaseline("[[1,2][3,4]]");
+		assertMatchesBaseline("{\"a\":[[5,6]],\"b\":{\"c\":[[7,8],[9,10]]}}");
+		assertMatchesBaseline("[[[1,2],[3,4]],[[5,6]]]");
+	}
+
+	@Test
+	public void float32Strokes() {
+		float nan = Float.NaN;
+		Signature signature = Signature.decode(float32(1, 2, 3.5f, 4, nan,
+				nan, nan, nan, 10, -2, 7, 8), Signature.POINTS_FLOAT32);
+
+		assertEquals(2, signature.getStrokeCount());
+		assertEquals(4, signature.getPointCount());
+		assertEquals(2, signature.getStrokeStart(1));
+		assertEquals(3.5f, signature.getX(1), 0);
+		assertEquals(-2f, signature.minY, 0);
+		assertEquals(10f, signature.maxX, 0);
+	}
+
+	@Test
+	public void int16DeltaStrokes() {
+		Signature signature = Signature.decode(int16(100, 200, 5, -10, 5,
+				-10, -32768, -32768, -3, 7, 1, 1), Signature.POINTS_INT16_DELTA);
+
+		assertEquals(2, signature.getStrokeCount());
+		assertEquals(5, signature.getPointCount());
+		assertEquals(110f, signature.getX(2), 0);
+		assertEquals(180f, signature.getY(2), 0);
+		// The first point of a stroke is absolute again
+		assertEquals(-3f, signature.getX(3), 0);
+		assertEquals(8f, signature.getY(4), 0);
+		assertEquals(-3f, signature.minX, 0);
+		assertEquals(200f, signature.maxY, 0);
+	}
+
+	@Test
+	public void emptyInputs() {
+		assertTrue(Signature.parse("").isEmpty());
+		assertTrue(Signature.parse("{\"lines\":[]}").isEmpty());
+		assertTrue(Signature.decode(new byte[0], Signature.POINTS_FLOAT32)
+				.isEmpty());
+		assertTrue(Signature.decode(new byte[0], Signature.POINTS_INT16_DELTA)
+				.isEmpty());
+
+		// Only separators: no strokes without points
+		float nan = Float.NaN;
+		Signature separators = Signature.decode(float32(nan, nan, nan, nan),
+				Signature.POINTS_FLOAT32);
+		assertEquals(0, separators.getStrokeCount());
+	}
+
+	@Test
+	public void singlePoint() {
+		Signature[] signatures = {
+				Signature.parse("[[5,6]]"),
+				Signature.decode(float32(5, 6), Signature.POINTS_FLOAT32),
+				Signature.decode(int16(5, 6), Signature.POINTS_INT16_DELTA) };
+		for (Signature signature : signatures) {
+			assertEquals(1, signature.getStrokeCount());
+			assertEquals(1, signature.getPointCount());
+			assertEquals(signature.minX, signature.maxX, 0);
+			assertEquals(signature.minY, signature.maxY, 0);
+			assertEquals(5f, signature.getX(0), 0);
+		}
+	}
+
+	@Test
+	public void malformedJsonStrokesAreSkipped() {
+		String[] malformed = { "[[1,2],[3,]]", "[[1,2],[3,4]", "[[1 ,2]]",
+				"[[a,2]]", "[[1,2,3]]", "[]", "[[]]", "[[-,2]]" };
+		for (String json : malformed) {
+			assertTrue(json, Signature.parse(json).isEmpty());
+			assertMatchesBaseline(json);
+		}
+		// A good stroke after a broken one is still read
+		Signature signature = Signature.parse("[[1,2],[3,]] [[4,5]]");
+		assertEquals(1, signature.getStrokeCount());
+		assertEquals(4f, signature.getX(0), 0);
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void numberWithTwoDotsIsRejectedAsBefore() {
+		Signature.parse("[[1.2.3,4]]");
+	}
+
+	@Test
+	public void truncatedBinaryTailIsIgnored() {
+		byte[] data = float32(1, 2, 3, 4);
+		byte[] truncated = new byte[data.length + 3];
+		System.arraycopy(data, 0, truncated, 0, data.length);
+		assertEquals(2, Signature.decode(truncated, Signature.POINTS_FLOAT32)
+				.getPointCount());
+
+		byte[] deltas = int16(1, 2, 3, 4);
+		byte[] odd = new byte[deltas.length + 1];
+		System.arraycopy(deltas, 0, odd, 0, deltas.length);
+		assertEquals(2, Signature.decode(odd, Signature.POINTS_INT16_DELTA)
+				.getPointCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownFormatIsRejected() {
+		Signature.decode(new byte[8], 7);
+	}
+}
@@ -0,0 +1,226 @@
+package com.star.printer;
+
+/**
+ * Times turning ARGB pixels into the monochrome plane, the way StarBitmap
+ * did before it kept a packed plane and the way it does now. Reading the
+ * pixels out of an android.graphics.Bitmap needs a device, so the bitmap is
+ * stood in for by an int[] and getPixels by System.arraycopy; everything
+ * after that runs the plugin's own code.
+ *
+ * Run with: java com.star.printer.StarBitmapBenchmark [width height]
+ */
+public class StarBitmapBenchmark {
+
+	private static final int STRIP_ROWS = 16;
+	private static final int WARMUP = 50;
+	private static final int ROUNDS = 100;
+
+	public static void main(String[] args) {
+		int width = (args.length > 1) ? Integer.parseInt(args[0]) : 576;
+		int height = (args.length > 1) ? Integer.parseInt(args[1]) : 1600;
+		int[] bitmap = receipt(width, height);
+
+		System.out.println("StarBitmap plane, " + width + "x" + height);
+		report("threshold, before", new Before(bitmap, width, height, false));
+		report("threshold, after ", new After(bitmap, width, height, false));
+		report("dithered,  before", new Before(bitmap, width, height, true));
+		report("dithered,  after ", new After(bitmap, width, height, true));
+	}
+
+	/**
+	 * A receipt-like image: a gradient logo on top, then lines of text-like
+	 * blocks on white.
+	 */
+	static int[] receipt(int width, int height) {
+		int[] pixels = new int[width * height];
+		int logo = Math.min(height, 200);
+		long seed = 42;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int level;
+				if (y < logo) {
+					level = (x * 255 / width + y) & 0xff;
+				} else {
+					seed = seed * 6364136223846793005L + 1442695040888963407L;
+					boolean ink = (y / 24) % 2 == 0 && (x / 10) % 3 != 2
+							&& (seed >>> 60) < 7;
+					level = ink ? 0x20 : 0xff;
+				}
+				pixels[y * width + x] = 0xff000000 | (level << 16) | (level << 8) | level;
+			}
+		}
+		return pixels;
+	}
+
+	interface Conversion {
+		byte[] run();
+
+		/** Bytes the conversion keeps for the lifetime of the StarBitmap. */
+		long retainedBytes();
+	}
+
+	private static void report(String name, Conversion conversion) {
+		for (int i = 0; i < WARMUP; i++) {
+			conversion.run();
+		}
+		long start = System.nanoTime();
+		int checksum = 0;
+		for (int i = 0; i < ROUNDS; i++) {
+			byte[] plane = conversion.run();
+			checksum += plane[plane.length / 2];
+		}
+		double millis = (System.nanoTime() - start) / 1e6 / ROUNDS;
+		System.out.printf("  %s  %8.2f ms  %9d bytes kept  (%d)%n", name,
+				millis, conversion.retainedBytes(), checksum);
+	}
+
+	/**
+	 * The original StarBitmap: every pixel copied into an int[] kept with the
+	 * bitmap, dithered through a column-major float level map, and reduced
+	 * to brightness again for every encoder.
+	 */
+	static class Before implements Conversion {
+		final int[] bitmap;
+		final int width;
+		final int height;
+		final boolean dithering;
+
+		Before(int[] bitmap, int width, int height, boolean dithering) {
+			this.bitmap = bitmap;
+			this.width = width;
+			this.height = height;
+			this.dithering = dithering;
+		}
+
+		public byte[] run() {
+			int[] pixels = new int[width * height];
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					pixels[y * width + x] = getPixel(x, y);
+				}
+			}
+			if (dithering) {
+				dither(pixels, 1.5f);
+			}
+
+			int bytesPerRow = (width + 7) / 8;
+			byte[] plane = new byte[bytesPerRow * height];
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < bytesPerRow; x++) {
+					int packed = 0;
+					for (int j = 0; j < 8; j++) {
+						packed <<= 1;
+						int pos = x * 8 + j;
+						if (pos < width && brightness(pixels[y * width + pos]) < 127) {
+							packed |= 1;
+						}
+					}
+					plane[y * bytesPerRow + x] = (byte) packed;
+				}
+			}
+			return plane;
+		}
+
+		public long retainedBytes() {
+			return 4L * width * height;
+		}
+
+		private int getPixel(int x, int y) {
+			return bitmap[y * width + x];
+		}
+
+		private static int brightness(int pixel) {
+			return (((pixel >> 16) & 0xff) + ((pixel >> 8) & 0xff) + (pixel & 0xff)) / 3;
+		}
+
+		private static int greyLevel(int pixel, float intensity) {
+			float parcial = ((pixel >> 16) & 0xff) + ((pixel >> 8) & 0xff) + (pixel & 0xff);
+			parcial = (float) (parcial / 3.0);
+			int gray = (int) (parcial * intensity);
+			return (gray > 255) ? 255 : gray;
+		}
+
+		private void dither(int[] pixels, float intensity) {
+			int[][] levelmap = new int[width][height];
+			for (int y = 0; y < height; y++) {
+				int step = ((y & 1) == 0) ? 1 : -1;
+				int x = (step == 1) ? 0 : width - 1;
+				for (int n = 0; n < width; n++, x += step) {
+					levelmap[x][y] += 255 - greyLevel(pixels[y * width + x], intensity);
+					if (levelmap[x][y] >= 255) {
+						levelmap[x][y] -= 255;
+						pixels[y * width + x] = 0xff000000;
+					} else {
+						pixels[y * width + x] = 0xffffffff;
+					}
+
+					int sixteenth = levelmap[x][y] / 16;
+					if (x + step >= 0 && x + step < width) {
+						levelmap[x + step][y] += sixteenth * 7;
+					}
+					if (y < height - 1) {
+						levelmap[x][y + 1] += sixteenth * 5;
+						if (x - step >= 0 && x - step < width) {
+							levelmap[x - step][y + 1] += sixteenth * 3;
+						}
+						if (x + step >= 0 && x + step < width) {
+							levelmap[x + step][y + 1] += sixteenth;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * StarBitmap now: strips of rows are copied out and packed, or dithered,
+	 * straight into the 1-bit plane, which is all that is kept.
+	 */
+	static class After implements Conversion {
+		final int[] bitmap;
+		final int width;
+		final int height;
+		final boolean dithering;
+
+		After(int[] bitmap, int width, int height, boolean dithering) {
+			this.bitmap = bitmap;
+			this.width = width;
+			this.height = height;
+			this.dithering = dithering;
+		}
+
+		public byte[] run() {
+			int bytesPerRow = (width + 7) / 8;
+			byte[] plane = new byte[bytesPerRow * height];
+			StarDither dither = dithering ? new StarDither(
+					StarDither.FLOYD_STEINBERG, StarDither.DEFAULT_INTENSITY,
+					width) : null;
+			int[] strip = new int[width * STRIP_ROWS];
+
+			for (int y = 0; y < height; y += STRIP_ROWS) {
+				int rows = Math.min(STRIP_ROWS, height - y);
+				System.arraycopy(bitmap, y * width, strip, 0, rows * width);
+
+				for (int row = 0; row < rows; row++) {
+					int src = row * width;
+					int dst = (y + row) * bytesPerRow;
+					if (dither != null) {
+						for (int x = 0; x < width; x++) {
+							int pixel = strip[src + x];
+							strip[src + x] = ((pixel >> 16) & 0xff)
+									+ ((pixel >> 8) & 0xff) + (pixel & 0xff);
+						}
+						dither.ditherRow(strip, src, plane, dst, y + row);
+					} else {
+						StarBitmap.thresholdRow(strip, src, width, plane, dst);
+					}
+				}
+			}
+			return plane;
+		}
+
+		public long retainedBytes() {
+			return (long) ((width + 7) / 8) * height;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.star.printer;
+
+/**
+ * Times the original float Floyd-Steinberg pass against each StarDither
+ * kernel on the same receipt-sized image. Both sides start from ARGB pixels
+ * and end with a packed 1-bit plane, so the figures include everything the
+ * dither path of StarBitmap does off the device.
+ *
+ * Run with: java com.star.printer.StarDitherBenchmark [width height]
+ */
+public class StarDitherBenchmark {
+
+	private static final int WARMUP = 20;
+	private static final int ROUNDS = 50;
+
+	private static final String[] KERNELS = {
+		"floyd-steinberg", "atkinson", "sierra-lite", "bayer"
+	};
+
+	public static void main(String[] args) {
+		int width = (args.length > 1) ? Integer.parseInt(args[0]) : 576;
+		int height = (args.length > 1) ? Integer.parseInt(args[1]) : 1600;
+		final int[] image = StarBitmapBenchmark.receipt(width, height);
+		final int w = width;
+		final int h = height;
+
+		System.out.println("Dithering, " + width + "x" + height);
+		report("float baseline ", new Runnable() {
+			public void run() {
+				int[] pixels = image.clone();
+				BaselineDither.dither(pixels, w, h, 1.5f);
+				BaselineDither.pack(pixels, w, h);
+			}
+		});
+		for (int kernel = StarDither.FLOYD_STEINBERG; kernel <= StarDither.BAYER; kernel++) {
+			final int k = kernel;
+			report(String.format("%-15s", KERNELS[kernel]), new Runnable() {
+				public void run() {
+					StarDitherTest.dither(k, StarDither.DEFAULT_INTENSITY, image, w, h);
+				}
+			});
+		}
+	}
+
+	private static void report(String name, Runnable pass) {
+		for (int i = 0; i < WARMUP; i++) {
+			pass.run();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			pass.run();
+		}
+		double millis = (System.nanoTime() - start) / 1e6 / ROUNDS;
+		System.out.printf("  %s  %8.2f ms%n", name, millis);
+	}
+}
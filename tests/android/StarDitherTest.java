@@ -0,0 +1,132 @@
+package com.star.printer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class StarDitherTest {
+
+	private static final int WIDTH = 101;
+	private static final int HEIGHT = 67;
+
+	/**
+	 * Gradients in each channel with some noise on top, so that channel sums
+	 * that do not divide by three are covered. The width is not a multiple
+	 * of eight.
+	 */
+	static int[] testImage(int width, int height) {
+		int[] pixels = new int[width * height];
+		long seed = 7;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				seed = seed * 6364136223846793005L + 1442695040888963407L;
+				int noise = (int) (seed >>> 59) - 16;
+				int red = clamp(x * 255 / width + noise);
+				int green = clamp(y * 255 / height - noise);
+				int blue = clamp((x + y) * 2 + noise);
+				pixels[y * width + x] = 0xff000000 | (red << 16) | (green << 8) | blue;
+			}
+		}
+		return pixels;
+	}
+
+	private static int clamp(int value) {
+		return Math.max(0, Math.min(255, value));
+	}
+
+	/**
+	 * Dithers an ARGB image the way StarBitmap feeds StarDither.
+	 */
+	static byte[] dither(int kernel, int intensity, int[] argb, int width,
+			int height) {
+		int bytesPerRow = (width + 7) / 8;
+		byte[] mono = new byte[bytesPerRow * height];
+		int[] row = new int[width];
+		StarDither dither = new StarDither(kernel, intensity, width);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int pixel = argb[y * width + x];
+				row[x] = ((pixel >> 16) & 0xff) + ((pixel >> 8) & 0xff) + (pixel & 0xff);
+			}
+			dither.ditherRow(row, 0, mono, y * bytesPerRow, y);
+		}
+		return mono;
+	}
+
+	@Test
+	public void floydSteinbergMatchesBaseline() {
+		int[] pixels = testImage(WIDTH, HEIGHT);
+		byte[] actual = dither(StarDither.FLOYD_STEINBERG,
+				StarDither.DEFAULT_INTENSITY, pixels, WIDTH, HEIGHT);
+
+		BaselineDither.dither(pixels, WIDTH, HEIGHT, 1.5f);
+		assertArrayEquals(BaselineDither.pack(pixels, WIDTH, HEIGHT), actual);
+	}
+
+	@Test
+	public void everyLevelMatchesBaseline() {
+		// One row per grey level, tall enough for the error to spread
+		int[] pixels = new int[256 * 4];
+		for (int level = 0; level < 256; level++) {
+			for (int y = 0; y < 4; y++) {
+				pixels[y * 256 + level] = 0xff000000 | (level << 16)
+						| ((255 - level) << 8) | (level / 2);
+			}
+		}
+		byte[] actual = dither(StarDither.FLOYD_STEINBERG,
+				StarDither.DEFAULT_INTENSITY, pixels, 256, 4);
+
+		BaselineDither.dither(pixels, 256, 4, 1.5f);
+		assertArrayEquals(BaselineDither.pack(pixels, 256, 4), actual);
+	}
+
+	@Test
+	public void whiteStaysWhiteAndBlackStaysBlack() {
+		int[] white = new int[WIDTH * HEIGHT];
+		int[] black = new int[WIDTH * HEIGHT];
+		Arrays.fill(white, 0xffffffff);
+		Arrays.fill(black, 0xff000000);
+		int bytesPerRow = (WIDTH + 7) / 8;
+
+		for (int kernel = StarDither.FLOYD_STEINBERG; kernel <= StarDither.BAYER; kernel++) {
+			assertEquals(0, countBlack(dither(kernel, 100, white, WIDTH, HEIGHT)));
+			assertEquals(WIDTH * HEIGHT, countBlack(dither(kernel, 100, black,
+					WIDTH, HEIGHT)));
+		}
+		assertEquals(bytesPerRow * HEIGHT, dither(StarDither.BAYER, 100, white,
+				WIDTH, HEIGHT).length);
+	}
+
+	@Test
+	public void midGreyIsAboutHalfBlack() {
+		int[] grey = new int[64 * 64];
+		Arrays.fill(grey, 0xff808080);
+
+		for (int kernel : new int[] { StarDither.FLOYD_STEINBERG,
+				StarDither.SIERRA_LITE, StarDither.BAYER }) {
+			int black = countBlack(dither(kernel, 100, grey, 64, 64));
+			assertEquals("kernel " + kernel, 64 * 64 / 2, black, 64 * 64 / 10);
+		}
+
+		// Atkinson drops a quarter of the error, so mid tones come out lighter
+		int black = countBlack(dither(StarDither.ATKINSON, 100, grey, 64, 64));
+		assertTrue(black > 64 * 64 / 4 && black < 64 * 64 / 2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownKernelIsRejected() {
+		new StarDither(StarDither.BAYER + 1, 100, 8);
+	}
+
+	private static int countBlack(byte[] mono) {
+		int count = 0;
+		for (byte b : mono) {
+			count += Integer.bitCount(b & 0xff);
+		}
+		return count;
+	}
+}
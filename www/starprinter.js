@@ -12,9 +12,84 @@ StarPrinter.prototype.PrintSampleReceipt = function (id, success, error) {
 cordova.exec(success, error, 'StarPrinter', 'PrintSampleReceipt', [id]);
 };
 
-StarPrinter.prototype.PrintSignature = function (id, success, error) {
+// options.height crops the signature to its ink and scales it to that many dots
+StarPrinter.prototype.PrintSignature = function (id, success, error, options) {
 alert(id);
-cordova.exec(success, error, 'StarPrinter', 'PrintSignature', [id]);
+cordova.exec(success, error, 'StarPrinter', 'PrintSignature', [id, options || {}]);
+};
+
+// options takes portName, portSettings and profile like PrintImageData;
+// success is called with true if the logos were sent, false if the printer
+// already held them
+StarPrinter.prototype.StoreLogos = function (logos, success, error, options) {
+cordova.exec(success, error, 'StarPrinter', 'StoreLogos', [logos, options || {}]);
+};
+
+StarPrinter.prototype.PrintCommands = function (document, success, error) {
+cordova.exec(success, error, 'StarPrinter', 'PrintCommands', [document]);
+};
+
+// points is an ArrayBuffer; options.format is "float32" (default) or "int16delta"
+StarPrinter.prototype.PrintSignatureData = function (points, options, success, error) {
+cordova.exec(success, error, 'StarPrinter', 'PrintSignatureData', [points, options || {}]);
+};
+
+// image is an ArrayBuffer holding a PNG or JPEG, or with options.format "mono"
+// and options.width a 1 bit per pixel image
+StarPrinter.prototype.PrintImageData = function (image, options, success, error) {
+cordova.exec(success, error, 'StarPrinter', 'PrintImageData', [image, options || {}]);
+};
+
+// Answered from the last status read, without talking to the printer
+StarPrinter.prototype.GetStatus = function (options, success, error) {
+cordova.exec(success, error, 'StarPrinter', 'GetStatus', [options || {}]);
+};
+
+// onChange is called with the printer status every time it changes
+StarPrinter.prototype.StartStatusMonitor = function (options, onChange, error) {
+cordova.exec(onChange, error, 'StarPrinter', 'StartStatusMonitor', [options || {}]);
+};
+
+StarPrinter.prototype.StopStatusMonitor = function (options, success, error) {
+cordova.exec(success, error, 'StarPrinter', 'StopStatusMonitor', [options || {}]);
+};
+
+// options.target is "BT:", "TCP:" or both separated by a comma
+StarPrinter.prototype.DiscoverPrinters = function (options, success, error) {
+cordova.exec(success, error, 'StarPrinter', 'DiscoverPrinters', [options || {}]);
+};
+
+StarPrinter.prototype.GetPrinters = function (success, error) {
+cordova.exec(success, error, 'StarPrinter', 'GetPrinters', [{}]);
+};
+
+// printer is { portName: ..., portSettings: ..., groups: [...] }
+StarPrinter.prototype.SetPrinter = function (printer, success, error) {
+cordova.exec(success, error, 'StarPrinter', 'SetPrinter', [printer]);
+};
+
+// options is { portName: ..., reset: true }, both optional
+StarPrinter.prototype.GetMetrics = function (options, success, error) {
+cordova.exec(success, error, 'StarPrinter', 'GetMetrics', [options || {}]);
+};
+
+// options is { enabled: true, maxBytes: ... }
+StarPrinter.prototype.SetMetricsLog = function (options, success, error) {
+cordova.exec(success, error, 'StarPrinter', 'SetMetricsLog', [options || {}]);
+};
+
+// options.portName is optional
+StarPrinter.prototype.GetPrintJobs = function (options, success, error) {
+cordova.exec(success, error, 'StarPrinter', 'GetPrintJobs', [options || {}]);
+};
+
+StarPrinter.prototype.CancelPrintJob = function (id, success, error) {
+cordova.exec(success, error, 'StarPrinter', 'CancelPrintJob', [{ id: id }]);
+};
+
+// options.portName is optional, without it every printer's jobs are cancelled
+StarPrinter.prototype.ClearPrintJobs = function (options, success, error) {
+cordova.exec(success, error, 'StarPrinter', 'ClearPrintJobs', [options || {}]);
 };
 
 module.exports = new StarPrinter();